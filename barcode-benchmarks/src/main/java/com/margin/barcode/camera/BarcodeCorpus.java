@@ -0,0 +1,440 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic corpus of NV21 preview frames showing a barcode label under controlled capture
+ * conditions: module size, rotation, defocus blur, sensor noise, glare and print contrast.
+ * <p/>
+ * The label is rendered with 4x4 supersampling onto a smoothly shaded surface, then degraded in the
+ * order the capture chain does it: glare on the label surface, blur in the optics and noise in
+ * the sensor.  The surface is not the checkerboard of {@link SyntheticFrames#createFrame}, whose
+ * regular pattern looks like the guard patterns of linear codes and would hide them from readers
+ * that try one guard per row.  Rendering is deterministic for a
+ * given seed, so that a corpus is the same from run to run and decode rates can be compared.
+ */
+final class BarcodeCorpus {
+    /**
+     * Formats that the ZXing writer can render among those the detectors are set up to read.
+     * UPC-E and Code 93 have no writer in the ZXing version we use.
+     */
+    static final List<BarcodeFormat> FORMATS = Collections.unmodifiableList(Arrays.asList(
+            BarcodeFormat.QR_CODE, BarcodeFormat.DATA_MATRIX, BarcodeFormat.PDF_417,
+            BarcodeFormat.AZTEC, BarcodeFormat.CODE_128, BarcodeFormat.CODE_39,
+            BarcodeFormat.CODABAR, BarcodeFormat.ITF, BarcodeFormat.EAN_13, BarcodeFormat.EAN_8,
+            BarcodeFormat.UPC_A));
+
+    /**
+     * Quiet zones around the code, in modules.  The ZXing writers add inconsistent margins, so
+     * the code is trimmed and these are added instead: the largest quiet zone the linear
+     * symbologies require (ITF), and that of QR codes for the matrix symbologies.
+     */
+    private static final int LINEAR_QUIET_ZONE = 10;
+    private static final int MATRIX_QUIET_ZONE = 4;
+
+    /**
+     * Height of the bars of linear codes, as a fraction of the width of the code.
+     */
+    private static final float LINEAR_ASPECT = 0.4f;
+
+    /**
+     * Largest offset of the code from the frame center, as a fraction of the code size.  The user
+     * aims at the code, and the ZXing Data Matrix and Aztec detectors search from the center.
+     */
+    private static final float MAX_OFFSET = 0.2f;
+
+    /**
+     * Samples per pixel in each direction when rendering the label.  Coarser sampling quantizes
+     * the coverage of pixels on module edges, which at small module sizes changes the apparent
+     * bar widths for the binarizers.
+     */
+    private static final int SUPERSAMPLING = 4;
+
+    private static final int BLACK = 16;
+    private static final int WHITE = 235;
+
+    private BarcodeCorpus() {
+    }
+
+    /**
+     * Returns the conditions of the corpus: the baseline, a sweep of each parameter on its own,
+     * and a combination typical of a handheld scan.
+     */
+    static List<Condition> conditions() {
+        Condition baseline = new Condition();
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(baseline);
+        for (float moduleSize : new float[]{1.0f, 1.5f, 2.0f, 5.0f}) {
+            conditions.add(baseline.withModuleSize(moduleSize));
+        }
+        for (float rotation : new float[]{10, 30, 45, 90}) {
+            conditions.add(baseline.withRotation(rotation));
+        }
+        for (float blur : new float[]{0.5f, 1.0f, 1.5f, 2.0f}) {
+            conditions.add(baseline.withBlur(blur));
+        }
+        for (float noise : new float[]{8, 16, 32}) {
+            conditions.add(baseline.withNoise(noise));
+        }
+        for (float glare : new float[]{0.5f, 1.0f}) {
+            conditions.add(baseline.withGlare(glare));
+        }
+        for (float contrast : new float[]{0.5f, 0.25f}) {
+            conditions.add(baseline.withContrast(contrast));
+        }
+        conditions.add(baseline.withRotation(10).withBlur(0.5f).withNoise(8).withGlare(0.3f)
+                .withContrast(0.6f));
+        return conditions;
+    }
+
+    /**
+     * Renders a frame with a label of {@link SyntheticFrames#contents} encoded in a format.
+     *
+     * @param seed selects the label position, the glare position and the noise
+     */
+    static byte[] render(BarcodeFormat format, Condition condition, int width, int height,
+                         long seed) throws WriterException {
+        byte[] frame = createSurface(width, height);
+        BitMatrix matrix = SyntheticFrames.encode(format);
+        // The first outputs of Random hardly differ for consecutive seeds, so spread them first.
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L);
+
+        // Label size in modules, including the quiet zone.
+        int[] code = getEnclosingRectangle(matrix);
+        int codeLeft = code[0];
+        int codeTop = code[1];
+        int codeColumns = code[2];
+        boolean linear = matrix.getHeight() == 1;
+        int codeRows = linear ? Math.round(codeColumns * LINEAR_ASPECT) : code[3];
+        int quietZone = linear ? LINEAR_QUIET_ZONE : MATRIX_QUIET_ZONE;
+        int labelWidth = codeColumns + 2 * quietZone;
+        int labelHeight = codeRows + 2 * quietZone;
+
+        float moduleSize = condition.getModuleSize();
+        float centerX = width / 2f +
+                MAX_OFFSET * codeColumns * moduleSize * (2 * random.nextFloat() - 1);
+        float centerY = height / 2f +
+                MAX_OFFSET * codeRows * moduleSize * (2 * random.nextFloat() - 1);
+        double angle = Math.toRadians(condition.getRotation());
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+
+        // Bounding box of the rotated label, clipped to the frame.
+        float halfWidth = labelWidth * moduleSize / 2;
+        float halfHeight = labelHeight * moduleSize / 2;
+        float extentX = Math.abs(cos) * halfWidth + Math.abs(sin) * halfHeight;
+        float extentY = Math.abs(sin) * halfWidth + Math.abs(cos) * halfHeight;
+        int left = Math.max(0, (int) (centerX - extentX));
+        int top = Math.max(0, (int) (centerY - extentY));
+        int right = Math.min(width, (int) Math.ceil(centerX + extentX));
+        int bottom = Math.min(height, (int) Math.ceil(centerY + extentY));
+
+        int black = Math.round(WHITE - condition.getContrast() * (WHITE - BLACK));
+        for (int y = top; y < bottom; ++y) {
+            for (int x = left; x < right; ++x) {
+                int covered = 0;
+                int dark = 0;
+                for (int s = 0; s < SUPERSAMPLING * SUPERSAMPLING; ++s) {
+                    // Sample at the centers of a grid of subpixels.
+                    float dx = x + (s % SUPERSAMPLING + 0.5f) / SUPERSAMPLING - centerX;
+                    float dy = y + (s / SUPERSAMPLING + 0.5f) / SUPERSAMPLING - centerY;
+                    float u = (cos * dx + sin * dy) / moduleSize + labelWidth / 2f;
+                    float v = (cos * dy - sin * dx) / moduleSize + labelHeight / 2f;
+                    if (u < 0 || v < 0 || u >= labelWidth || v >= labelHeight) {
+                        continue;
+                    }
+                    covered++;
+                    int column = (int) u - quietZone;
+                    int row = (int) v - quietZone;
+                    if (column >= 0 && row >= 0 && column < codeColumns && row < codeRows &&
+                            matrix.get(codeLeft + column, linear ? 0 : codeTop + row)) {
+                        dark++;
+                    }
+                }
+                if (covered > 0) {
+                    int background = frame[y * width + x] & 0xFF;
+                    int label = ((covered - dark) * WHITE + dark * black) / covered;
+                    int samples = SUPERSAMPLING * SUPERSAMPLING;
+                    frame[y * width + x] = (byte) ((label * covered +
+                            background * (samples - covered)) / samples);
+                }
+            }
+        }
+
+        // The degradations only touch the label and a margin around it, which is all that
+        // decoding depends on, to keep rendering the corpus fast.
+        int margin = (int) Math.ceil(3 * condition.getBlur()) + 2;
+        left = Math.max(0, left - margin);
+        top = Math.max(0, top - margin);
+        right = Math.min(width, right + margin);
+        bottom = Math.min(height, bottom + margin);
+        if (condition.getGlare() > 0) {
+            addGlare(frame, width, left, top, right, bottom, condition.getGlare(),
+                    Math.min(halfWidth, halfHeight), random);
+        }
+        if (condition.getBlur() > 0) {
+            blur(frame, width, left, top, right, bottom, condition.getBlur());
+        }
+        if (condition.getNoise() > 0) {
+            addNoise(frame, width, left, top, right, bottom, condition.getNoise(), random);
+        }
+        return frame;
+    }
+
+    /**
+     * Creates a frame of a surface lit from one side, with gray chroma.
+     */
+    private static byte[] createSurface(int width, int height) {
+        byte[] frame = new byte[Nv21.bufferSize(width, height)];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                frame[y * width + x] = (byte) (80 + 60 * (x + y) / (width + height));
+            }
+        }
+        Nv21.fillNeutralChroma(frame, width, height);
+        return frame;
+    }
+
+    /**
+     * Returns the left, top, width and height of the set bits of a matrix.
+     * {@link BitMatrix#getEnclosingRectangle()} is one bit short in both directions in the ZXing
+     * version we use.
+     */
+    private static int[] getEnclosingRectangle(BitMatrix matrix) {
+        int left = matrix.getWidth();
+        int top = matrix.getHeight();
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < matrix.getHeight(); ++y) {
+            for (int x = 0; x < matrix.getWidth(); ++x) {
+                if (matrix.get(x, y)) {
+                    left = Math.min(left, x);
+                    top = Math.min(top, y);
+                    right = Math.max(right, x);
+                    bottom = Math.max(bottom, y);
+                }
+            }
+        }
+        return new int[]{left, top, right - left + 1, bottom - top + 1};
+    }
+
+    /**
+     * Adds a specular highlight with a Gaussian profile, centered at a random point of the region.
+     *
+     * @param strength peak brightness added, as a fraction of the full range
+     * @param radius   standard deviation of the profile in pixels
+     */
+    private static void addGlare(byte[] frame, int width, int left, int top, int right,
+                                 int bottom, float strength, float radius, Random random) {
+        float centerX = left + (right - left) * (0.25f + 0.5f * random.nextFloat());
+        float centerY = top + (bottom - top) * (0.25f + 0.5f * random.nextFloat());
+        float peak = strength * 255;
+        float scale = -1 / (2 * radius * radius);
+        for (int y = top; y < bottom; ++y) {
+            for (int x = left; x < right; ++x) {
+                float dx = x - centerX;
+                float dy = y - centerY;
+                int value = (frame[y * width + x] & 0xFF) +
+                        Math.round(peak * (float) Math.exp(scale * (dx * dx + dy * dy)));
+                frame[y * width + x] = (byte) Math.min(255, value);
+            }
+        }
+    }
+
+    /**
+     * Blurs a region with a separable Gaussian filter, clamping at the edges of the region.
+     *
+     * @param sigma standard deviation of the filter in pixels
+     */
+    private static void blur(byte[] frame, int width, int left, int top, int right, int bottom,
+                             float sigma) {
+        int radius = (int) Math.ceil(3 * sigma);
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; ++i) {
+            kernel[i + radius] = (float) Math.exp(-i * i / (2 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; ++i) {
+            kernel[i] /= sum;
+        }
+        int regionWidth = right - left;
+        int regionHeight = bottom - top;
+        int[] line = new int[Math.max(regionWidth, regionHeight)];
+        for (int y = top; y < bottom; ++y) {
+            filter(frame, y * width + left, 1, regionWidth, kernel, line);
+        }
+        for (int x = left; x < right; ++x) {
+            filter(frame, top * width + x, width, regionHeight, kernel, line);
+        }
+    }
+
+    /**
+     * Filters a line of pixels in place, clamping at the ends of the line.
+     */
+    private static void filter(byte[] frame, int start, int step, int length, float[] kernel,
+                               int[] line) {
+        for (int i = 0; i < length; ++i) {
+            line[i] = frame[start + i * step] & 0xFF;
+        }
+        int radius = kernel.length / 2;
+        for (int i = 0; i < length; ++i) {
+            float value = 0;
+            for (int k = -radius; k <= radius; ++k) {
+                value += kernel[k + radius] * line[Math.min(length - 1, Math.max(0, i + k))];
+            }
+            frame[start + i * step] = (byte) Math.round(value);
+        }
+    }
+
+    /**
+     * Adds Gaussian noise to a region.
+     *
+     * @param sigma standard deviation of the noise in luma levels
+     */
+    private static void addNoise(byte[] frame, int width, int left, int top, int right,
+                                 int bottom, float sigma, Random random) {
+        for (int y = top; y < bottom; ++y) {
+            for (int x = left; x < right; ++x) {
+                int value = (frame[y * width + x] & 0xFF) +
+                        Math.round(sigma * (float) random.nextGaussian());
+                frame[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+    }
+
+    /**
+     * Capture condition of a corpus frame.  The default condition is the baseline: a sharp,
+     * upright, full contrast label at three pixels per module.
+     */
+    static final class Condition {
+        private final float mModuleSize;
+        private final float mRotation;
+        private final float mBlur;
+        private final float mNoise;
+        private final float mGlare;
+        private final float mContrast;
+
+        Condition() {
+            this(3.0f, 0, 0, 0, 0, 1.0f);
+        }
+
+        private Condition(float moduleSize, float rotation, float blur, float noise,
+                          float glare, float contrast) {
+            mModuleSize = moduleSize;
+            mRotation = rotation;
+            mBlur = blur;
+            mNoise = noise;
+            mGlare = glare;
+            mContrast = contrast;
+        }
+
+        /**
+         * @param moduleSize width of a module in pixels
+         */
+        Condition withModuleSize(float moduleSize) {
+            return new Condition(moduleSize, mRotation, mBlur, mNoise, mGlare, mContrast);
+        }
+
+        /**
+         * @param rotation clockwise rotation of the label in degrees
+         */
+        Condition withRotation(float rotation) {
+            return new Condition(mModuleSize, rotation, mBlur, mNoise, mGlare, mContrast);
+        }
+
+        /**
+         * @param blur standard deviation of the defocus blur in pixels
+         */
+        Condition withBlur(float blur) {
+            return new Condition(mModuleSize, mRotation, blur, mNoise, mGlare, mContrast);
+        }
+
+        /**
+         * @param noise standard deviation of the sensor noise in luma levels
+         */
+        Condition withNoise(float noise) {
+            return new Condition(mModuleSize, mRotation, mBlur, noise, mGlare, mContrast);
+        }
+
+        /**
+         * @param glare peak brightness of the highlight, as a fraction of the full range
+         */
+        Condition withGlare(float glare) {
+            return new Condition(mModuleSize, mRotation, mBlur, mNoise, glare, mContrast);
+        }
+
+        /**
+         * @param contrast difference between the bars and the label, as a fraction of the full
+         *                 range
+         */
+        Condition withContrast(float contrast) {
+            return new Condition(mModuleSize, mRotation, mBlur, mNoise, mGlare, contrast);
+        }
+
+        float getModuleSize() {
+            return mModuleSize;
+        }
+
+        float getRotation() {
+            return mRotation;
+        }
+
+        float getBlur() {
+            return mBlur;
+        }
+
+        float getNoise() {
+            return mNoise;
+        }
+
+        float getGlare() {
+            return mGlare;
+        }
+
+        float getContrast() {
+            return mContrast;
+        }
+
+        /**
+         * Returns the parameters that differ from the baseline, e.g. {@code "module=1.5 noise=8"},
+         * or {@code "baseline"}.
+         */
+        @Override
+        public String toString() {
+            Condition baseline = new Condition();
+            StringBuilder name = new StringBuilder();
+            append(name, "module", mModuleSize, baseline.mModuleSize);
+            append(name, "rotation", mRotation, baseline.mRotation);
+            append(name, "blur", mBlur, baseline.mBlur);
+            append(name, "noise", mNoise, baseline.mNoise);
+            append(name, "glare", mGlare, baseline.mGlare);
+            append(name, "contrast", mContrast, baseline.mContrast);
+            return name.length() == 0 ? "baseline" : name.toString();
+        }
+
+        private static void append(StringBuilder name, String parameter, float value,
+                                   float baseline) {
+            if (value == baseline) {
+                return;
+            }
+            if (name.length() > 0) {
+                name.append(' ');
+            }
+            name.append(parameter).append('=');
+            if (value == (int) value) {
+                name.append((int) value);
+            } else {
+                name.append(value);
+            }
+        }
+    }
+}
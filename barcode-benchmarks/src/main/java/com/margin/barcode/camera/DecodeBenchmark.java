@@ -0,0 +1,85 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZXing decoding of a whole preview frame with a barcode in the middle, as the ZXing fragment
+ * does it: a planar luminance source over the NV21 luma plane and a hybrid binarizer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({SyntheticFrames.SIZE_1600_1024, SyntheticFrames.SIZE_1280_720})
+    public String size;
+
+    @Param({"QR_CODE", "CODE_128", "EAN_13"})
+    public BarcodeFormat format;
+
+    /**
+     * Module width in pixels.
+     */
+    private static final int MODULE_SIZE = 3;
+
+    private final MultiFormatReader mReader = new MultiFormatReader();
+    private byte[] mFrame;
+    private int mWidth;
+    private int mHeight;
+
+    @Setup
+    public void setUp() throws WriterException {
+        mWidth = SyntheticFrames.parseWidth(size);
+        mHeight = SyntheticFrames.parseHeight(size);
+        mFrame = SyntheticFrames.createBarcodeFrame(mWidth, mHeight, format, MODULE_SIZE);
+
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(format));
+        mReader.setHints(hints);
+
+        // A benchmark of a failing decode would measure the wrong code path.
+        try {
+            decode();
+        } catch (NotFoundException e) {
+            throw new IllegalStateException("Synthetic " + format + " frame does not decode", e);
+        }
+    }
+
+    @Benchmark
+    public Result decode() throws NotFoundException {
+        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(mFrame, mWidth, mHeight,
+                0, 0, mWidth, mHeight, false);
+        try {
+            return mReader.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)));
+        } finally {
+            mReader.reset();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.margin.barcode.camera;
+
+/**
+ * A barcode decoder that the decode rate runner measures on the synthetic corpus.
+ */
+interface DecodeEngine {
+    /**
+     * Returns a short name, used to label the results.
+     */
+    String getName();
+
+    /**
+     * Decodes a barcode in an NV21 frame.
+     *
+     * @return the decoded text, or null if no barcode was found
+     */
+    String decode(byte[] frame, int width, int height);
+}
@@ -0,0 +1,262 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Pushes the synthetic barcode corpus through each decode engine and records, per engine, format
+ * and condition, the decode rate and the median and 99th percentile decode latency.
+ * <p/>
+ * The results are printed and written as CSV.  Given the CSV of an earlier run as a baseline, the
+ * runner fails if the decode rate of any condition dropped by more than a tolerance, so that a
+ * performance change can be shown not to reduce the read rate.  Latencies are only reported, as
+ * they vary too much between machines to gate on.
+ * <p/>
+ * Usage: {@code DecodeRateRunner [-size WxH] [-samples n] [-out results.csv]
+ * [-baseline results.csv] [-tolerance 0.05]}
+ */
+public final class DecodeRateRunner {
+    private static final String CSV_HEADER =
+            "engine,format,condition,samples,decoded,rate,p50_us,p99_us";
+
+    /**
+     * Number of decodes of the baseline frames before measuring, so that the JIT compiler has
+     * compiled the decoders.
+     */
+    private static final int WARM_UP_ROUNDS = 20;
+
+    private DecodeRateRunner() {
+    }
+
+    public static void main(String[] args) throws IOException, WriterException {
+        String size = SyntheticFrames.SIZE_1280_720;
+        int samples = 10;
+        File out = null;
+        File baseline = null;
+        double tolerance = 0.05;
+        for (int i = 0; i < args.length; ++i) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            switch (args[i]) {
+                case "-size":
+                    size = value;
+                    break;
+                case "-samples":
+                    samples = Integer.parseInt(value);
+                    break;
+                case "-out":
+                    out = new File(value);
+                    break;
+                case "-baseline":
+                    baseline = new File(value);
+                    break;
+                case "-tolerance":
+                    tolerance = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            ++i;
+        }
+
+        List<DecodeEngine> engines = Arrays.<DecodeEngine>asList(
+                new ZXingDecodeEngine("zxing", BarcodeCorpus.FORMATS, false),
+                new ZXingDecodeEngine("zxing-try-harder", BarcodeCorpus.FORMATS, true));
+        List<Result> results = run(engines, SyntheticFrames.parseWidth(size),
+                SyntheticFrames.parseHeight(size), samples);
+
+        System.out.println(CSV_HEADER);
+        for (Result result : results) {
+            System.out.println(result.toCsv());
+        }
+        if (out != null) {
+            write(results, out);
+        }
+        if (baseline != null && !compare(results, read(baseline), tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Renders the corpus and decodes every frame with every engine.
+     */
+    static List<Result> run(List<DecodeEngine> engines, int width, int height, int samples)
+            throws WriterException {
+        List<BarcodeCorpus.Condition> conditions = BarcodeCorpus.conditions();
+        List<Result> results = new ArrayList<>();
+        for (BarcodeFormat format : BarcodeCorpus.FORMATS) {
+            String expected = SyntheticFrames.decodedContents(format);
+            for (BarcodeCorpus.Condition condition : conditions) {
+                byte[][] frames = new byte[samples][];
+                for (int i = 0; i < samples; ++i) {
+                    frames[i] = BarcodeCorpus.render(format, condition, width, height, i);
+                }
+                for (DecodeEngine engine : engines) {
+                    if (condition == conditions.get(0)) {
+                        warmUp(engine, frames, width, height);
+                    }
+                    results.add(measure(engine, format, condition, expected, frames, width,
+                            height));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static void warmUp(DecodeEngine engine, byte[][] frames, int width, int height) {
+        for (int round = 0; round < WARM_UP_ROUNDS; ++round) {
+            engine.decode(frames[round % frames.length], width, height);
+        }
+    }
+
+    private static Result measure(DecodeEngine engine, BarcodeFormat format,
+                                  BarcodeCorpus.Condition condition, String expected,
+                                  byte[][] frames, int width, int height) {
+        long[] latencies = new long[frames.length];
+        int decoded = 0;
+        for (int i = 0; i < frames.length; ++i) {
+            long start = System.nanoTime();
+            String text = engine.decode(frames[i], width, height);
+            latencies[i] = System.nanoTime() - start;
+            if (expected.equals(text)) {
+                decoded++;
+            }
+        }
+        Arrays.sort(latencies);
+        return new Result(engine.getName(), format.name(), condition.toString(), frames.length,
+                decoded, percentile(latencies, 0.5) / 1000, percentile(latencies, 0.99) / 1000);
+    }
+
+    /**
+     * Returns the nearest rank percentile of sorted values.
+     */
+    static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Compares the decode rates with those of a baseline run and prints the conditions whose rate
+     * dropped by more than the tolerance.
+     *
+     * @return whether no rate dropped by more than the tolerance
+     */
+    static boolean compare(List<Result> results, Map<String, Result> baseline,
+                           double tolerance) {
+        boolean passed = true;
+        for (Result result : results) {
+            Result previous = baseline.get(result.getKey());
+            if (previous != null && result.getRate() < previous.getRate() - tolerance) {
+                System.err.println(String.format(Locale.US,
+                        "Decode rate dropped from %.2f to %.2f: %s %s %s", previous.getRate(),
+                        result.getRate(), result.mEngine, result.mFormat, result.mCondition));
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static void write(List<Result> results, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(CSV_HEADER);
+            for (Result result : results) {
+                writer.println(result.toCsv());
+            }
+        }
+    }
+
+    /**
+     * Reads the results of an earlier run, keyed by {@link Result#getKey()}.
+     */
+    static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if (!CSV_HEADER.equals(line)) {
+                throw new IOException("Not a decode rate result file: " + file);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Result result = Result.fromCsv(line);
+                results.put(result.getKey(), result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Decode rate and latency of an engine on the frames of one format and condition.
+     */
+    static final class Result {
+        private final String mEngine;
+        private final String mFormat;
+        private final String mCondition;
+        private final int mSamples;
+        private final int mDecoded;
+        private final long mP50Micros;
+        private final long mP99Micros;
+
+        Result(String engine, String format, String condition, int samples, int decoded,
+               long p50Micros, long p99Micros) {
+            mEngine = engine;
+            mFormat = format;
+            mCondition = condition;
+            mSamples = samples;
+            mDecoded = decoded;
+            mP50Micros = p50Micros;
+            mP99Micros = p99Micros;
+        }
+
+        static Result fromCsv(String line) throws IOException {
+            String[] fields = line.split(",");
+            if (fields.length != 8) {
+                throw new IOException("Malformed result: " + line);
+            }
+            try {
+                return new Result(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]),
+                        Integer.parseInt(fields[4]), Long.parseLong(fields[6]),
+                        Long.parseLong(fields[7]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed result: " + line, e);
+            }
+        }
+
+        String toCsv() {
+            return String.format(Locale.US, "%s,%s,%s,%d,%d,%.3f,%d,%d", mEngine, mFormat,
+                    mCondition, mSamples, mDecoded, getRate(), mP50Micros, mP99Micros);
+        }
+
+        String getKey() {
+            return mEngine + ',' + mFormat + ',' + mCondition;
+        }
+
+        double getRate() {
+            return mSamples == 0 ? 0 : (double) mDecoded / mSamples;
+        }
+
+        long getP50Micros() {
+            return mP50Micros;
+        }
+
+        long getP99Micros() {
+            return mP99Micros;
+        }
+    }
+}
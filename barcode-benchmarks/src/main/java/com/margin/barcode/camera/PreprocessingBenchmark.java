@@ -0,0 +1,76 @@
+package com.margin.barcode.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame checks and transforms that run before detection: downscaling the luma plane,
+ * scoring sharpness and comparing the frame with the last detected one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PreprocessingBenchmark {
+    @Param({SyntheticFrames.SIZE_1600_1024, SyntheticFrames.SIZE_1280_720})
+    public String size;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private final SceneChangeDetector mSceneDetector = new SceneChangeDetector();
+    private ByteBuffer mFrame;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mDownscaled;
+    private long mTimestampMillis;
+
+    @Setup
+    public void setUp() {
+        mWidth = SyntheticFrames.parseWidth(size);
+        mHeight = SyntheticFrames.parseHeight(size);
+        mFrame = SyntheticFrames.wrap(SyntheticFrames.createFrame(mWidth, mHeight), direct);
+        mDownscaled = new byte[(mWidth / 2) * (mHeight / 2)];
+        mSceneDetector.isUnchanged(mFrame, mWidth, 0, 0, mWidth, mHeight, 0);
+        mSceneDetector.markDetected(0);
+    }
+
+    @Benchmark
+    public byte[] downscaleLumaBy2() {
+        Nv21.downscaleLuma(mFrame, mWidth, 2, mDownscaled, mWidth / 2, mHeight / 2);
+        return mDownscaled;
+    }
+
+    @Benchmark
+    public byte[] downscaleLumaBy4() {
+        Nv21.downscaleLuma(mFrame, mWidth, 4, mDownscaled, mWidth / 4, mHeight / 4);
+        return mDownscaled;
+    }
+
+    @Benchmark
+    public float sharpness() {
+        return SharpnessGate.measure(mFrame, mWidth, 0, 0, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public boolean sceneChange() {
+        // Advance time slowly so that the reference frame never expires.
+        mTimestampMillis = (mTimestampMillis + 1) % 1000;
+        return mSceneDetector.isUnchanged(mFrame, mWidth, 0, 0, mWidth, mHeight,
+                mTimestampMillis);
+    }
+}
@@ -0,0 +1,151 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic NV21 preview frames for the benchmarks: a textured background, so that the sharpness
+ * and scene checks see realistic gradients, with a barcode drawn in the middle.
+ */
+final class SyntheticFrames {
+    /**
+     * Preview sizes the camera source selects on common devices.
+     */
+    static final String SIZE_1600_1024 = "1600x1024";
+    static final String SIZE_1280_720 = "1280x720";
+
+    private static final byte BLACK = 16;
+    private static final byte WHITE = (byte) 235;
+
+    private SyntheticFrames() {
+    }
+
+    static int parseWidth(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int parseHeight(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    /**
+     * Creates a frame with a deterministic textured background and gray chroma.
+     */
+    static byte[] createFrame(int width, int height) {
+        byte[] frame = new byte[Nv21.bufferSize(width, height)];
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int shade = 96 + ((x / 8 + y / 8) % 2) * 48 + random.nextInt(16);
+                frame[y * width + x] = (byte) shade;
+            }
+        }
+        Nv21.fillNeutralChroma(frame, width, height);
+        return frame;
+    }
+
+    /**
+     * Creates a frame with a barcode centered in it.
+     *
+     * @param moduleSize width of a module in pixels
+     */
+    static byte[] createBarcodeFrame(int width, int height, BarcodeFormat format, int moduleSize)
+            throws WriterException {
+        byte[] frame = createFrame(width, height);
+        BitMatrix matrix = encode(format);
+        boolean linear = matrix.getHeight() == 1;
+        int rowHeight = linear ? height / 3 : moduleSize;
+        int matrixWidth = matrix.getWidth() * moduleSize;
+        int matrixHeight = matrix.getHeight() * rowHeight;
+        drawMatrix(frame, width, matrix, (width - matrixWidth) / 2, (height - matrixHeight) / 2,
+                moduleSize, rowHeight);
+        return frame;
+    }
+
+    /**
+     * Encodes sample contents in a format, with a quiet zone, at one pixel per module.  Linear
+     * formats yield a matrix of a single row.
+     */
+    static BitMatrix encode(BarcodeFormat format) throws WriterException {
+        return new MultiFormatWriter().encode(contents(format), format, 0, 0);
+    }
+
+    /**
+     * Returns the sample contents encoded for a format.
+     */
+    static String contents(BarcodeFormat format) {
+        switch (format) {
+            case EAN_13:
+                return "4006381333931";
+            case EAN_8:
+                return "96385074";
+            case UPC_A:
+                return "036000291452";
+            case ITF:
+                return "00012345678905";
+            case CODABAR:
+                return "A40156B";
+            case QR_CODE:
+            case DATA_MATRIX:
+            case PDF_417:
+            case AZTEC:
+                return "https://example.com/item/0123456789";
+            default:
+                return "SHIP-0012345678";
+        }
+    }
+
+    /**
+     * Returns the text that decoders report for the sample contents of a format.  Codabar readers
+     * strip the start and stop characters.
+     */
+    static String decodedContents(BarcodeFormat format) {
+        String contents = contents(format);
+        if (format == BarcodeFormat.CODABAR) {
+            return contents.substring(1, contents.length() - 1);
+        }
+        return contents;
+    }
+
+    /**
+     * Draws a matrix into the luma plane of a frame, surrounded by a white quiet zone of four
+     * modules.
+     *
+     * @param moduleSize width of a module in pixels
+     * @param rowHeight  height of a matrix row in pixels
+     */
+    static void drawMatrix(byte[] frame, int frameWidth, BitMatrix matrix, int left, int top,
+                           int moduleSize, int rowHeight) {
+        int quiet = 4 * moduleSize;
+        int quietRows = matrix.getHeight() == 1 ? quiet : 4 * rowHeight;
+        int right = left + matrix.getWidth() * moduleSize;
+        int bottom = top + matrix.getHeight() * rowHeight;
+        for (int y = top - quietRows; y < bottom + quietRows; ++y) {
+            for (int x = left - quiet; x < right + quiet; ++x) {
+                boolean inside = x >= left && y >= top && x < right && y < bottom;
+                boolean black = inside &&
+                        matrix.get((x - left) / moduleSize, (y - top) / rowHeight);
+                frame[y * frameWidth + x] = black ? BLACK : WHITE;
+            }
+        }
+    }
+
+    /**
+     * Wraps a frame like the camera backends deliver it: a heap buffer (Camera1) or a direct
+     * buffer (the Camera2 image planes).
+     */
+    static ByteBuffer wrap(byte[] frame, boolean direct) {
+        if (!direct) {
+            return ByteBuffer.wrap(frame);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+        buffer.put(frame);
+        buffer.clear();
+        return buffer;
+    }
+}
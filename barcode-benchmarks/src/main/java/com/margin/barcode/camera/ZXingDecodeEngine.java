@@ -0,0 +1,55 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.HybridBinarizer;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * ZXing decoding of a whole frame, configured like the scanner view of the ZXing fragment: all
+ * formats, a planar luminance source over the luma plane and a hybrid binarizer.
+ */
+final class ZXingDecodeEngine implements DecodeEngine {
+    private final String mName;
+    private final MultiFormatReader mReader = new MultiFormatReader();
+
+    /**
+     * @param tryHarder whether to spend more time per frame looking for a barcode, including
+     *                  rotated linear codes
+     */
+    ZXingDecodeEngine(String name, Collection<BarcodeFormat> formats, boolean tryHarder) {
+        mName = name;
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        if (tryHarder) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        mReader.setHints(hints);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String decode(byte[] frame, int width, int height) {
+        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(frame, width, height,
+                0, 0, width, height, false);
+        try {
+            return mReader.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)))
+                    .getText();
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            mReader.reset();
+        }
+    }
+}
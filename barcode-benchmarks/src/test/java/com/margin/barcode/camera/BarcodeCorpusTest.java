@@ -0,0 +1,60 @@
+package com.margin.barcode.camera;
+
+import com.google.zxing.BarcodeFormat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Rendering of the synthetic barcode corpus.
+ */
+public class BarcodeCorpusTest {
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1024;
+
+    @Test
+    public void renderingIsDeterministic() throws Exception {
+        BarcodeCorpus.Condition condition = new BarcodeCorpus.Condition().withRotation(10)
+                .withBlur(1.0f).withNoise(8).withGlare(0.5f);
+        byte[] first = BarcodeCorpus.render(BarcodeFormat.QR_CODE, condition, WIDTH, HEIGHT, 3);
+        byte[] second = BarcodeCorpus.render(BarcodeFormat.QR_CODE, condition, WIDTH, HEIGHT, 3);
+        byte[] other = BarcodeCorpus.render(BarcodeFormat.QR_CODE, condition, WIDTH, HEIGHT, 4);
+
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(first, other));
+    }
+
+    @Test
+    public void largeSharpCodesDecodeInEveryFormat() throws Exception {
+        DecodeEngine engine = new ZXingDecodeEngine("zxing", BarcodeCorpus.FORMATS, false);
+        BarcodeCorpus.Condition condition = new BarcodeCorpus.Condition().withModuleSize(5);
+        for (BarcodeFormat format : BarcodeCorpus.FORMATS) {
+            for (int seed = 0; seed < 4; ++seed) {
+                byte[] frame = BarcodeCorpus.render(format, condition, WIDTH, HEIGHT, seed);
+                assertEquals(format + ", seed " + seed, SyntheticFrames.decodedContents(format),
+                        engine.decode(frame, WIDTH, HEIGHT));
+            }
+        }
+    }
+
+    @Test
+    public void conditionNamesAreUnique() {
+        List<BarcodeCorpus.Condition> conditions = BarcodeCorpus.conditions();
+        Set<String> names = new HashSet<>();
+        for (BarcodeCorpus.Condition condition : conditions) {
+            names.add(condition.toString());
+        }
+        assertEquals(conditions.size(), names.size());
+        assertEquals("baseline", conditions.get(0).toString());
+        assertEquals("module=1.5 blur=2",
+                new BarcodeCorpus.Condition().withModuleSize(1.5f).withBlur(2).toString());
+    }
+}
@@ -0,0 +1,76 @@
+package com.margin.barcode.camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Result bookkeeping of {@link DecodeRateRunner}.
+ */
+public class DecodeRateRunnerTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void percentileUsesNearestRank() {
+        long[] sorted = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(5, DecodeRateRunner.percentile(sorted, 0.5));
+        assertEquals(10, DecodeRateRunner.percentile(sorted, 0.99));
+        assertEquals(7, DecodeRateRunner.percentile(new long[]{7}, 0.99));
+    }
+
+    @Test
+    public void resultsRoundTripThroughCsv() throws Exception {
+        DecodeRateRunner.Result result = new DecodeRateRunner.Result("zxing", "QR_CODE",
+                "module=1.5 noise=8", 10, 7, 1200, 4500);
+        File file = mFolder.newFile("results.csv");
+        FileWriter writer = new FileWriter(file);
+        writer.write("engine,format,condition,samples,decoded,rate,p50_us,p99_us\n");
+        writer.write(result.toCsv() + "\n");
+        writer.close();
+
+        Map<String, DecodeRateRunner.Result> read = DecodeRateRunner.read(file);
+        DecodeRateRunner.Result copy = read.get(result.getKey());
+        assertEquals(1, read.size());
+        assertEquals(0.7, copy.getRate(), 1e-9);
+        assertEquals(1200, copy.getP50Micros());
+        assertEquals(4500, copy.getP99Micros());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        File file = mFolder.newFile("other.csv");
+        FileWriter writer = new FileWriter(file);
+        writer.write("a,b,c\n");
+        writer.close();
+
+        DecodeRateRunner.read(file);
+    }
+
+    @Test
+    public void onlyDropsBeyondToleranceFail() {
+        DecodeRateRunner.Result baseline = new DecodeRateRunner.Result("zxing", "EAN_13",
+                "baseline", 20, 20, 100, 200);
+        Map<String, DecodeRateRunner.Result> baselines =
+                Collections.singletonMap(baseline.getKey(), baseline);
+        List<DecodeRateRunner.Result> slower = Arrays.asList(new DecodeRateRunner.Result(
+                "zxing", "EAN_13", "baseline", 20, 19, 900, 1800));
+        List<DecodeRateRunner.Result> worse = Arrays.asList(new DecodeRateRunner.Result(
+                "zxing", "EAN_13", "baseline", 20, 17, 100, 200));
+
+        assertTrue(DecodeRateRunner.compare(slower, baselines, 0.05));
+        assertFalse(DecodeRateRunner.compare(worse, baselines, 0.05));
+    }
+}
@@ -0,0 +1,114 @@
+package com.margin.barcode.camera;
+
+/**
+ * Preview size and frame rate requirements derived from the smallest barcode that is expected to
+ * be scanned, instead of a fixed requested size and frame rate.
+ * <p/>
+ * A barcode is resolved if each of its modules (narrowest bars or cells) covers at least
+ * {@link #MIN_PIXELS_PER_MODULE} pixels at the working distance.  Since preview pixels are
+ * square, this only depends on the preview width and the horizontal field of view of the
+ * camera, whichever way the barcode is held.  The lowest preview size that resolves the barcode is
+ * preferred, since every further pixel costs detection time without improving decoding.
+ * <p/>
+ * The target latency bounds the time between two frames: frame rate ranges whose lower bound
+ * (the rate that auto exposure may drop to in low light) keeps up with it are preferred, and among
+ * them the one with the highest frame rate.
+ */
+final class BarcodeResolution {
+    /**
+     * Number of pixels per module below which decoding becomes unreliable.
+     */
+    static final float MIN_PIXELS_PER_MODULE = 2.0f;
+
+    /**
+     * Horizontal field of view assumed for cameras that do not report a plausible one.  This is
+     * typical for the main camera of a phone.
+     */
+    static final float DEFAULT_VIEW_ANGLE = 65.0f;
+
+    private final float mModuleWidthMm;
+    private final float mWorkingDistanceMm;
+    private final int mTargetLatencyMillis;
+
+    /**
+     * @param moduleWidthMm       width of the narrowest module of the smallest expected barcode
+     * @param workingDistanceMm   largest distance between the camera and the barcode
+     * @param targetLatencyMillis longest acceptable time between two frames
+     */
+    BarcodeResolution(float moduleWidthMm, float workingDistanceMm, int targetLatencyMillis) {
+        if (!(moduleWidthMm > 0) || !(workingDistanceMm > 0) || targetLatencyMillis <= 0) {
+            throw new IllegalArgumentException("Invalid barcode resolution: " + moduleWidthMm +
+                    " mm at " + workingDistanceMm + " mm, " + targetLatencyMillis + " ms");
+        }
+        mModuleWidthMm = moduleWidthMm;
+        mWorkingDistanceMm = workingDistanceMm;
+        mTargetLatencyMillis = targetLatencyMillis;
+    }
+
+    /**
+     * Returns the preview width in pixels needed to resolve the barcode, for a camera with the
+     * given horizontal field of view.
+     *
+     * @param viewAngle the horizontal field of view in degrees, or a value outside of (0, 180) if
+     *                  unknown
+     */
+    int getRequiredWidth(float viewAngle) {
+        if (!(viewAngle > 0 && viewAngle < 180)) {
+            viewAngle = DEFAULT_VIEW_ANGLE;
+        }
+        double sceneWidthMm = 2 * mWorkingDistanceMm * Math.tan(Math.toRadians(viewAngle / 2));
+        return (int) Math.ceil(sceneWidthMm * MIN_PIXELS_PER_MODULE / mModuleWidthMm);
+    }
+
+    /**
+     * Returns the lowest frame rate that keeps up with the target latency.
+     */
+    float getMinFps() {
+        return 1000.0f / mTargetLatencyMillis;
+    }
+
+    /**
+     * Returns whether a preview size is preferable to the currently selected one, given the
+     * required width: sizes that resolve the barcode are preferred, the smallest of them, or the
+     * largest size if none does.
+     */
+    static boolean isBetterSize(int width, int height, int selectedWidth, int selectedHeight,
+                                int requiredWidth) {
+        boolean resolves = width >= requiredWidth;
+        boolean selectedResolves = selectedWidth >= requiredWidth;
+        if (resolves != selectedResolves) {
+            return resolves;
+        }
+        long area = (long) width * height;
+        long selectedArea = (long) selectedWidth * selectedHeight;
+        return resolves ? area < selectedArea : area > selectedArea;
+    }
+
+    /**
+     * Returns whether a frame rate range is preferable to the currently selected one: ranges
+     * whose lower bound reaches the minimum frame rate are preferred, the one with the highest
+     * upper bound among them, or the one with the highest lower bound if none does.  The bounds
+     * may be in any unit, as long as the minimum is in the same one.
+     */
+    static boolean isBetterFpsRange(float lower, float upper, float selectedLower,
+                                    float selectedUpper, float minFps) {
+        boolean sustains = lower >= minFps;
+        boolean selectedSustains = selectedLower >= minFps;
+        if (sustains != selectedSustains) {
+            return sustains;
+        }
+        if (sustains) {
+            return upper > selectedUpper || (upper == selectedUpper && lower > selectedLower);
+        }
+        return lower > selectedLower || (lower == selectedLower && upper > selectedUpper);
+    }
+
+    /**
+     * Describes the requirements, such that different requirements have different descriptions.
+     */
+    @Override
+    public String toString() {
+        return "barcode:" + mModuleWidthMm + "mm@" + mWorkingDistanceMm + "mm/" +
+                mTargetLatencyMillis + "ms";
+    }
+}
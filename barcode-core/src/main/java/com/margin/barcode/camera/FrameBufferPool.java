@@ -0,0 +1,133 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-depth pool of camera preview buffers.  Each slot pairs the byte array that is handed to
+ * the camera with the byte buffer that wraps it, so that a frame received from the camera can be
+ * passed on to the detector without a copy.
+ * <p/>
+ * Buffers are borrowed from a {@link PreviewBufferCache} and must be given back with
+ * {@link #release()} once the camera no longer uses them.
+ * <p/>
+ * Slots are found again from the camera's byte array by reference comparison over a small array,
+ * rather than through a hash map, which keeps hashing out of the preview callback.  Callers keep
+ * track of frames by slot index, and the id and timestamp of the frame held by a slot are stored
+ * along with it, so that a slot index is all that needs to be handed between threads.
+ */
+final class FrameBufferPool {
+    /**
+     * Slot index used to signal that no buffer is referenced.
+     */
+    static final int NO_SLOT = -1;
+
+    /**
+     * Smallest useful depth: one buffer for the frame being detected, one for the pending frame and
+     * at least one for the camera to fill in the meantime.
+     */
+    static final int MIN_DEPTH = 3;
+
+    private final PreviewBufferCache mCache;
+    private final byte[][] mArrays;
+    private final ByteBuffer[] mBuffers;
+    private final int[] mFrameIds;
+    private final long[] mTimestampsMillis;
+
+    /**
+     * Borrows {@code depth} buffers of {@code bufferSize} bytes each from the given cache.
+     */
+    FrameBufferPool(int depth, int bufferSize, PreviewBufferCache cache) {
+        if (depth < MIN_DEPTH) {
+            throw new IllegalArgumentException("Invalid buffer pool depth: " + depth);
+        }
+        mCache = cache;
+        mArrays = new byte[depth][];
+        mBuffers = new ByteBuffer[depth];
+        mFrameIds = new int[depth];
+        mTimestampsMillis = new long[depth];
+        for (int i = 0; i < depth; ++i) {
+            // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+            // should guarantee that there will be an array to work with.
+            byte[] byteArray = cache.acquire(bufferSize);
+            ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+            if (!buffer.hasArray() || (buffer.array() != byteArray)) {
+                // I don't think that this will ever happen.  But if it does, then we wouldn't be
+                // passing the preview content to the underlying detector later.
+                throw new IllegalStateException("Failed to create valid buffer for camera source.");
+            }
+            mArrays[i] = byteArray;
+            mBuffers[i] = buffer;
+        }
+    }
+
+    /**
+     * Returns the number of slots in this pool.
+     */
+    int size() {
+        return mArrays.length;
+    }
+
+    /**
+     * Returns the byte array of the given slot, as handed to the camera.
+     */
+    byte[] array(int slot) {
+        return mArrays[slot];
+    }
+
+    /**
+     * Returns the byte buffer wrapping the array of the given slot.
+     */
+    ByteBuffer buffer(int slot) {
+        return mBuffers[slot];
+    }
+
+    /**
+     * Records the id and timestamp of the frame the camera has just written into the given slot.
+     * Must be called by the thread owning the slot, before handing it to another thread.
+     */
+    void setFrameInfo(int slot, int frameId, long timestampMillis) {
+        mFrameIds[slot] = frameId;
+        mTimestampsMillis[slot] = timestampMillis;
+    }
+
+    /**
+     * Returns the id of the frame held by the given slot.
+     */
+    int getFrameId(int slot) {
+        return mFrameIds[slot];
+    }
+
+    /**
+     * Returns the timestamp of the frame held by the given slot.
+     */
+    long getTimestampMillis(int slot) {
+        return mTimestampsMillis[slot];
+    }
+
+    /**
+     * Returns the slot owning the given array, or {@link #NO_SLOT} if the array does not belong to
+     * this pool.
+     */
+    int indexOf(byte[] data) {
+        for (int i = 0; i < mArrays.length; ++i) {
+            if (mArrays[i] == data) {
+                return i;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns all buffers to the cache.  This is only safe to do once the camera has stopped
+     * delivering frames and no frame is being processed.
+     */
+    void release() {
+        for (int i = 0; i < mArrays.length; ++i) {
+            if (mArrays[i] != null) {
+                mCache.release(mArrays[i]);
+                mArrays[i] = null;
+                mBuffers[i] = null;
+            }
+        }
+    }
+}
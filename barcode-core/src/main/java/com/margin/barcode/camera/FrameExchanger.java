@@ -0,0 +1,105 @@
+package com.margin.barcode.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-slot handoff of frames (identified by non-negative buffer slot indices) from
+ * the camera callback to the frame processing thread.
+ * <p/>
+ * Only the most recent frame is kept: offering a frame while another one is still pending
+ * replaces it and hands the replaced slot back to the caller, which can return its buffer to the
+ * camera right away.  The consumer only parks when there is nothing to process, and the producer
+ * only unparks it in that case, so a busy detector costs no thread signalling at all.
+ * <p/>
+ * There must be at most one consumer at a time.  Producers may be concurrent.
+ */
+final class FrameExchanger {
+    /**
+     * Returned when there is no frame.
+     */
+    static final int EMPTY = -1;
+
+    private final AtomicInteger mSlot = new AtomicInteger(EMPTY);
+    private volatile Thread mWaiter;
+    private volatile boolean mClosed;
+
+    /**
+     * Makes a frame available to the consumer.
+     *
+     * @return the slot of the pending frame that was replaced, or {@link #EMPTY}
+     */
+    int offer(int slot) {
+        int replaced = mSlot.getAndSet(slot);
+        if (replaced == EMPTY) {
+            // The consumer may be idle.  If it is busy instead, it picks the frame up without
+            // parking once it is done.
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Takes the pending frame, waiting for one if necessary.
+     *
+     * @return the slot of the frame, or {@link #EMPTY} once the exchanger is closed or the calling
+     * thread is interrupted; a frame that is still pending then can be taken with {@link #poll()}
+     */
+    int take() {
+        if (!mClosed) {
+            int slot = mSlot.getAndSet(EMPTY);
+            if (slot != EMPTY) {
+                return slot;
+            }
+        }
+
+        mWaiter = Thread.currentThread();
+        try {
+            while (true) {
+                // The waiter is published before checking the slot again, so an offer made
+                // after this check will see it and unpark this thread.
+                if (mClosed || Thread.currentThread().isInterrupted()) {
+                    return EMPTY;
+                }
+                int slot = mSlot.getAndSet(EMPTY);
+                if (slot != EMPTY) {
+                    return slot;
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Takes the pending frame without waiting.
+     *
+     * @return the slot of the frame, or {@link #EMPTY}
+     */
+    int poll() {
+        return mSlot.getAndSet(EMPTY);
+    }
+
+    /**
+     * Makes {@link #take()} return {@link #EMPTY} instead of waiting, and wakes up a waiting
+     * consumer.  Frames may still be offered, and can be drained with {@link #poll()}.
+     */
+    void close() {
+        mClosed = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Makes {@link #take()} wait for frames again after {@link #close()}.
+     */
+    void open() {
+        mClosed = false;
+    }
+}
@@ -0,0 +1,822 @@
+package com.margin.barcode.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Frame scheduling and preparation between a {@link FrameSource} and the detector, independent
+ * of the camera API: a Camera1 or Camera2 camera, a replayed recording or a synthetic source in a
+ * test can drive it alike.
+ * <p/>
+ * Sources hand frames over through {@link #onFrameAvailable}.  While a frame is processed, new
+ * frames may arrive; the {@link FrameSchedulingPolicy} decides which of them are held onto as
+ * pending, by default only the most recent one, and the others go straight back to the source.
+ * As soon as processing of a frame is done, processing of the next pending frame starts on the
+ * same thread, without any context switch or wait.
+ * <p/>
+ * Optionally, processing runs in two stages on two threads instead: the preprocessing of the next
+ * frame overlaps with detection on the current one, see {@link #setTwoStage(boolean)}.
+ * <p/>
+ * The processing threads are launched on the first start, through an {@link Executor} that may
+ * be supplied, and are kept parked while the pipeline is stopped until {@link #release()}.
+ * <p/>
+ * Processing a frame applies the optional recorder, region of interest, scene change check and
+ * sharpness gate, crops the frame if needed, makes a downscaled copy if one is set, and hands the
+ * result to the {@link FrameConsumer}.
+ * This class only depends on the JDK, so its throughput and latency can be measured in plain JVM
+ * tests.  The latency of each stage and the dropped frames are recorded in its
+ * {@link PipelineMetrics}, and the spans of each frame in a {@link FrameTracer} if one is set.
+ */
+final class FramePipeline implements FrameSource.FrameListener {
+    /**
+     * Receives the prepared frames, on the processing thread (the second one of two stages).
+     */
+    interface FrameConsumer {
+        /**
+         * Detects on a frame.  The data is only valid during this call.
+         *
+         * @param data        the packed NV21 image of the region, which is
+         *                    {@code region.getWidth()} by {@code region.getHeight()} pixels
+         * @param region      the part of the source frame the image covers, and its rotation
+         * @param scaledData  a grayscale NV21 copy of the image reduced by the scale factor, see
+         *                    {@link Nv21#downscaledSize(int, int)} for its size, or null
+         * @param scaleFactor the factor set by {@link #setDownscale(int)}, 1 if there is no
+         *                    downscaled copy
+         */
+        void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData, int scaleFactor,
+                     int frameId, long timestampMillis);
+
+        /**
+         * Called when processing a frame failed, or recording it.  The pipeline moves on to the
+         * next frame, or, if recording failed, detects on the frame and stops recording.
+         */
+        void onError(Throwable t);
+    }
+
+    /**
+     * Prepared frames of the two stages: one being detected on, and one being prepared or ready
+     * for detection.
+     */
+    private static final int PREPARED_FRAMES = 2;
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FramePipeline");
+            // Parked workers must not keep a plain JVM alive.
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final FrameConsumer mConsumer;
+    private final SharpnessGate mSharpnessGate;
+    private final SceneChangeDetector mSceneChangeDetector;
+
+    // Hands the slots of the frames received from the source over to the processing thread.
+    private final FrameSchedulingPolicy mPolicy;
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    /**
+     * When the frame of each slot was received from the source and when it became pending, as
+     * {receivedNanos, pendingNanos} pairs.  Written by the thread delivering frames before it
+     * hands a slot over, and read by the processing thread after it took the slot, like the data
+     * of the slot itself.  Grown the first time a slot is seen, never shrunk.
+     */
+    private volatile long[] mSlotNanos = new long[0];
+
+    private volatile boolean mCropChroma;
+    private volatile int mDownscaleFactor = 1;
+    /**
+     * Normalized region of the upright frame as {left, top, right, bottom}, or null for the whole
+     * frame.  Replaced as a whole, never modified.
+     */
+    private volatile float[] mRegionOfInterest;
+    private final AtomicReference<FrameRecorder> mRecorder = new AtomicReference<>();
+    private volatile FrameTracer mTracer;
+
+    /**
+     * The frames being prepared or detected on, with the buffers they are cropped into.  A single
+     * stage only uses the first one.  Each is used by one thread at a time, and handed between
+     * the stages through the queues.
+     */
+    private final PreparedFrame[] mFrames = new PreparedFrame[PREPARED_FRAMES];
+    // Prepared frames that preprocessing may fill, and those ready for detection.
+    private final SlotQueue mFreeFrames = new SlotQueue(PREPARED_FRAMES);
+    private final SlotQueue mReadyFrames = new SlotQueue(PREPARED_FRAMES);
+
+    private boolean mTwoStage;
+    private Executor mExecutor = new ThreadPerTaskExecutor(DEFAULT_THREAD_FACTORY);
+    // Run the single stage, or the first of two, and the second of two.
+    private final Worker mWorker = new Worker();
+    private final Worker mDetectWorker = new Worker();
+    private boolean mRunning;
+
+    // Set by start(), read by the processing threads it starts.
+    private FrameSource mSource;
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+
+    /**
+     * @param sharpnessGate       skips blurred frames, or null
+     * @param sceneChangeDetector skips frames of an unchanged scene, or null
+     */
+    FramePipeline(FrameConsumer consumer, SharpnessGate sharpnessGate,
+                  SceneChangeDetector sceneChangeDetector) {
+        this(consumer, sharpnessGate, sceneChangeDetector, FrameSchedulingPolicy.latestWins());
+    }
+
+    /**
+     * @param policy decides which frames are processed when they arrive faster than they are
+     *               processed
+     */
+    FramePipeline(FrameConsumer consumer, SharpnessGate sharpnessGate,
+                  SceneChangeDetector sceneChangeDetector, FrameSchedulingPolicy policy) {
+        mConsumer = consumer;
+        mSharpnessGate = sharpnessGate;
+        mSceneChangeDetector = sceneChangeDetector;
+        mPolicy = policy;
+        for (int i = 0; i < PREPARED_FRAMES; ++i) {
+            mFrames[i] = new PreparedFrame();
+        }
+    }
+
+    /**
+     * Sets whether frames are processed in two stages on two threads: one prepares the next
+     * frame (recording, cropping, the scene change check, the sharpness gate and downscaling)
+     * while the other runs the detector on the current one.  On devices with spare cores this
+     * raises the frame rate whenever preprocessing takes a noticeable share of the frame time.  A
+     * prepared frame waits for detection on the previous one to finish, so it is at most one
+     * detection older than the frame a single stage would pick up.  The change applies from the
+     * next start.
+     */
+    void setTwoStage(boolean twoStage) {
+        mTwoStage = twoStage;
+    }
+
+    /**
+     * Sets the executor that the processing threads are launched on.  Each thread runs until the
+     * pipeline is released, so the executor must give each task a thread of its own: one, or
+     * two for two stages.  Must be called before the first start.
+     */
+    void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets the factory that the processing threads are created with, to set their names,
+     * priority or thread group.  Must be called before the first start.
+     */
+    void setThreadFactory(ThreadFactory threadFactory) {
+        mExecutor = new ThreadPerTaskExecutor(threadFactory);
+    }
+
+    /**
+     * Returns the largest number of source frames this pipeline holds at once: the frames
+     * pending with the scheduling policy, and those being processed.
+     */
+    int getHeldFrameCount() {
+        return mPolicy.getCapacity() + (mTwoStage ? PREPARED_FRAMES : 1);
+    }
+
+    /**
+     * Sets whether the chroma plane is copied along with the luma plane when frames are cropped.
+     */
+    void setCropChroma(boolean cropChroma) {
+        mCropChroma = cropChroma;
+    }
+
+    /**
+     * Sets the factor by which a grayscale copy of each frame to be detected on is reduced, for a
+     * cheaper first detection pass, or 1 for no copy.  The copy is made while preprocessing, so
+     * with two stages it is off the detection thread.  The change applies from the next frame on.
+     *
+     * @param factor 1, 2 or 4
+     */
+    void setDownscale(int factor) {
+        if (factor != 1 && factor != 2 && factor != 4) {
+            throw new IllegalArgumentException("Invalid downscale factor: " + factor);
+        }
+        mDownscaleFactor = factor;
+    }
+
+    /**
+     * Restricts processing to a region given in normalized coordinates of the upright frame.  The
+     * change applies from the next frame on.
+     */
+    void setRegionOfInterest(float left, float top, float right, float bottom) {
+        mRegionOfInterest = new float[]{left, top, right, bottom};
+    }
+
+    void clearRegionOfInterest() {
+        mRegionOfInterest = null;
+    }
+
+    /**
+     * Sets the recorder that the frames are written to before they are processed, or null.
+     */
+    void setRecorder(FrameRecorder recorder) {
+        mRecorder.set(recorder);
+    }
+
+    /**
+     * Sets the tracer that the camera callback, recycling, preprocessing and detection spans of
+     * each frame are recorded to, or null.
+     */
+    void setTracer(FrameTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Returns the latency histograms and frame counters of this pipeline, which live as long as
+     * the pipeline and are not reset when it is restarted.
+     */
+    PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Starts processing the frames of a source on the processing thread, or two of them for two
+     * stages, which are launched the first time they are needed.  Must be called before the
+     * source starts delivering frames, and not again before {@link #stop()}.
+     *
+     * @param rotation the rotation of the frames, see {@code Frame.Metadata#getRotation()}
+     */
+    void start(FrameSource source, int width, int height, int rotation) {
+        // Frames left pending belong to a source that is closed by now.
+        while (mPolicy.poll() != FrameSchedulingPolicy.EMPTY) {
+            // Dropped.
+        }
+        mSource = source;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mPolicy.open();
+        mRunning = true;
+        if (!mTwoStage) {
+            mWorker.begin(mProcessFrames);
+            return;
+        }
+
+        mReadyFrames.clear();
+        mFreeFrames.clear();
+        for (int i = 0; i < PREPARED_FRAMES; ++i) {
+            mFreeFrames.put(i);
+        }
+        mDetectWorker.begin(mDetectFrames);
+        mWorker.begin(mPreprocessFrames);
+    }
+
+    /**
+     * Stops processing and waits for the processing threads to finish the frames they are
+     * working on.  The source may deliver frames until it is closed; they are dropped on the next
+     * start, as are frames prepared but not detected on yet.
+     */
+    void stop() {
+        mPolicy.close();
+        mFreeFrames.close();
+        mReadyFrames.close();
+        if (!mRunning) {
+            return;
+        }
+        // Wait for the stages to complete to ensure that we can't have multiple threads
+        // processing at the same time (i.e., which would happen if start was called too quickly
+        // after stop).
+        mWorker.awaitIdle();
+        mDetectWorker.awaitIdle();
+        mRunning = false;
+        mSource = null;
+    }
+
+    /**
+     * Stops processing, and lets the processing threads finish.  The pipeline cannot be started
+     * again.
+     */
+    void release() {
+        stop();
+        mWorker.release();
+        mDetectWorker.release();
+    }
+
+    /**
+     * Returns whether the pipeline is processing frames.
+     */
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Takes a new frame from a source.  A frame that the scheduling policy drops for it, or the
+     * new frame itself if the policy drops that, goes straight back to the source.
+     */
+    @Override
+    public void onFrameAvailable(FrameSource source, int slot, long receivedNanos) {
+        long pendingNanos = System.nanoTime();
+        long[] slotNanos = mSlotNanos;
+        if (2 * slot + 1 >= slotNanos.length) {
+            slotNanos = Arrays.copyOf(slotNanos, 2 * slot + 2);
+            mSlotNanos = slotNanos;
+        }
+        slotNanos[2 * slot] = receivedNanos;
+        slotNanos[2 * slot + 1] = pendingNanos;
+
+        FrameTracer tracer = mTracer;
+        // Read while the slot cannot be processed and recycled yet.
+        int frameId = tracer != null ? source.getFrameId(slot) : FrameTracer.NO_FRAME;
+        int dropped = mPolicy.offer(slot);
+        mMetrics.record(PipelineMetrics.STAGE_CAMERA_TO_PENDING, pendingNanos - receivedNanos);
+        trace(tracer, FrameTracer.SPAN_CAMERA_CALLBACK, receivedNanos, frameId);
+        if (dropped != FrameSchedulingPolicy.EMPTY) {
+            mMetrics.recordDroppedFrame();
+            recycle(source, dropped, tracer);
+        }
+    }
+
+    /**
+     * Gives a frame back to its source, tracing it if a tracer is given.
+     */
+    private static void recycle(FrameSource source, int slot, FrameTracer tracer) {
+        if (tracer == null) {
+            source.recycle(slot);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        int frameId = source.getFrameId(slot);
+        source.recycle(slot);
+        tracer.record(FrameTracer.SPAN_RECYCLE, startNanos, frameId);
+    }
+
+    private final Runnable mProcessFrames = new Runnable() {
+        @Override
+        public void run() {
+            processFrames();
+        }
+    };
+
+    private final Runnable mPreprocessFrames = new Runnable() {
+        @Override
+        public void run() {
+            preprocessFrames();
+        }
+    };
+
+    private final Runnable mDetectFrames = new Runnable() {
+        @Override
+        public void run() {
+            detectFrames();
+        }
+    };
+
+    /**
+     * As long as the pipeline is running, this processes frames continuously.  The next pending
+     * frame is either immediately available or hasn't been received yet.  Once it is available,
+     * we take its slot and process that frame.  It immediately loops back for the next frame
+     * without pausing.
+     * <p/>
+     * If processing takes longer than the time in between new frames from the source, this loop
+     * runs without ever waiting on a frame, avoiding any context switching or frame acquisition
+     * latency.
+     */
+    private void processFrames() {
+        FrameSource source = mSource;
+        resetSceneChangeDetector();
+        PreparedFrame frame = mFrames[0];
+
+        while (true) {
+            int slot = takeSlot(source);
+            if (slot == FrameSchedulingPolicy.EMPTY) {
+                // Exit the loop once the pipeline is stopped.
+                return;
+            }
+
+            mMetrics.recordProcessedFrame();
+            frame.mSlot = slot;
+            try {
+                if (prepareFrame(source, frame)) {
+                    detectFrame(frame);
+                }
+            } catch (Throwable t) {
+                mMetrics.recordFailedFrame();
+                mConsumer.onError(t);
+            } finally {
+                release(source, frame);
+            }
+        }
+    }
+
+    /**
+     * The first of two stages: prepares frames as long as the pipeline is running, and hands them
+     * to {@link #detectFrames()}.  A free prepared frame is taken before the next pending frame,
+     * so that the pending frame is as recent as possible once preparing it can start.
+     */
+    private void preprocessFrames() {
+        FrameSource source = mSource;
+        resetSceneChangeDetector();
+
+        while (true) {
+            int index = mFreeFrames.take();
+            if (index == SlotQueue.EMPTY) {
+                return;
+            }
+            int slot = takeSlot(source);
+            if (slot == FrameSchedulingPolicy.EMPTY) {
+                return;
+            }
+
+            mMetrics.recordProcessedFrame();
+            PreparedFrame frame = mFrames[index];
+            frame.mSlot = slot;
+            boolean ready = false;
+            try {
+                ready = prepareFrame(source, frame);
+            } catch (Throwable t) {
+                mMetrics.recordFailedFrame();
+                mConsumer.onError(t);
+            }
+            if (!ready) {
+                release(source, frame);
+                mFreeFrames.put(index);
+            } else if (!mReadyFrames.put(index)) {
+                // Stopped.
+                release(source, frame);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The second of two stages: detects on the frames prepared by {@link #preprocessFrames()} as
+     * long as the pipeline is running.
+     */
+    private void detectFrames() {
+        FrameSource source = mSource;
+
+        while (true) {
+            int index = mReadyFrames.take();
+            if (index == SlotQueue.EMPTY) {
+                return;
+            }
+
+            PreparedFrame frame = mFrames[index];
+            try {
+                detectFrame(frame);
+            } catch (Throwable t) {
+                mMetrics.recordFailedFrame();
+                mConsumer.onError(t);
+            } finally {
+                release(source, frame);
+            }
+            mFreeFrames.put(index);
+        }
+    }
+
+    private void resetSceneChangeDetector() {
+        if (mSceneChangeDetector != null) {
+            // The last detected frame may be from a previous run.
+            mSceneChangeDetector.reset();
+        }
+    }
+
+    /**
+     * Takes the next frame to process, giving back those the scheduling policy drops as expired.
+     *
+     * @return the slot of the frame, or {@link FrameSchedulingPolicy#EMPTY} once the pipeline is
+     * stopped
+     */
+    private int takeSlot(FrameSource source) {
+        while (true) {
+            // Taking the slot clears it from the policy, which ensures that this frame isn't
+            // recycled back to the source before we are done using that data.
+            int slot = mPolicy.take();
+            if (slot == FrameSchedulingPolicy.EMPTY
+                    || !mPolicy.isExpired(mSlotNanos[2 * slot], System.nanoTime())) {
+                return slot;
+            }
+            mMetrics.recordDroppedFrame();
+            recycle(source, slot, mTracer);
+        }
+    }
+
+    /**
+     * Gives the source frame of a prepared frame back, unless it was already.
+     */
+    private void release(FrameSource source, PreparedFrame frame) {
+        if (frame.mSlot != FrameSchedulingPolicy.EMPTY) {
+            recycle(source, frame.mSlot, mTracer);
+            frame.mSlot = FrameSchedulingPolicy.EMPTY;
+        }
+    }
+
+    /**
+     * Prepares the source frame in the slot of a prepared frame for detection.  If the frame is
+     * cropped, the source frame is given back right away and the slot cleared.
+     *
+     * @return whether the frame is to be detected on
+     */
+    private boolean prepareFrame(FrameSource source, PreparedFrame frame) {
+        long startNanos = System.nanoTime();
+        FrameTracer tracer = mTracer;
+        int slot = frame.mSlot;
+        // Read before the slot may go back to the source and be reused.
+        long[] slotNanos = mSlotNanos;
+        frame.mReceivedNanos = slotNanos[2 * slot];
+        frame.mPendingNanos = slotNanos[2 * slot + 1];
+        int frameId = source.getFrameId(slot);
+        long timestampMillis = source.getTimestampMillis(slot);
+        frame.mFrameId = frameId;
+        frame.mTimestampMillis = timestampMillis;
+        ByteBuffer data = source.getData(slot);
+        int rowStride = source.getRowStride(slot);
+
+        FrameRecorder recorder = mRecorder.get();
+        if (recorder != null) {
+            try {
+                recorder.record(data, rowStride, mWidth, mHeight, source.hasChroma(), frameId,
+                        timestampMillis, mRotation);
+            } catch (IOException e) {
+                abandonRecording(recorder, e);
+            }
+        }
+
+        FrameRegion region = frame.mRegion;
+        float[] regionOfInterest = mRegionOfInterest;
+        if (regionOfInterest == null) {
+            region.setFullFrame(mWidth, mHeight, mRotation);
+        } else {
+            region.setNormalized(mWidth, mHeight, mRotation, regionOfInterest[0],
+                    regionOfInterest[1], regionOfInterest[2], regionOfInterest[3]);
+        }
+
+        if (mSceneChangeDetector != null && mSceneChangeDetector.isUnchanged(data, rowStride,
+                region.getLeft(), region.getTop(), region.getWidth(), region.getHeight(),
+                timestampMillis)) {
+            // Nothing moved since the last detection, so its results still hold.
+            trace(tracer, FrameTracer.SPAN_PREPROCESS, startNanos, frameId);
+            return false;
+        }
+
+        if (mSharpnessGate != null && !mSharpnessGate.accept(data, rowStride, region.getLeft(),
+                region.getTop(), region.getWidth(), region.getHeight())) {
+            // Too blurred to be worth detecting on; the frame is recycled by the caller.
+            trace(tracer, FrameTracer.SPAN_PREPROCESS, startNanos, frameId);
+            return false;
+        }
+
+        if (!region.isFullFrame() || rowStride != mWidth) {
+            // Cropping also packs the rows of sources that pad them, which the detector does not
+            // expect.
+            data = cropFrame(frame, data, rowStride, source.hasChroma());
+
+            // Detection only needs the cropped copy, so the frame can go back to the source
+            // right away.
+            recycle(source, slot, tracer);
+            frame.mSlot = FrameSchedulingPolicy.EMPTY;
+        }
+        frame.mData = data;
+        int factor = mDownscaleFactor;
+        frame.mScaleFactor = factor;
+        frame.mScaledData = factor > 1 ? downscaleFrame(frame, data, factor) : null;
+
+        if (mSceneChangeDetector != null) {
+            mSceneChangeDetector.markDetected(timestampMillis);
+        }
+        trace(tracer, FrameTracer.SPAN_PREPROCESS, startNanos, frameId);
+        return true;
+    }
+
+    /**
+     * Stops a recording that failed, most likely because storage is full, so that the failure
+     * does not repeat on every frame.  The frames recorded until then stay readable.
+     */
+    private void abandonRecording(FrameRecorder recorder, IOException e) {
+        mConsumer.onError(e);
+        if (!mRecorder.compareAndSet(recorder, null)) {
+            // Replaced meanwhile, and closed by whoever replaced it.
+            return;
+        }
+        try {
+            recorder.close();
+        } catch (IOException closeError) {
+            mConsumer.onError(closeError);
+        }
+    }
+
+    /**
+     * Hands a prepared frame to the consumer.
+     */
+    private void detectFrame(PreparedFrame frame) {
+        long detectNanos = System.nanoTime();
+        mMetrics.record(PipelineMetrics.STAGE_PENDING_TO_DETECT,
+                detectNanos - frame.mPendingNanos);
+        mMetrics.setFrameReceivedNanos(frame.mReceivedNanos);
+        mConsumer.onFrame(frame.mData, frame.mRegion, frame.mScaledData, frame.mScaleFactor,
+                frame.mFrameId, frame.mTimestampMillis);
+        mMetrics.record(PipelineMetrics.STAGE_DETECT, System.nanoTime() - detectNanos);
+        trace(mTracer, FrameTracer.SPAN_DETECT, detectNanos, frame.mFrameId);
+    }
+
+    private static void trace(FrameTracer tracer, int span, long startNanos, int frameId) {
+        if (tracer != null) {
+            tracer.record(span, startNanos, frameId);
+        }
+    }
+
+    /**
+     * Copies the current region of the given frame into the reused crop buffer of a prepared
+     * frame.  Without a chroma plane to copy, the chroma of the cropped frame is left gray.
+     */
+    private ByteBuffer cropFrame(PreparedFrame frame, ByteBuffer data, int rowStride,
+                                 boolean hasChroma) {
+        FrameRegion region = frame.mRegion;
+        int width = region.getWidth();
+        int height = region.getHeight();
+        boolean copyChroma = mCropChroma && hasChroma;
+        if (width != frame.mCropWidth || height != frame.mCropHeight
+                || copyChroma != frame.mCropHasChroma) {
+            int size = Nv21.bufferSize(width, height);
+            if (frame.mCropArray == null || frame.mCropArray.length < size) {
+                frame.mCropArray = new byte[size];
+                frame.mCropBuffer = ByteBuffer.wrap(frame.mCropArray);
+            }
+            if (!copyChroma) {
+                Nv21.fillNeutralChroma(frame.mCropArray, width, height);
+            }
+            frame.mCropWidth = width;
+            frame.mCropHeight = height;
+            frame.mCropHasChroma = copyChroma;
+        }
+        Nv21.crop(data, rowStride, mHeight, region.getLeft(), region.getTop(), width, height,
+                frame.mCropArray, copyChroma);
+        return frame.mCropBuffer;
+    }
+
+    /**
+     * Writes a grayscale copy of the packed image of a prepared frame, reduced by a factor, into
+     * the reused scaled buffer of the frame.
+     */
+    private static ByteBuffer downscaleFrame(PreparedFrame frame, ByteBuffer data, int factor) {
+        FrameRegion region = frame.mRegion;
+        int width = Nv21.downscaledSize(region.getWidth(), factor);
+        int height = Nv21.downscaledSize(region.getHeight(), factor);
+        if (width != frame.mScaledWidth || height != frame.mScaledHeight) {
+            int size = Nv21.bufferSize(width, height);
+            if (frame.mScaledArray == null || frame.mScaledArray.length < size) {
+                frame.mScaledArray = new byte[size];
+                frame.mScaledBuffer = ByteBuffer.wrap(frame.mScaledArray);
+            }
+            Nv21.fillNeutralChroma(frame.mScaledArray, width, height);
+            frame.mScaledWidth = width;
+            frame.mScaledHeight = height;
+        }
+        Nv21.downscaleLuma(data, region.getWidth(), factor, frame.mScaledArray, width, height);
+        return frame.mScaledBuffer;
+    }
+
+    /**
+     * A processing thread that runs one stage per start, and parks in between.  Launched on the
+     * executor by the first start, it runs until released.
+     */
+    private final class Worker implements Runnable {
+        // Guarded by this.
+        private boolean mLaunched;
+        private Runnable mStage;
+        private boolean mBusy;
+        private boolean mReleased;
+
+        /**
+         * Runs a stage on this worker, launching it first if needed.
+         */
+        synchronized void begin(Runnable stage) {
+            if (mReleased) {
+                throw new IllegalStateException("Frame pipeline released");
+            }
+            mStage = stage;
+            mBusy = true;
+            if (!mLaunched) {
+                mLaunched = true;
+                try {
+                    mExecutor.execute(this);
+                } catch (RuntimeException e) {
+                    mLaunched = false;
+                    mStage = null;
+                    mBusy = false;
+                    throw e;
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until the stage begun last has returned.
+         */
+        synchronized void awaitIdle() {
+            boolean interrupted = false;
+            while (mBusy && mLaunched) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable stage;
+                synchronized (this) {
+                    try {
+                        while (mStage == null && !mReleased) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        // The executor is shutting down; a later start launches a new thread.
+                        mLaunched = false;
+                        mBusy = false;
+                        notifyAll();
+                        return;
+                    }
+                    if (mReleased) {
+                        mLaunched = false;
+                        notifyAll();
+                        return;
+                    }
+                    stage = mStage;
+                    mStage = null;
+                }
+                boolean returned = false;
+                try {
+                    stage.run();
+                    returned = true;
+                } finally {
+                    synchronized (this) {
+                        mBusy = mStage != null;
+                        // A stage that threw ends this thread; a later start launches a new one.
+                        mLaunched = returned;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs each task on a new thread of a factory.
+     */
+    private static final class ThreadPerTaskExecutor implements Executor {
+        private final ThreadFactory mThreadFactory;
+
+        ThreadPerTaskExecutor(ThreadFactory threadFactory) {
+            mThreadFactory = threadFactory;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mThreadFactory.newThread(command).start();
+        }
+    }
+
+    /**
+     * A frame prepared for detection.  The crop and scaled buffers are reused from frame to frame,
+     * and only reallocated when the region of interest grows.
+     */
+    private static final class PreparedFrame {
+        final FrameRegion mRegion = new FrameRegion();
+        byte[] mCropArray;
+        ByteBuffer mCropBuffer;
+        int mCropWidth;
+        int mCropHeight;
+        boolean mCropHasChroma;
+        byte[] mScaledArray;
+        ByteBuffer mScaledBuffer;
+        int mScaledWidth;
+        int mScaledHeight;
+
+        /**
+         * The source frame this was prepared from, until it goes back to the source, or
+         * {@link FrameSchedulingPolicy#EMPTY}.
+         */
+        int mSlot = FrameSchedulingPolicy.EMPTY;
+        // The data to detect on: the crop buffer, or the data of the source frame.
+        ByteBuffer mData;
+        // The scaled buffer, or null if the scale factor is 1.
+        ByteBuffer mScaledData;
+        int mScaleFactor;
+        int mFrameId;
+        long mTimestampMillis;
+        long mReceivedNanos;
+        long mPendingNanos;
+    }
+}
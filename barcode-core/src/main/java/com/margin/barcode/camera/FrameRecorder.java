@@ -0,0 +1,159 @@
+package com.margin.barcode.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends preview frames, as seen by frame processing, to a memory-mapped file, so that they can
+ * be replayed later with {@link FrameReplaySource}.  Writing a frame is a plain memory copy; the
+ * system writes the pages back to the file in the background.
+ * <p/>
+ * The file starts with a header of {@link #MAGIC} and {@link #VERSION}, followed by one record
+ * per frame: its width, height, flags ({@link #FLAG_CHROMA}), id, timestamp and rotation (see
+ * {@link #RECORD_HEADER_SIZE}), then its packed luma plane and, if present, its NV21 chroma
+ * plane.  All values are little endian.
+ * <p/>
+ * Frames are written from the frame processing thread, and the recorder may be closed from any
+ * other thread.
+ */
+final class FrameRecorder implements Closeable {
+    static final int MAGIC = 0x3132564E; // "NV21"
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 28;
+    static final int FLAG_CHROMA = 1;
+
+    /**
+     * Size of the regions of the file mapped at once.  The file grows by this much whenever a
+     * frame does not fit into the current region, and is truncated to its content when closed.
+     */
+    private static final int MAP_SIZE = 32 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mMaxBytes;
+
+    // Guarded by "this".
+    private MappedByteBuffer mMap;
+    private long mSize;
+    private int mFrameCount;
+    private boolean mClosed;
+
+    /**
+     * Creates the file, replacing an existing one.
+     *
+     * @param maxBytes size limit of the file, after which further frames are dropped
+     */
+    FrameRecorder(File file, long maxBytes) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mMaxBytes = maxBytes;
+        try {
+            mChannel.truncate(0);
+            ensureCapacity(FILE_HEADER_SIZE);
+            mMap.putInt(MAGIC);
+            mMap.putInt(VERSION);
+            mSize = FILE_HEADER_SIZE;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param data      the frame, a luma plane with rows {@code rowStride} bytes apart, optionally
+     *                  followed by an NV21 chroma plane with the same row stride
+     * @param hasChroma whether to record the chroma plane
+     * @param rotation  the rotation of the frame, see {@code Frame.Metadata#getRotation()}
+     * @return false if the frame was dropped because the size limit is reached or the recorder is
+     * closed
+     */
+    synchronized boolean record(ByteBuffer data, int rowStride, int width, int height,
+                                boolean hasChroma, int frameId, long timestampMillis,
+                                int rotation) throws IOException {
+        if (mClosed) {
+            return false;
+        }
+        int frameSize = hasChroma ? Nv21.bufferSize(width, height) : width * height;
+        if (mSize + RECORD_HEADER_SIZE + frameSize > mMaxBytes) {
+            return false;
+        }
+        ensureCapacity(RECORD_HEADER_SIZE + frameSize);
+
+        mMap.putInt(width);
+        mMap.putInt(height);
+        mMap.putInt(hasChroma ? FLAG_CHROMA : 0);
+        mMap.putInt(frameId);
+        mMap.putLong(timestampMillis);
+        mMap.putInt(rotation);
+
+        ByteBuffer src = data.duplicate();
+        for (int y = 0; y < height; ++y) {
+            copyRow(src, y * rowStride, width);
+        }
+        if (hasChroma) {
+            int chromaWidth = 2 * ((width + 1) / 2);
+            int chromaRows = (height + 1) / 2;
+            for (int y = 0; y < chromaRows; ++y) {
+                copyRow(src, (height + y) * rowStride, chromaWidth);
+            }
+        }
+        mSize += RECORD_HEADER_SIZE + frameSize;
+        mFrameCount++;
+        return true;
+    }
+
+    /**
+     * Returns the number of frames recorded so far.
+     */
+    synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Truncates the file to the recorded frames and closes it.  Frames recorded after this are
+     * dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mMap != null) {
+                mMap.force();
+                mMap = null;
+            }
+            mChannel.truncate(mSize);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void copyRow(ByteBuffer src, int offset, int length) {
+        src.limit(offset + length).position(offset);
+        mMap.put(src);
+        src.limit(src.capacity());
+    }
+
+    /**
+     * Makes sure that the mapped region has room for the given number of bytes after the current
+     * end of the file, mapping the next region if necessary.
+     */
+    private void ensureCapacity(int bytes) throws IOException {
+        if (mMap != null && mMap.remaining() >= bytes) {
+            return;
+        }
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, mSize, Math.max(MAP_SIZE, bytes));
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
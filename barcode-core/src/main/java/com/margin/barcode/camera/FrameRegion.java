@@ -0,0 +1,189 @@
+package com.margin.barcode.camera;
+
+/**
+ * Describes which part of a camera preview frame was handed to the detector, so that detection
+ * results can be mapped back to the coordinates of the full frame.
+ * <p/>
+ * The region itself is kept in sensor coordinates (as the frame is delivered by the camera), while
+ * the mapping works on upright coordinates (after applying the frame rotation), which is what
+ * detectors report and what {@code GraphicOverlay} expects.
+ */
+public final class FrameRegion {
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mRotation;
+    private int mLeft;
+    private int mTop;
+    private int mWidth;
+    private int mHeight;
+    private int mOffsetX;
+    private int mOffsetY;
+    private int mScale = 1;
+
+    /**
+     * Sets this region to cover the whole frame.
+     */
+    void setFullFrame(int frameWidth, int frameHeight, int rotation) {
+        set(frameWidth, frameHeight, rotation, 0, 0, frameWidth, frameHeight);
+    }
+
+    /**
+     * Sets this region to the part of the frame covered by a rectangle given in normalized
+     * (0 to 1) upright coordinates.  The region is aligned to even pixel coordinates so that the
+     * chroma samples of a cropped NV21 image stay aligned with their pixels.
+     */
+    void setNormalized(int frameWidth, int frameHeight, int rotation,
+                       float left, float top, float right, float bottom) {
+        // Convert the upright rectangle to sensor coordinates, undoing the frame rotation.
+        float x0, y0, x1, y1;
+        switch (rotation) {
+            case 1:
+                x0 = top;
+                x1 = bottom;
+                y0 = 1 - right;
+                y1 = 1 - left;
+                break;
+            case 2:
+                x0 = 1 - right;
+                x1 = 1 - left;
+                y0 = 1 - bottom;
+                y1 = 1 - top;
+                break;
+            case 3:
+                x0 = 1 - bottom;
+                x1 = 1 - top;
+                y0 = left;
+                y1 = right;
+                break;
+            default:
+                x0 = left;
+                x1 = right;
+                y0 = top;
+                y1 = bottom;
+        }
+
+        int l = ((int) (x0 * frameWidth)) & ~1;
+        int t = ((int) (y0 * frameHeight)) & ~1;
+        int r = Math.min(frameWidth, (int) Math.ceil(x1 * frameWidth));
+        int b = Math.min(frameHeight, (int) Math.ceil(y1 * frameHeight));
+        int w = Math.max(2, (r - l + 1) & ~1);
+        int h = Math.max(2, (b - t + 1) & ~1);
+        set(frameWidth, frameHeight, rotation, l, t,
+                Math.min(w, frameWidth - l), Math.min(h, frameHeight - t));
+    }
+
+    /**
+     * Sets this region to a rectangle of the frame in sensor coordinates, which should start at
+     * even coordinates.
+     */
+    void set(int frameWidth, int frameHeight, int rotation,
+             int left, int top, int width, int height) {
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mRotation = rotation;
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mScale = 1;
+
+        // Rotating a translation gives a translation, so mapping an upright point of the region
+        // to the upright full frame is a plain offset.
+        switch (rotation) {
+            case 1:
+                mOffsetX = frameHeight - top - height;
+                mOffsetY = left;
+                break;
+            case 2:
+                mOffsetX = frameWidth - left - width;
+                mOffsetY = frameHeight - top - height;
+                break;
+            case 3:
+                mOffsetX = top;
+                mOffsetY = frameWidth - left - width;
+                break;
+            default:
+                mOffsetX = left;
+                mOffsetY = top;
+        }
+    }
+
+    /**
+     * Sets the factor by which the region was reduced before detection.  Coordinates are scaled up
+     * by this factor before being offset to the full frame.
+     */
+    void setScale(int scale) {
+        mScale = scale;
+    }
+
+    /**
+     * Returns whether this region covers the whole frame.
+     */
+    public boolean isFullFrame() {
+        return mWidth == mFrameWidth && mHeight == mFrameHeight;
+    }
+
+    /**
+     * Returns whether mapping coordinates leaves them unchanged, i.e. the region covers the whole
+     * frame at full resolution.
+     */
+    public boolean isIdentity() {
+        return mScale == 1 && isFullFrame();
+    }
+
+    /**
+     * Returns the left edge of the region, in sensor coordinates of the full frame.
+     */
+    public int getLeft() {
+        return mLeft;
+    }
+
+    /**
+     * Returns the top edge of the region, in sensor coordinates of the full frame.
+     */
+    public int getTop() {
+        return mTop;
+    }
+
+    /**
+     * Returns the width of the region, in sensor coordinates.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the region, in sensor coordinates.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the factor by which the region was reduced before detection.
+     */
+    public int getScale() {
+        return mScale;
+    }
+
+    /**
+     * Returns the rotation of the frame.  See {@code Frame.Metadata#getRotation()}.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Maps an upright x coordinate within the region to an upright x coordinate of the full frame.
+     */
+    public int mapX(int x) {
+        return x * mScale + mOffsetX;
+    }
+
+    /**
+     * Maps an upright y coordinate within the region to an upright y coordinate of the full frame.
+     */
+    public int mapY(int y) {
+        return y * mScale + mOffsetY;
+    }
+}
@@ -0,0 +1,315 @@
+package com.margin.barcode.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back frames recorded by {@link FrameRecorder}, in place of a camera.  The recording is
+ * memory-mapped, and frames are handed to the listener as views of the mapped file, without
+ * copying.
+ * <p/>
+ * In real time mode, frames are delivered at their recorded times, and like with a camera, a
+ * frame is dropped if all slots are still in use.  Otherwise, frames are delivered as fast as
+ * they are processed: the next frame is delivered once the previous one is recycled, so that
+ * every recorded frame reaches the listener exactly once.  This makes runs reproducible and
+ * measures the throughput of the frame processing.
+ * <p/>
+ * This class only depends on the JDK, so that recordings can also be replayed on a workstation.
+ */
+final class FrameReplaySource implements FrameSource {
+    /**
+     * Number of frames that may be in flight at once in real time mode, like the preview buffers
+     * of a camera.
+     */
+    private static final int SLOTS = 3;
+
+    private static final int FREE = -1;
+
+    private final MappedByteBuffer mMap;
+    private final int[] mOffsets;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHasChroma;
+    private final int mRotation;
+    private final int mFrameSize;
+    private final boolean mRealTime;
+    private final FrameListener mListener;
+
+    // Guarded by "this".  The recorded frame in each slot, or FREE.
+    private final int[] mSlotFrames = new int[SLOTS];
+    private final ByteBuffer[] mSlotData = new ByteBuffer[SLOTS];
+    private Thread mThread;
+    private boolean mClosed;
+    private int mDroppedFrames;
+
+    private FrameReplaySource(MappedByteBuffer map, int[] offsets, boolean realTime,
+                              FrameListener listener) {
+        mMap = map;
+        mOffsets = offsets;
+        mRealTime = realTime;
+        mListener = listener;
+        mWidth = offsets.length > 0 ? map.getInt(offsets[0]) : 0;
+        mHeight = offsets.length > 0 ? map.getInt(offsets[0] + 4) : 0;
+        mHasChroma = offsets.length > 0 &&
+                (map.getInt(offsets[0] + 8) & FrameRecorder.FLAG_CHROMA) != 0;
+        mRotation = offsets.length > 0 ? map.getInt(offsets[0] + 24) : 0;
+        mFrameSize = mHasChroma ? Nv21.bufferSize(mWidth, mHeight) : mWidth * mHeight;
+        Arrays.fill(mSlotFrames, FREE);
+    }
+
+    /**
+     * Maps a recording and indexes its frames.  Playback starts with {@link #start()}.
+     *
+     * @param realTime whether to deliver frames at their recorded times, rather than as fast as
+     *                 they are processed
+     * @param listener receives the frames, on the playback thread
+     * @throws IOException if the file is not a valid recording, or its frames differ in size or
+     *                     format
+     */
+    static FrameReplaySource open(File file, boolean realTime, FrameListener listener)
+            throws IOException {
+        MappedByteBuffer map;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large: " + file);
+            }
+            // The mapping stays valid after the file is closed.
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (map.limit() < FrameRecorder.FILE_HEADER_SIZE ||
+                map.getInt(0) != FrameRecorder.MAGIC) {
+            throw new IOException("Not a frame recording: " + file);
+        }
+        if (map.getInt(4) != FrameRecorder.VERSION) {
+            throw new IOException("Unsupported frame recording version: " + map.getInt(4));
+        }
+
+        int[] offsets = new int[16];
+        int count = 0;
+        int offset = FrameRecorder.FILE_HEADER_SIZE;
+        while (offset < map.limit()) {
+            if (map.limit() - offset < FrameRecorder.RECORD_HEADER_SIZE) {
+                throw new IOException("Truncated frame recording: " + file);
+            }
+            int width = map.getInt(offset);
+            int height = map.getInt(offset + 4);
+            int flags = map.getInt(offset + 8);
+            if (count > 0 && (width != map.getInt(offsets[0]) ||
+                    height != map.getInt(offsets[0] + 4) || flags != map.getInt(offsets[0] + 8))) {
+                throw new IOException("Frame " + count + " differs in size or format");
+            }
+            long frameSize = (flags & FrameRecorder.FLAG_CHROMA) != 0 ?
+                    Nv21.bufferSize(width, height) : (long) width * height;
+            if (width <= 0 || height <= 0 ||
+                    map.limit() - offset - FrameRecorder.RECORD_HEADER_SIZE < frameSize) {
+                throw new IOException("Truncated frame recording: " + file);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            offsets[count++] = offset;
+            offset += FrameRecorder.RECORD_HEADER_SIZE + (int) frameSize;
+        }
+        return new FrameReplaySource(map, Arrays.copyOf(offsets, count), realTime, listener);
+    }
+
+    int getFrameCount() {
+        return mOffsets.length;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the recorded rotation of the frames, see {@code Frame.Metadata#getRotation()}.
+     */
+    int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Returns the number of frames dropped in real time mode because all slots were in use.
+     */
+    synchronized int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Starts playback on a new thread, unless it is started already.
+     */
+    synchronized void start() {
+        if (mThread != null || mClosed) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "FrameReplaySource");
+        mThread.start();
+    }
+
+    /**
+     * Waits until all frames are delivered and recycled, or the source is closed.
+     */
+    void await() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Stops playback.  Frames still in flight must not be accessed after this.
+     */
+    void close() {
+        Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+            thread = mThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getData(int slot) {
+        synchronized (this) {
+            return mSlotData[slot];
+        }
+    }
+
+    @Override
+    public int getRowStride(int slot) {
+        return mWidth;
+    }
+
+    @Override
+    public boolean hasChroma() {
+        return mHasChroma;
+    }
+
+    @Override
+    public int getFrameId(int slot) {
+        return mMap.getInt(getOffset(slot) + 12);
+    }
+
+    @Override
+    public long getTimestampMillis(int slot) {
+        return mMap.getLong(getOffset(slot) + 16);
+    }
+
+    @Override
+    public synchronized void recycle(int slot) {
+        mSlotFrames[slot] = FREE;
+        mSlotData[slot] = null;
+        notifyAll();
+    }
+
+    private synchronized int getOffset(int slot) {
+        return mOffsets[mSlotFrames[slot]];
+    }
+
+    private void play() {
+        long startNanos = System.nanoTime();
+        long firstTimestamp = mOffsets.length > 0 ? mMap.getLong(mOffsets[0] + 16) : 0;
+        try {
+            for (int frame = 0; frame < mOffsets.length; ++frame) {
+                if (mRealTime) {
+                    long dueNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(
+                            mMap.getLong(mOffsets[frame] + 16) - firstTimestamp);
+                    long delayNanos = dueNanos - System.nanoTime();
+                    if (delayNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+                }
+                int slot = acquireSlot(frame);
+                if (slot == FREE) {
+                    if (isClosed()) {
+                        return;
+                    }
+                    continue;
+                }
+                mListener.onFrameAvailable(this, slot, System.nanoTime());
+            }
+            awaitAllFree();
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Puts a frame into a free slot.  In real time mode, the frame is dropped if no slot is free;
+     * otherwise this waits until no frame is in flight.
+     *
+     * @return the slot, or FREE if the frame is dropped or the source is closed
+     */
+    private synchronized int acquireSlot(int frame) throws InterruptedException {
+        if (!mRealTime) {
+            awaitAllFree();
+        }
+        if (mClosed) {
+            return FREE;
+        }
+        for (int slot = 0; slot < SLOTS; ++slot) {
+            if (mSlotFrames[slot] == FREE) {
+                ByteBuffer data = mMap.duplicate();
+                int start = mOffsets[frame] + FrameRecorder.RECORD_HEADER_SIZE;
+                data.limit(start + mFrameSize).position(start);
+                mSlotFrames[slot] = frame;
+                mSlotData[slot] = data.slice();
+                return slot;
+            }
+        }
+        mDroppedFrames++;
+        return FREE;
+    }
+
+    private synchronized void awaitAllFree() throws InterruptedException {
+        while (!mClosed && !allFree()) {
+            wait();
+        }
+    }
+
+    private boolean allFree() {
+        for (int frame : mSlotFrames) {
+            if (frame != FREE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+}
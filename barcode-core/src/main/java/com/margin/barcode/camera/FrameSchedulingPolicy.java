@@ -0,0 +1,312 @@
+package com.margin.barcode.camera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the frames delivered by the camera are processed, and in which order, when
+ * frames arrive faster than the detector handles them.  Frames that are not processed go straight
+ * back to the camera, and are counted per policy so that policies can be compared on a device.
+ * <p/>
+ * Create a policy with one of the factory methods.  A policy schedules the frames of one
+ * pipeline, so it must not be shared between camera sources.  Frames are offered by the thread
+ * delivering them and taken by the frame processing thread.
+ */
+public abstract class FrameSchedulingPolicy {
+    /**
+     * Returned when there is no frame.
+     */
+    static final int EMPTY = FrameExchanger.EMPTY;
+
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+
+    FrameSchedulingPolicy() {
+    }
+
+    /**
+     * Processes the most recent frame only: a frame still pending when a newer one arrives is
+     * dropped.  This keeps the latency lowest, and is the default.
+     */
+    public static FrameSchedulingPolicy latestWins() {
+        return new LatestWins();
+    }
+
+    /**
+     * Processes frames in the order they arrive, keeping up to {@code capacity} of them pending.
+     * When the queue is full, the oldest pending frame is dropped for the new one.  This keeps
+     * bursts of consecutive frames together for analysis, at the cost of latency; the camera
+     * source hands the camera enough buffers for the queue.
+     */
+    public static FrameSchedulingPolicy boundedQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        return new BoundedQueue(capacity);
+    }
+
+    /**
+     * Only considers every {@code n}th frame delivered by the camera, dropping the others right
+     * away, and processes the most recent of those.  This saves power when the camera cannot be
+     * run at a lower frame rate.
+     */
+    public static FrameSchedulingPolicy everyNth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Invalid frame interval: " + n);
+        }
+        return new EveryNth(n);
+    }
+
+    /**
+     * Processes the most recent frame, like {@link #latestWins()}, but drops a frame that is
+     * older than {@code maxAgeMillis} when processing would start on it, counting from when the
+     * camera delivered it.  Results on stale frames then never reach the screen.
+     */
+    public static FrameSchedulingPolicy deadline(long maxAgeMillis) {
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Invalid deadline: " + maxAgeMillis);
+        }
+        return new Deadline(TimeUnit.MILLISECONDS.toNanos(maxAgeMillis));
+    }
+
+    /**
+     * Returns the number of frames this policy dropped, for any reason.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * Returns the name of the policy and the number of frames it dropped.
+     */
+    @Override
+    public String toString() {
+        return getName() + " dropped=" + getDroppedFrames();
+    }
+
+    abstract String getName();
+
+    /**
+     * Returns the largest number of frames this policy holds pending at once.
+     */
+    abstract int getCapacity();
+
+    /**
+     * Makes a frame available to the processing thread.
+     *
+     * @return the slot of a frame that is dropped instead, which may be the offered one, or
+     * {@link #EMPTY}
+     */
+    abstract int offer(int slot);
+
+    /**
+     * Takes the next frame to process, waiting for one if necessary.
+     *
+     * @return the slot of the frame, or {@link #EMPTY} once the policy is closed or the calling
+     * thread is interrupted
+     */
+    abstract int take();
+
+    /**
+     * Takes a pending frame without waiting.
+     *
+     * @return the slot of the frame, or {@link #EMPTY}
+     */
+    abstract int poll();
+
+    /**
+     * Makes {@link #take()} return {@link #EMPTY} instead of waiting, and wakes up a waiting
+     * consumer.  Frames may still be offered, and can be drained with {@link #poll()}.
+     */
+    abstract void close();
+
+    /**
+     * Makes {@link #take()} wait for frames again after {@link #close()}.
+     */
+    abstract void open();
+
+    /**
+     * Returns whether a frame just taken is dropped instead of processed, given when the camera
+     * delivered it.  The caller gives the frame back.
+     */
+    boolean isExpired(long receivedNanos, long nowNanos) {
+        return false;
+    }
+
+    /**
+     * Counts a dropped frame, if there is one.
+     *
+     * @return the given slot
+     */
+    final int drop(int slot) {
+        if (slot != EMPTY) {
+            countDropped();
+        }
+        return slot;
+    }
+
+    final void countDropped() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Keeps only the most recent frame, in a {@link FrameExchanger}.
+     */
+    private static class LatestWins extends FrameSchedulingPolicy {
+        final FrameExchanger mExchanger = new FrameExchanger();
+
+        @Override
+        String getName() {
+            return "latest-wins";
+        }
+
+        @Override
+        int getCapacity() {
+            return 1;
+        }
+
+        @Override
+        int offer(int slot) {
+            return drop(mExchanger.offer(slot));
+        }
+
+        @Override
+        int take() {
+            return mExchanger.take();
+        }
+
+        @Override
+        int poll() {
+            return mExchanger.poll();
+        }
+
+        @Override
+        void close() {
+            mExchanger.close();
+        }
+
+        @Override
+        void open() {
+            mExchanger.open();
+        }
+    }
+
+    private static final class EveryNth extends LatestWins {
+        private final int mInterval;
+        // Only accessed from the thread delivering frames.
+        private int mCount;
+
+        EveryNth(int interval) {
+            mInterval = interval;
+        }
+
+        @Override
+        String getName() {
+            return "every-" + mInterval;
+        }
+
+        @Override
+        int offer(int slot) {
+            int count = mCount;
+            mCount = count + 1 == mInterval ? 0 : count + 1;
+            if (count != 0) {
+                return drop(slot);
+            }
+            return super.offer(slot);
+        }
+    }
+
+    private static final class Deadline extends LatestWins {
+        private final long mMaxAgeNanos;
+
+        Deadline(long maxAgeNanos) {
+            mMaxAgeNanos = maxAgeNanos;
+        }
+
+        @Override
+        String getName() {
+            return "deadline-" + TimeUnit.NANOSECONDS.toMillis(mMaxAgeNanos) + "ms";
+        }
+
+        @Override
+        boolean isExpired(long receivedNanos, long nowNanos) {
+            if (nowNanos - receivedNanos <= mMaxAgeNanos) {
+                return false;
+            }
+            countDropped();
+            return true;
+        }
+    }
+
+    /**
+     * Ring of pending slots, guarded by the policy's monitor.  At camera frame rates the lock is
+     * hardly ever contended.
+     */
+    private static final class BoundedQueue extends FrameSchedulingPolicy {
+        private final int[] mSlots;
+        private int mHead;
+        private int mSize;
+        private boolean mClosed;
+
+        BoundedQueue(int capacity) {
+            mSlots = new int[capacity];
+        }
+
+        @Override
+        String getName() {
+            return "queue-" + mSlots.length;
+        }
+
+        @Override
+        int getCapacity() {
+            return mSlots.length;
+        }
+
+        @Override
+        synchronized int offer(int slot) {
+            int dropped = EMPTY;
+            if (mSize == mSlots.length) {
+                dropped = removeFirst();
+            }
+            mSlots[(mHead + mSize) % mSlots.length] = slot;
+            mSize++;
+            notifyAll();
+            return drop(dropped);
+        }
+
+        @Override
+        synchronized int take() {
+            try {
+                while (mSize == 0 && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EMPTY;
+            }
+            return mClosed ? EMPTY : removeFirst();
+        }
+
+        @Override
+        synchronized int poll() {
+            return mSize == 0 ? EMPTY : removeFirst();
+        }
+
+        @Override
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        @Override
+        synchronized void open() {
+            mClosed = false;
+        }
+
+        private int removeFirst() {
+            int slot = mSlots[mHead];
+            mHead = (mHead + 1) % mSlots.length;
+            mSize--;
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Preview frames of a running camera, a replayed recording or a synthetic generator, as seen by
+ * the processing thread of a {@link FramePipeline}.  Frames are handed over by slot index (see
+ * {@link FrameExchanger}); the processing thread reads a frame through this interface and gives it
+ * back with {@link #recycle(int)} once it is done with it.
+ */
+interface FrameSource {
+    /**
+     * Receives the slots of new frames from sources that deliver them on their own thread.
+     */
+    interface FrameListener {
+        /**
+         * @param receivedNanos the {@link System#nanoTime()} at which the camera handed the frame
+         *                      to the source, before any work of the source on it
+         */
+        void onFrameAvailable(FrameSource source, int slot, long receivedNanos);
+    }
+
+    /**
+     * Returns the image data of a frame.  The luma plane starts at index 0, with rows
+     * {@link #getRowStride(int)} bytes apart.  If {@link #hasChroma()}, an interleaved NV21
+     * chroma plane with the same row stride follows it.
+     */
+    ByteBuffer getData(int slot);
+
+    /**
+     * Returns the distance in bytes between the starts of two rows of a frame.  This is at least
+     * the width of the preview, and only larger if the camera pads its rows.
+     */
+    int getRowStride(int slot);
+
+    /**
+     * Returns whether the frame data contains an NV21 chroma plane after the luma plane.
+     */
+    boolean hasChroma();
+
+    int getFrameId(int slot);
+
+    long getTimestampMillis(int slot);
+
+    /**
+     * Gives a frame back to the camera.  Its data must not be accessed after this.
+     */
+    void recycle(int slot);
+}
@@ -0,0 +1,127 @@
+package com.margin.barcode.camera;
+
+/**
+ * Splits a frame into a grid of overlapping tiles for detecting on them separately, and tells
+ * whether items found on different tiles are at the same place.
+ * <p/>
+ * Neighbouring tiles share {@code overlap} of their width or height, so that an item up to that
+ * size which a tile border cuts is still whole on one of the tiles.  Tiles start at even
+ * coordinates and have even sizes, like {@link FrameRegion}, so that NV21 crops stay aligned.
+ */
+final class FrameTiles {
+    private final int mColumns;
+    private final int mRows;
+    private final float mOverlap;
+
+    // Tiles in sensor coordinates of the frame, row by row, set by layout().
+    private final int[] mLefts;
+    private final int[] mTops;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    /**
+     * @param overlap the share of a tile's width or height covered by its neighbour as well,
+     *                from 0 to less than 1
+     */
+    FrameTiles(int columns, int rows, float overlap) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("Invalid tile grid: " + columns + "x" + rows);
+        }
+        if (overlap < 0 || overlap >= 1) {
+            throw new IllegalArgumentException("Invalid tile overlap: " + overlap);
+        }
+        mColumns = columns;
+        mRows = rows;
+        mOverlap = overlap;
+        int count = columns * rows;
+        mLefts = new int[count];
+        mTops = new int[count];
+        mWidths = new int[count];
+        mHeights = new int[count];
+    }
+
+    /**
+     * Lays the tiles out over a frame, unless they already are for its size.
+     */
+    void layout(int frameWidth, int frameHeight) {
+        if (frameWidth == mFrameWidth && frameHeight == mFrameHeight) {
+            return;
+        }
+        int width = tileSize(frameWidth, mColumns);
+        int height = tileSize(frameHeight, mRows);
+        for (int row = 0; row < mRows; ++row) {
+            int top = tileStart(frameHeight, height, mRows, row);
+            for (int column = 0; column < mColumns; ++column) {
+                int tile = row * mColumns + column;
+                mLefts[tile] = tileStart(frameWidth, width, mColumns, column);
+                mTops[tile] = top;
+                mWidths[tile] = width;
+                mHeights[tile] = height;
+            }
+        }
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+    }
+
+    int getCount() {
+        return mLefts.length;
+    }
+
+    int getLeft(int tile) {
+        return mLefts[tile];
+    }
+
+    int getTop(int tile) {
+        return mTops[tile];
+    }
+
+    int getWidth(int tile) {
+        return mWidths[tile];
+    }
+
+    int getHeight(int tile) {
+        return mHeights[tile];
+    }
+
+    /**
+     * Returns whether two boxes are the same item seen on two tiles: they overlap by at least
+     * half of the smaller one.  Copies of an item seen whole on two tiles map to nearly the same
+     * box, while two equal items side by side do not overlap.
+     */
+    static boolean isSamePosition(int left1, int top1, int right1, int bottom1,
+                                  int left2, int top2, int right2, int bottom2) {
+        long overlapWidth = Math.min(right1, right2) - Math.max(left1, left2);
+        long overlapHeight = Math.min(bottom1, bottom2) - Math.max(top1, top2);
+        if (overlapWidth <= 0 || overlapHeight <= 0) {
+            return false;
+        }
+        long area1 = (long) (right1 - left1) * (bottom1 - top1);
+        long area2 = (long) (right2 - left2) * (bottom2 - top2);
+        return 2 * overlapWidth * overlapHeight >= Math.min(area1, area2);
+    }
+
+    /**
+     * Returns the even tile size that covers a frame side with the given number of tiles,
+     * overlapping by the overlap share.
+     */
+    private int tileSize(int frameSize, int tiles) {
+        if (tiles == 1) {
+            return frameSize & ~1;
+        }
+        int size = (int) Math.ceil(frameSize / (tiles - (tiles - 1) * mOverlap));
+        return Math.min(Math.max(2, (size + 1) & ~1), frameSize & ~1);
+    }
+
+    /**
+     * Returns the even start of a tile, the last one ending at the (even) end of the frame.
+     */
+    private static int tileStart(int frameSize, int size, int tiles, int index) {
+        if (tiles == 1) {
+            return 0;
+        }
+        int span = (frameSize & ~1) - size;
+        return (int) ((long) span * index / (tiles - 1)) & ~1;
+    }
+}
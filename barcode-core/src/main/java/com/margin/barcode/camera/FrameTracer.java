@@ -0,0 +1,234 @@
+package com.margin.barcode.camera;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in per-frame timeline of the scanning pipeline: the spans of the camera callback, buffer
+ * recycling, detection, tracker updates, overlay drawing and result dispatch, on whichever thread
+ * they run.  The spans are kept in a bounded ring in memory, so only the most recent ones are
+ * kept, and are written out in the Chrome trace event JSON format, which chrome://tracing and the
+ * Perfetto UI open.  That shows how the frame processing thread and the main thread get in each
+ * other's way.
+ * <p/>
+ * Recording a span is lock-free and allocates nothing, except the first time a thread records one.
+ * Spans may be recorded from any thread.  See {@link #writeTo(File)} for writing while recording.
+ */
+public final class FrameTracer {
+    /**
+     * From the camera handing a frame to the source to the frame being pending.
+     */
+    public static final int SPAN_CAMERA_CALLBACK = 0;
+    /**
+     * A frame buffer going back to the camera.
+     */
+    public static final int SPAN_RECYCLE = 1;
+    /**
+     * Recording, cropping and gating a frame before detection.
+     */
+    public static final int SPAN_PREPROCESS = 2;
+    /**
+     * The detector running on a frame, including the processor it hands its results to.
+     */
+    public static final int SPAN_DETECT = 3;
+    /**
+     * A tracker updating the graphic of a detected item.
+     */
+    public static final int SPAN_TRACKER_UPDATE = 4;
+    /**
+     * The graphic overlay drawing its graphics.
+     */
+    public static final int SPAN_OVERLAY_DRAW = 5;
+    /**
+     * The detection results being handed to the app listener on the main thread.
+     */
+    public static final int SPAN_LISTENER_DISPATCH = 6;
+
+    /**
+     * Frame id of spans that do not belong to a single frame.
+     */
+    public static final int NO_FRAME = -1;
+
+    private static final String[] SPAN_NAMES = {"camera_callback", "recycle", "preprocess",
+            "detect", "tracker_update", "overlay_draw", "listener_dispatch"};
+
+    /**
+     * Upper bound on the number of threads whose names are kept for the trace.  Spans of further
+     * threads are still recorded, under their thread id only.
+     */
+    private static final int MAX_THREADS = 64;
+
+    private final int mCapacity;
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mNextEvent = new AtomicLong();
+    /**
+     * Index of the event held by each slot of the ring, or -1 while it is being written, so that
+     * events overwritten while they are read can be left out.
+     */
+    private final AtomicLongArray mEventIndexes;
+    private final long[] mStartsNanos;
+    private final long[] mDurationsNanos;
+    private final long[] mThreadIds;
+    private final int[] mSpans;
+    private final int[] mFrameIds;
+
+    // Threads seen so far, for naming them in the trace.  The arrays are written under the lock,
+    // before the count is raised.
+    private final Object mThreadLock = new Object();
+    private final long[] mKnownThreadIds = new long[MAX_THREADS];
+    private final String[] mKnownThreadNames = new String[MAX_THREADS];
+    private volatile int mKnownThreadCount;
+
+    /**
+     * @param capacity the number of spans kept, the oldest being overwritten first
+     */
+    public FrameTracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid trace capacity: " + capacity);
+        }
+        mCapacity = capacity;
+        mEventIndexes = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            mEventIndexes.set(i, -1);
+        }
+        mStartsNanos = new long[capacity];
+        mDurationsNanos = new long[capacity];
+        mThreadIds = new long[capacity];
+        mSpans = new int[capacity];
+        mFrameIds = new int[capacity];
+    }
+
+    /**
+     * Records a span that started at the given {@link System#nanoTime()} and ends now.
+     *
+     * @param span    one of the {@code SPAN_} constants
+     * @param frameId the frame the span belongs to, or {@link #NO_FRAME}
+     */
+    public void record(int span, long startNanos, int frameId) {
+        long endNanos = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        long threadId = thread.getId();
+        if (!isKnownThread(threadId) && mKnownThreadCount < MAX_THREADS) {
+            addThread(thread);
+        }
+
+        long index = mNextEvent.getAndIncrement();
+        int slot = (int) (index % mCapacity);
+        mEventIndexes.set(slot, -1);
+        mStartsNanos[slot] = startNanos;
+        mDurationsNanos[slot] = endNanos - startNanos;
+        mThreadIds[slot] = threadId;
+        mSpans[slot] = span;
+        mFrameIds[slot] = frameId;
+        mEventIndexes.set(slot, index);
+    }
+
+    /**
+     * Returns the number of spans recorded so far, including those overwritten since.
+     */
+    public long getRecordedCount() {
+        return mNextEvent.get();
+    }
+
+    /**
+     * Writes the spans kept in the ring to a file as a Chrome trace.  Spans may still be recorded
+     * meanwhile; those overwritten while writing are left out.
+     */
+    public void writeTo(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"))) {
+            write(writer);
+        }
+    }
+
+    void write(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        int threadCount = mKnownThreadCount;
+        for (int i = 0; i < threadCount; ++i) {
+            first = writeSeparator(writer, first);
+            writer.write(String.format(Locale.US,
+                    "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d," +
+                            "\"args\":{\"name\":\"%s\"}}", mKnownThreadIds[i],
+                    escape(mKnownThreadNames[i])));
+        }
+
+        long end = mNextEvent.get();
+        for (long index = Math.max(0, end - mCapacity); index < end; ++index) {
+            int slot = (int) (index % mCapacity);
+            if (mEventIndexes.get(slot) != index) {
+                continue;
+            }
+            long startNanos = mStartsNanos[slot];
+            long durationNanos = mDurationsNanos[slot];
+            long threadId = mThreadIds[slot];
+            int span = mSpans[slot];
+            int frameId = mFrameIds[slot];
+            if (mEventIndexes.get(slot) != index) {
+                // Overwritten while it was read.
+                continue;
+            }
+            first = writeSeparator(writer, first);
+            writer.write(String.format(Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"pipeline\",\"ph\":\"X\",\"ts\":%.3f," +
+                            "\"dur\":%.3f,\"pid\":1,\"tid\":%d", SPAN_NAMES[span],
+                    (startNanos - mStartNanos) / 1000.0, durationNanos / 1000.0, threadId));
+            if (frameId != NO_FRAME) {
+                writer.write(",\"args\":{\"frame\":" + frameId + "}");
+            }
+            writer.write('}');
+        }
+        writer.write("]}");
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(",\n");
+        }
+        return false;
+    }
+
+    private static String escape(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean isKnownThread(long threadId) {
+        int count = mKnownThreadCount;
+        for (int i = 0; i < count; ++i) {
+            if (mKnownThreadIds[i] == threadId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addThread(Thread thread) {
+        synchronized (mThreadLock) {
+            int count = mKnownThreadCount;
+            if (count == MAX_THREADS || isKnownThread(thread.getId())) {
+                return;
+            }
+            mKnownThreadIds[count] = thread.getId();
+            mKnownThreadNames[count] = thread.getName();
+            mKnownThreadCount = count + 1;
+        }
+    }
+}
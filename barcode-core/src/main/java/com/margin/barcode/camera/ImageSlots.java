@@ -0,0 +1,94 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slots of a frame source whose frames are images owned by the camera, such as the images of a
+ * Camera2 image reader.  Each slot holds an acquired image along with its luma plane, row stride,
+ * frame id and timestamp, so that a slot index is all that needs to be handed between threads.
+ * <p/>
+ * A slot is free while its image is null.  The camera thread fills a free slot with
+ * {@link #fill}, and the processing thread gives it back with {@link #recycle(int)}.  All other
+ * per slot state is only written by the thread owning the slot, before ownership passes on: the
+ * camera thread writes it before publishing the image, and the processing thread clears it before
+ * freeing the slot, so a slot refilled right away is never wiped by the recycle that freed it.
+ *
+ * @param <I> the image type
+ */
+abstract class ImageSlots<I> {
+    private final AtomicReferenceArray<I> mImages;
+    private final ByteBuffer[] mData;
+    private final int[] mRowStrides;
+    private final int[] mFrameIds;
+    private final long[] mTimestampsMillis;
+
+    ImageSlots(int size) {
+        mImages = new AtomicReferenceArray<>(size);
+        mData = new ByteBuffer[size];
+        mRowStrides = new int[size];
+        mFrameIds = new int[size];
+        mTimestampsMillis = new long[size];
+    }
+
+    /**
+     * Gives an image back to the camera.  Called on the thread recycling its slot.
+     */
+    abstract void closeImage(I image);
+
+    /**
+     * Stores an image in a free slot.  Must only be called by the camera thread.
+     *
+     * @return the slot, or {@link FrameBufferPool#NO_SLOT} if all slots are in use, in which case
+     * the caller still owns the image
+     */
+    int fill(I image, ByteBuffer data, int rowStride, int frameId, long timestampMillis) {
+        int slot = findFreeSlot();
+        if (slot == FrameBufferPool.NO_SLOT) {
+            return slot;
+        }
+        mData[slot] = data;
+        mRowStrides[slot] = rowStride;
+        mFrameIds[slot] = frameId;
+        mTimestampsMillis[slot] = timestampMillis;
+        mImages.set(slot, image);
+        return slot;
+    }
+
+    ByteBuffer getData(int slot) {
+        return mData[slot];
+    }
+
+    int getRowStride(int slot) {
+        return mRowStrides[slot];
+    }
+
+    int getFrameId(int slot) {
+        return mFrameIds[slot];
+    }
+
+    long getTimestampMillis(int slot) {
+        return mTimestampsMillis[slot];
+    }
+
+    /**
+     * Frees a slot and closes its image.  Its data must not be accessed after this.
+     */
+    void recycle(int slot) {
+        // Cleared before the slot is freed: afterwards the camera thread may already refill it.
+        mData[slot] = null;
+        I image = mImages.getAndSet(slot, null);
+        if (image != null) {
+            closeImage(image);
+        }
+    }
+
+    private int findFreeSlot() {
+        for (int i = 0; i < mImages.length(); ++i) {
+            if (mImages.get(i) == null) {
+                return i;
+            }
+        }
+        return FrameBufferPool.NO_SLOT;
+    }
+}
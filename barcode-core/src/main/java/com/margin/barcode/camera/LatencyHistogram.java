@@ -0,0 +1,129 @@
+package com.margin.barcode.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram with logarithmic buckets, cheap enough to record into on every
+ * frame.  Recording is lock-free and allocates nothing, and may happen from any number of threads.
+ * <p/>
+ * Latencies are kept in microseconds.  Values below 16 microseconds have a bucket each; above
+ * that, every power of two is split into 8 buckets, so a percentile read back is at most 12.5%
+ * above the recorded value.  Values of 2^32 microseconds (over an hour) and more all fall into
+ * the last bucket.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this have a bucket of their own.
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_EXPONENT = SUB_BUCKET_BITS + 1;
+    private static final int MAX_EXPONENT = 31;
+    private static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    static final int BUCKET_COUNT = LINEAR_LIMIT +
+            (MAX_EXPONENT - LINEAR_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    /**
+     * Records a latency.  Negative values, from clocks of different threads, count as 0.
+     */
+    void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        mCounts.incrementAndGet(bucketOf(micros));
+        mSumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxMicros.get())) {
+            if (mMaxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of this histogram, and clears this one if requested.  Values recorded while
+     * copying end up in either the copy or this histogram, never in both or neither, though the sum
+     * and maximum may not match the counts exactly then.
+     */
+    LatencyHistogram copy(boolean reset) {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            copy.mCounts.set(i, reset ? mCounts.getAndSet(i, 0) : mCounts.get(i));
+        }
+        copy.mSumMicros.set(reset ? mSumMicros.getAndSet(0) : mSumMicros.get());
+        copy.mMaxMicros.set(reset ? mMaxMicros.getAndSet(0) : mMaxMicros.get());
+        return copy;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mCounts.set(i, 0);
+        }
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    double getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) mSumMicros.get() / count;
+    }
+
+    /**
+     * Returns the nearest rank percentile, as the upper bound of the bucket it falls into (but no
+     * more than the maximum), or 0 if nothing was recorded.
+     *
+     * @param fraction the percentile as a fraction, e.g. 0.99
+     */
+    long getPercentileMicros(double fraction) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls into a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = LINEAR_EXPONENT + (bucket - LINEAR_LIMIT) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
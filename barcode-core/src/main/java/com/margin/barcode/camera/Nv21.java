@@ -0,0 +1,139 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helpers for working on NV21 preview images: a full resolution luma (Y) plane followed by a half
+ * resolution plane of interleaved V/U samples.
+ */
+final class Nv21 {
+    /**
+     * Chroma value of a gray pixel.  Images that only carry luma are filled with this.
+     */
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private Nv21() {
+    }
+
+    /**
+     * Returns the number of bytes of an NV21 image of the given size.
+     */
+    static int bufferSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies a rectangle of the source image into the destination buffer, as a packed NV21 image of
+     * {@code cropWidth} by {@code cropHeight} pixels.  The rectangle should start at even
+     * coordinates, so that the chroma samples stay aligned with their pixels.
+     *
+     * @param src           the source image, which may be a direct buffer (e.g. a camera plane)
+     * @param rowStride     distance in bytes between the starts of two source rows
+     * @param height        height of the source image, needed to find its chroma plane
+     * @param includeChroma whether to copy the chroma plane too; if not, the chroma plane of the
+     *                      destination is left untouched (see {@link #fillNeutralChroma})
+     */
+    static void crop(ByteBuffer src, int rowStride, int height, int left, int top, int cropWidth,
+                     int cropHeight, byte[] dst, boolean includeChroma) {
+        for (int y = 0; y < cropHeight; ++y) {
+            copy(src, (top + y) * rowStride + left, dst, y * cropWidth, cropWidth);
+        }
+        if (!includeChroma) {
+            return;
+        }
+
+        int srcChroma = rowStride * height;
+        int dstChroma = cropWidth * cropHeight;
+        int dstStride = 2 * ((cropWidth + 1) / 2);
+        int chromaTop = top / 2;
+        int chromaLeft = 2 * (left / 2);
+        int chromaRows = (cropHeight + 1) / 2;
+        for (int y = 0; y < chromaRows; ++y) {
+            copy(src, srcChroma + (chromaTop + y) * rowStride + chromaLeft,
+                    dst, dstChroma + y * dstStride, dstStride);
+        }
+    }
+
+    private static void copy(ByteBuffer src, int srcIndex, byte[] dst, int dstIndex, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcIndex, dst, dstIndex, length);
+        } else {
+            // Bulk get is the fastest way out of a direct buffer, but needs the position.
+            src.position(srcIndex);
+            src.get(dst, dstIndex, length);
+            src.position(0);
+        }
+    }
+
+    /**
+     * Returns the even width or height of an image reduced by a factor, see
+     * {@link #downscaleLuma(ByteBuffer, int, int, byte[], int, int)}.
+     */
+    static int downscaledSize(int size, int factor) {
+        return (size / factor) & ~1;
+    }
+
+    /**
+     * Writes a luma plane, reduced by an integer (power of two) factor in both directions, into
+     * the destination buffer.  Each destination pixel is the average of a block of
+     * {@code factor} by {@code factor} source pixels.
+     *
+     * @param src       the source image; only its luma plane is read
+     * @param rowStride distance in bytes between the starts of two source rows
+     * @param dstWidth  destination width, at most {@code width / factor}
+     * @param dstHeight destination height, at most {@code height / factor}
+     */
+    static void downscaleLuma(ByteBuffer src, int rowStride, int factor, byte[] dst,
+                              int dstWidth, int dstHeight) {
+        if (src.hasArray()) {
+            downscaleLuma(src.array(), src.arrayOffset(), rowStride, factor, dst, dstWidth,
+                    dstHeight);
+            return;
+        }
+
+        // Direct buffers cannot be read through an array, which is slower but still copy free.
+        int shift = 2 * Integer.numberOfTrailingZeros(factor);
+        for (int y = 0; y < dstHeight; ++y) {
+            int rowStart = y * factor * rowStride;
+            for (int x = 0; x < dstWidth; ++x) {
+                int blockStart = rowStart + x * factor;
+                int sum = 0;
+                for (int j = 0; j < factor; ++j) {
+                    int index = blockStart + j * rowStride;
+                    for (int i = 0; i < factor; ++i) {
+                        sum += src.get(index + i) & 0xFF;
+                    }
+                }
+                dst[y * dstWidth + x] = (byte) (sum >> shift);
+            }
+        }
+    }
+
+    private static void downscaleLuma(byte[] src, int offset, int rowStride, int factor,
+                                      byte[] dst, int dstWidth, int dstHeight) {
+        int shift = 2 * Integer.numberOfTrailingZeros(factor);
+        for (int y = 0; y < dstHeight; ++y) {
+            int rowStart = offset + y * factor * rowStride;
+            for (int x = 0; x < dstWidth; ++x) {
+                int blockStart = rowStart + x * factor;
+                int sum = 0;
+                for (int j = 0; j < factor; ++j) {
+                    int index = blockStart + j * rowStride;
+                    for (int i = 0; i < factor; ++i) {
+                        sum += src[index + i] & 0xFF;
+                    }
+                }
+                dst[y * dstWidth + x] = (byte) (sum >> shift);
+            }
+        }
+    }
+
+    /**
+     * Fills the chroma plane of an NV21 image of the given size with gray, so that only its luma
+     * plane carries information.
+     */
+    static void fillNeutralChroma(byte[] dst, int width, int height) {
+        Arrays.fill(dst, width * height, bufferSize(width, height), NEUTRAL_CHROMA);
+    }
+}
@@ -0,0 +1,233 @@
+package com.margin.barcode.camera;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and frame counters of a scanning pipeline, from the camera delivering a
+ * frame to the decoded barcode reaching the app.
+ * <p/>
+ * The frame pipeline records the stages up to and including detection, and counts the frames it
+ * drops, processes and fails on.  The UI stages are recorded by whoever dispatches the detection
+ * results, with {@link #record(int, long)}.  Recording is lock-free and allocates nothing, so it
+ * stays enabled all the time; read the numbers with {@link #snapshot()}, or with
+ * {@link #snapshotAndReset()} to log them per interval.
+ */
+public final class PipelineMetrics {
+    /**
+     * From the camera delivering a frame to the frame being pending for processing.
+     */
+    public static final int STAGE_CAMERA_TO_PENDING = 0;
+    /**
+     * From a frame being pending to the detector starting on it, which includes waiting for the
+     * previous frame and the preprocessing (cropping, sharpness and scene change checks).
+     */
+    public static final int STAGE_PENDING_TO_DETECT = 1;
+    /**
+     * Time spent in the detector, including the processor it hands its results to.
+     */
+    public static final int STAGE_DETECT = 2;
+    /**
+     * From the detection results being posted to the UI thread to them being handled there.
+     */
+    public static final int STAGE_UI_DISPATCH = 3;
+    /**
+     * From the camera delivering a frame to a barcode decoded on it reaching the app.
+     */
+    public static final int STAGE_END_TO_END = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "camera_to_pending", "pending_to_detect", "detect", "ui_dispatch", "end_to_end"};
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_NAMES.length];
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mProcessedFrames = new AtomicLong();
+    private final AtomicLong mFailedFrames = new AtomicLong();
+    private final AtomicLong mStartNanos = new AtomicLong(System.nanoTime());
+
+    // Only accessed from the frame processing thread.
+    private long mFrameReceivedNanos;
+
+    PipelineMetrics() {
+        for (int i = 0; i < mHistograms.length; ++i) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param stage one of the {@code STAGE_} constants
+     */
+    public void record(int stage, long nanos) {
+        mHistograms[stage].record(nanos);
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the camera delivered the frame that is being
+     * detected on, to measure {@link #STAGE_END_TO_END} from.  Only valid on the frame processing
+     * thread while the detector runs, for example in the detector's processor or in
+     * {@code CameraSource.OnFrameReceivedListener#onFrameReceived()}, as
+     * {@link ResultDispatcher#publish(Object, long)} does.
+     */
+    public long getFrameReceivedNanos() {
+        return mFrameReceivedNanos;
+    }
+
+    void setFrameReceivedNanos(long receivedNanos) {
+        mFrameReceivedNanos = receivedNanos;
+    }
+
+    /**
+     * Counts a frame that the scheduling policy dropped before it was processed.
+     */
+    void recordDroppedFrame() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame taken up by the processing thread, whether or not it was detected on.
+     */
+    void recordProcessedFrame() {
+        mProcessedFrames.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame whose processing or detection threw.
+     */
+    void recordFailedFrame() {
+        mFailedFrames.incrementAndGet();
+    }
+
+    /**
+     * Returns the numbers recorded since this pipeline was built or last reset.
+     */
+    public Snapshot snapshot() {
+        return takeSnapshot(false);
+    }
+
+    /**
+     * Returns the numbers recorded since this pipeline was built or last reset, and resets them.
+     * Nothing recorded meanwhile is lost: it counts towards either this snapshot or the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        return takeSnapshot(true);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mDroppedFrames.set(0);
+        mProcessedFrames.set(0);
+        mFailedFrames.set(0);
+        mStartNanos.set(System.nanoTime());
+    }
+
+    private Snapshot takeSnapshot(boolean reset) {
+        long now = System.nanoTime();
+        long startNanos = reset ? mStartNanos.getAndSet(now) : mStartNanos.get();
+        LatencyHistogram[] histograms = new LatencyHistogram[mHistograms.length];
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = mHistograms[i].copy(reset);
+        }
+        return new Snapshot(histograms, TimeUnit.NANOSECONDS.toMillis(now - startNanos),
+                reset ? mDroppedFrames.getAndSet(0) : mDroppedFrames.get(),
+                reset ? mProcessedFrames.getAndSet(0) : mProcessedFrames.get(),
+                reset ? mFailedFrames.getAndSet(0) : mFailedFrames.get());
+    }
+
+    /**
+     * Immutable copy of the metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram[] mHistograms;
+        private final long mDurationMillis;
+        private final long mDroppedFrames;
+        private final long mProcessedFrames;
+        private final long mFailedFrames;
+
+        Snapshot(LatencyHistogram[] histograms, long durationMillis, long droppedFrames,
+                 long processedFrames, long failedFrames) {
+            mHistograms = histograms;
+            mDurationMillis = durationMillis;
+            mDroppedFrames = droppedFrames;
+            mProcessedFrames = processedFrames;
+            mFailedFrames = failedFrames;
+        }
+
+        /**
+         * Returns the time covered by this snapshot.
+         */
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        /**
+         * Returns the number of frames that the scheduling policy dropped, for example because a
+         * newer frame replaced them while pending, and that were never processed.
+         */
+        public long getDroppedFrames() {
+            return mDroppedFrames;
+        }
+
+        /**
+         * Returns the number of frames processed, including those skipped before detection by
+         * the sharpness gate or scene change check.
+         */
+        public long getProcessedFrames() {
+            return mProcessedFrames;
+        }
+
+        /**
+         * Returns the number of frames whose processing or detection threw.
+         */
+        public long getFailedFrames() {
+            return mFailedFrames;
+        }
+
+        /**
+         * Returns the number of latencies recorded for a stage.
+         */
+        public long getCount(int stage) {
+            return mHistograms[stage].getCount();
+        }
+
+        /**
+         * Returns a latency percentile of a stage, within 12.5%, or 0 if none was recorded.
+         *
+         * @param fraction the percentile as a fraction, e.g. 0.99
+         */
+        public long getPercentileMicros(int stage, double fraction) {
+            return mHistograms[stage].getPercentileMicros(fraction);
+        }
+
+        public double getMeanMicros(int stage) {
+            return mHistograms[stage].getMeanMicros();
+        }
+
+        public long getMaxMicros(int stage) {
+            return mHistograms[stage].getMaxMicros();
+        }
+
+        /**
+         * Returns the counters and the median, 90th and 99th percentile and maximum of each stage,
+         * in microseconds, on one line for logging.
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                    "duration_ms=%d processed=%d dropped=%d failed=%d", mDurationMillis,
+                    mProcessedFrames, mDroppedFrames, mFailedFrames));
+            for (int stage = 0; stage < mHistograms.length; ++stage) {
+                builder.append(String.format(Locale.US,
+                        " %s{n=%d p50=%d p90=%d p99=%d max=%d}", STAGE_NAMES[stage],
+                        getCount(stage), getPercentileMicros(stage, 0.5),
+                        getPercentileMicros(stage, 0.9), getPercentileMicros(stage, 0.99),
+                        getMaxMicros(stage)));
+            }
+            return builder.toString();
+        }
+    }
+}
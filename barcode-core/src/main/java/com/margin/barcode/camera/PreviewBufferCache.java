@@ -0,0 +1,141 @@
+package com.margin.barcode.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide cache of preview buffers, shared by all camera sources.  Buffers are keyed by their
+ * size, so a camera source that is stopped and started again with the same preview size gets its
+ * previous buffers back instead of allocating new ones (several megabytes each at high preview
+ * resolutions).
+ * <p/>
+ * The cache holds at most {@link #getMaxBytes()} bytes; when a returned buffer would exceed that
+ * limit, the oldest cached buffers are dropped first.  The camera source trims the cache with
+ * {@link #trimMemory(boolean)} when the application is asked to trim memory.
+ */
+public final class PreviewBufferCache {
+    /**
+     * Enough for the default four buffers at 1600x1024, with room to spare.
+     */
+    private static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final PreviewBufferCache sInstance = new PreviewBufferCache();
+
+    // This lock guards all of the member variables below.
+    private final Object mLock = new Object();
+    // Free buffers, oldest first.
+    private final List<byte[]> mBuffers = new ArrayList<>();
+    private long mCachedBytes;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    // Package-private for tests; use getInstance() otherwise.
+    PreviewBufferCache() {
+    }
+
+    /**
+     * Returns the process-wide cache instance.
+     */
+    public static PreviewBufferCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a buffer of exactly {@code size} bytes, either from the cache or newly allocated.
+     * The buffer content is undefined.
+     */
+    byte[] acquire(int size) {
+        synchronized (mLock) {
+            // Newest first, so that recently used (and likely still resident) memory is reused.
+            for (int i = mBuffers.size() - 1; i >= 0; --i) {
+                byte[] buffer = mBuffers.get(i);
+                if (buffer.length == size) {
+                    mBuffers.remove(i);
+                    mCachedBytes -= size;
+                    return buffer;
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns a buffer to the cache.  The caller must not use the buffer afterwards.
+     */
+    void release(byte[] buffer) {
+        synchronized (mLock) {
+            if (buffer.length > mMaxBytes) {
+                return;
+            }
+            trimToSizeLocked(mMaxBytes - buffer.length);
+            mBuffers.add(buffer);
+            mCachedBytes += buffer.length;
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes held by the cache.
+     */
+    public long getMaxBytes() {
+        synchronized (mLock) {
+            return mMaxBytes;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes held by the cache, dropping the oldest buffers if the cache
+     * currently holds more.  Default: 16 MB.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        synchronized (mLock) {
+            mMaxBytes = maxBytes;
+            trimToSizeLocked(maxBytes);
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held by the cache.
+     */
+    public long getCachedBytes() {
+        synchronized (mLock) {
+            return mCachedBytes;
+        }
+    }
+
+    /**
+     * Drops the oldest cached buffers until at most {@code maxBytes} bytes remain.
+     */
+    public void trimToSize(long maxBytes) {
+        synchronized (mLock) {
+            trimToSizeLocked(maxBytes);
+        }
+    }
+
+    /**
+     * Trims the cache on memory pressure: drops all cached buffers if memory is running low, and
+     * halves the cache limit's worth of buffers otherwise, keeping the newest ones.
+     *
+     * @param runningLow whether the trim level is {@code TRIM_MEMORY_RUNNING_LOW} or above, or
+     *                   the system is low on memory
+     */
+    public void trimMemory(boolean runningLow) {
+        synchronized (mLock) {
+            trimToSizeLocked(runningLow ? 0 : mMaxBytes / 2);
+        }
+    }
+
+    /**
+     * Drops all cached buffers.  Buffers currently borrowed by camera sources are not affected.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSizeLocked(long maxBytes) {
+        while (mCachedBytes > maxBytes) {
+            mCachedBytes -= mBuffers.remove(0).length;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.margin.barcode.camera;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands detection results from the frame processing thread to the main thread, only when they
+ * change.  Frames with the same results as the frame before, or with none, cost no message at
+ * all.  Results published while a message is still waiting to be handled replace the waiting
+ * ones, so a busy main thread gets a single message with the latest results rather than a
+ * backlog, and results of a frame older than the last delivered one are dropped.
+ * <p/>
+ * The results are compared with {@link Object#equals(Object)}, so they should be values, for
+ * example a list of the decoded strings of a frame.
+ *
+ * @param <R> the results of a frame
+ */
+public final class ResultDispatcher<R> {
+    /**
+     * Receives the results, on the thread of the executor.
+     */
+    public interface Listener<R> {
+        /**
+         * @param results         the latest results, which differ from those of the frame before
+         * @param timestampMillis the timestamp of the frame they were detected on
+         */
+        void onResults(R results, long timestampMillis);
+    }
+
+    private final Executor mExecutor;
+    private final Listener<R> mListener;
+    private volatile PipelineMetrics mMetrics;
+
+    // Only accessed from the publishing thread.
+    private R mLastPublished;
+
+    // The results waiting to be delivered, and the frame delivered last, guarded by the lock.
+    private final Object mLock = new Object();
+    private R mPending;
+    private long mPendingTimestampMillis;
+    private long mPendingReceivedNanos;
+    private long mPostedNanos;
+    private long mLastDeliveredMillis = Long.MIN_VALUE;
+    // Whether the delivery is posted and has not taken the pending results yet.
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * @param executor runs the listener, for example by posting to a main thread handler
+     */
+    public ResultDispatcher(Executor executor, Listener<R> listener) {
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the metrics that the {@link PipelineMetrics#STAGE_UI_DISPATCH} and
+     * {@link PipelineMetrics#STAGE_END_TO_END} latencies of delivered results are recorded to, or
+     * null.  Results must then be published on the frame processing thread while the detector
+     * runs, so that the time the camera delivered their frame is known.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Publishes the results of a frame.  Must always be called from the same thread, in frame
+     * order.
+     *
+     * @param results the results, or null if nothing was detected
+     */
+    public void publish(R results, long timestampMillis) {
+        R lastPublished = mLastPublished;
+        mLastPublished = results;
+        if (results == null || results.equals(lastPublished)) {
+            return;
+        }
+
+        PipelineMetrics metrics = mMetrics;
+        synchronized (mLock) {
+            mPending = results;
+            mPendingTimestampMillis = timestampMillis;
+            mPendingReceivedNanos = metrics != null ? metrics.getFrameReceivedNanos() : 0;
+            mPostedNanos = System.nanoTime();
+        }
+        if (mPosted.compareAndSet(false, true)) {
+            mExecutor.execute(mDeliver);
+        }
+    }
+
+    /**
+     * Forgets the results published and delivered last, so that the next results are delivered
+     * even if they are the same, for example after the camera was restarted.  Must be called
+     * from the publishing thread, or while nothing is published.
+     */
+    public void reset() {
+        mLastPublished = null;
+        synchronized (mLock) {
+            mPending = null;
+            // Frame times start over for a replayed recording.
+            mLastDeliveredMillis = Long.MIN_VALUE;
+        }
+    }
+
+    private void deliver() {
+        long startNanos = System.nanoTime();
+        R results;
+        long timestampMillis;
+        long receivedNanos;
+        long postedNanos;
+        // Clear the flag first, so that results published from here on are posted again.
+        mPosted.set(false);
+        synchronized (mLock) {
+            results = mPending;
+            timestampMillis = mPendingTimestampMillis;
+            receivedNanos = mPendingReceivedNanos;
+            postedNanos = mPostedNanos;
+            mPending = null;
+            if (results == null || timestampMillis < mLastDeliveredMillis) {
+                // Taken by an earlier delivery or reset, or older than what was delivered.
+                return;
+            }
+            mLastDeliveredMillis = timestampMillis;
+        }
+
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(PipelineMetrics.STAGE_UI_DISPATCH, startNanos - postedNanos);
+            metrics.record(PipelineMetrics.STAGE_END_TO_END, System.nanoTime() - receivedNanos);
+        }
+        mListener.onResults(results, timestampMillis);
+    }
+}
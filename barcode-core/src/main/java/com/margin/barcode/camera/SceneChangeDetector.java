@@ -0,0 +1,121 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse frame difference check, used to skip detection while the camera looks at an unchanged
+ * scene (for example a device resting on a counter, pointed at a label).
+ * <p/>
+ * The luma plane is sampled on a coarse grid and compared with the samples of the last frame that
+ * detection ran on.  If the mean absolute difference is small, the frame is considered unchanged
+ * and detection can be skipped, leaving the previous results in place.  Detection resumes with
+ * the first frame that differs, and at the latest after {@link #MAX_STATIC_MILLIS}, so that slow
+ * changes (lighting, a label slowly pushed into view) are still picked up.
+ * <p/>
+ * All methods except {@link #getStaticFrames()} must be called from the frame processing thread.
+ */
+final class SceneChangeDetector {
+    /**
+     * Number of samples per row and per column of the grid.
+     */
+    private static final int GRID_SIZE = 32;
+
+    /**
+     * Largest mean absolute luma difference (out of 255) for which a frame is considered unchanged.
+     * This is well above sensor noise, but below the change caused by any real motion.
+     */
+    private static final int MAX_MEAN_DIFFERENCE = 3;
+
+    /**
+     * Longest time for which detection is skipped on an unchanged scene.
+     */
+    private static final long MAX_STATIC_MILLIS = 2000;
+
+    private byte[] mSamples = new byte[GRID_SIZE * GRID_SIZE];
+    private byte[] mReference = new byte[GRID_SIZE * GRID_SIZE];
+
+    // Geometry of the most recently sampled frame.
+    private int mLeft;
+    private int mTop;
+    private int mWidth;
+    private int mHeight;
+
+    // Geometry and time of the reference frame.
+    private boolean mHasReference;
+    private int mReferenceLeft;
+    private int mReferenceTop;
+    private int mReferenceWidth;
+    private int mReferenceHeight;
+    private long mReferenceTimeMillis;
+
+    // Written by the frame processing thread only.
+    private volatile long mStaticFrames;
+
+    /**
+     * Samples a region of a luma plane and returns whether it is unchanged from the last frame
+     * that detection ran on.
+     *
+     * @param rowStride distance in bytes between the starts of two rows of the luma plane
+     */
+    boolean isUnchanged(ByteBuffer luma, int rowStride, int left, int top, int width, int height,
+                        long timestampMillis) {
+        int stepX = Math.max(1, width / GRID_SIZE);
+        int stepY = Math.max(1, height / GRID_SIZE);
+        long difference = 0;
+        int count = 0;
+        for (int gy = 0; gy < GRID_SIZE; ++gy) {
+            int row = (top + Math.min(height - 1, gy * stepY + stepY / 2)) * rowStride;
+            for (int gx = 0; gx < GRID_SIZE; ++gx) {
+                int sample = luma.get(row + left + Math.min(width - 1, gx * stepX + stepX / 2)) & 0xFF;
+                difference += Math.abs(sample - (mReference[count] & 0xFF));
+                mSamples[count++] = (byte) sample;
+            }
+        }
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+
+        if (!mHasReference || left != mReferenceLeft || top != mReferenceTop ||
+                width != mReferenceWidth || height != mReferenceHeight ||
+                timestampMillis - mReferenceTimeMillis >= MAX_STATIC_MILLIS) {
+            return false;
+        }
+        if (difference <= (long) MAX_MEAN_DIFFERENCE * count) {
+            mStaticFrames++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes the most recently sampled frame the reference for the following frames.  Called when
+     * detection runs on that frame.
+     */
+    void markDetected(long timestampMillis) {
+        byte[] reference = mReference;
+        mReference = mSamples;
+        mSamples = reference;
+        mReferenceLeft = mLeft;
+        mReferenceTop = mTop;
+        mReferenceWidth = mWidth;
+        mReferenceHeight = mHeight;
+        mReferenceTimeMillis = timestampMillis;
+        mHasReference = true;
+    }
+
+    /**
+     * Forgets the reference frame, so that detection runs on the next frame.
+     */
+    void reset() {
+        mHasReference = false;
+    }
+
+    /**
+     * Returns the number of frames on which detection was skipped because the scene was
+     * unchanged.
+     */
+    long getStaticFrames() {
+        return mStaticFrames;
+    }
+}
@@ -0,0 +1,127 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap focus quality check on the luma plane of preview frames, used to skip frames that are
+ * blurred (lens hunting for focus, hand moving) before they reach the detector.
+ * <p/>
+ * Sharpness is measured as the mean gradient energy over a sparse grid of pixels.  Its absolute
+ * value depends on the scene and the device, so the threshold adapts: a frame is accepted if its
+ * sharpness is at least a fixed ratio of the running average over recent frames.  To never stall
+ * detection entirely, a frame is always accepted after a number of consecutive skipped frames.
+ * <p/>
+ * {@link #accept} must only be called from the frame processing thread; the statistics may be read
+ * from any thread.
+ */
+final class SharpnessGate {
+    /**
+     * Upper bound on the number of pixels sampled per frame.
+     */
+    private static final int MAX_SAMPLES = 16384;
+
+    /**
+     * Weight of the newest frame in the running average.
+     */
+    private static final float SMOOTHING = 0.1f;
+
+    /**
+     * Number of frames that are always accepted while the running average settles.
+     */
+    private static final int WARM_UP_FRAMES = 5;
+
+    /**
+     * Number of consecutive skipped frames after which the next frame is accepted regardless.
+     */
+    private static final int MAX_CONSECUTIVE_SKIPS = 10;
+
+    private final float mRatio;
+
+    // Only accessed from the frame processing thread.
+    private float mAverage;
+    private int mMeasuredFrames;
+    private int mConsecutiveSkips;
+
+    // Written by the frame processing thread only.
+    private volatile float mLastSharpness;
+    private volatile float mThreshold;
+    private volatile long mSkippedFrames;
+
+    SharpnessGate(float ratio) {
+        mRatio = ratio;
+    }
+
+    /**
+     * Measures the sharpness of a region of a luma plane and decides whether the frame is sharp
+     * enough to be handed to the detector.
+     *
+     * @param rowStride distance in bytes between the starts of two rows of the luma plane
+     */
+    boolean accept(ByteBuffer luma, int rowStride, int left, int top, int width, int height) {
+        float sharpness = measure(luma, rowStride, left, top, width, height);
+        float threshold = mAverage * mRatio;
+        boolean accepted = mMeasuredFrames < WARM_UP_FRAMES || sharpness >= threshold ||
+                mConsecutiveSkips >= MAX_CONSECUTIVE_SKIPS;
+
+        if (mMeasuredFrames == 0) {
+            mAverage = sharpness;
+        } else {
+            mAverage += SMOOTHING * (sharpness - mAverage);
+        }
+        if (mMeasuredFrames < WARM_UP_FRAMES) {
+            mMeasuredFrames++;
+        }
+
+        if (accepted) {
+            mConsecutiveSkips = 0;
+        } else {
+            mConsecutiveSkips++;
+            mSkippedFrames++;
+        }
+        mLastSharpness = sharpness;
+        mThreshold = threshold;
+        return accepted;
+    }
+
+    /**
+     * Returns the sharpness of the most recently measured frame.
+     */
+    float getLastSharpness() {
+        return mLastSharpness;
+    }
+
+    /**
+     * Returns the threshold the most recently measured frame was compared against.
+     */
+    float getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * Returns the number of frames skipped as blurred so far.
+     */
+    long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Returns the mean squared horizontal and vertical gradient over a sparse grid of pixels in
+     * the given region of a luma plane.
+     */
+    static float measure(ByteBuffer luma, int rowStride, int left, int top, int width, int height) {
+        int step = Math.max(1, (int) Math.sqrt((double) width * height / MAX_SAMPLES));
+        long energy = 0;
+        int samples = 0;
+        for (int y = top; y < top + height - 1; y += step) {
+            int row = y * rowStride;
+            for (int x = left; x < left + width - 1; x += step) {
+                int pixel = luma.get(row + x) & 0xFF;
+                int dx = (luma.get(row + x + 1) & 0xFF) - pixel;
+                int dy = (luma.get(row + rowStride + x) & 0xFF) - pixel;
+                energy += dx * dx + dy * dy;
+                samples++;
+            }
+        }
+        return samples == 0 ? 0 : (float) energy / samples;
+    }
+}
@@ -0,0 +1,88 @@
+package com.margin.barcode.camera;
+
+/**
+ * Bounded FIFO of slot indexes that waits when it is full or empty, and allocates nothing.  Hands
+ * frames between the stages of a {@link FramePipeline}; the bound gives the earlier stage
+ * backpressure instead of letting it run ahead.
+ */
+final class SlotQueue {
+    /**
+     * Returned when there is no slot.
+     */
+    static final int EMPTY = FrameExchanger.EMPTY;
+
+    private final int[] mSlots;
+    private int mHead;
+    private int mSize;
+    private boolean mClosed;
+
+    SlotQueue(int capacity) {
+        mSlots = new int[capacity];
+    }
+
+    /**
+     * Appends a slot, waiting for room if necessary.
+     *
+     * @return false if the queue is closed, or the calling thread was interrupted, before there
+     * was room; the slot is not added then
+     */
+    synchronized boolean put(int slot) {
+        try {
+            while (mSize == mSlots.length && !mClosed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (mClosed) {
+            return false;
+        }
+        mSlots[(mHead + mSize) % mSlots.length] = slot;
+        mSize++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Removes the oldest slot, waiting for one if necessary.
+     *
+     * @return the slot, or {@link #EMPTY} once the queue is closed or the calling thread is
+     * interrupted
+     */
+    synchronized int take() {
+        try {
+            while (mSize == 0 && !mClosed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EMPTY;
+        }
+        if (mClosed) {
+            return EMPTY;
+        }
+        int slot = mSlots[mHead];
+        mHead = (mHead + 1) % mSlots.length;
+        mSize--;
+        notifyAll();
+        return slot;
+    }
+
+    /**
+     * Makes waiting calls return right away, and all further calls fail, until {@link #clear()}.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Removes all slots and opens the queue again.
+     */
+    synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+        mClosed = false;
+    }
+}
@@ -0,0 +1,65 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the preview size and frame rate selection from the smallest expected barcode.
+ */
+public class BarcodeResolutionTest {
+    @Test
+    public void requiredWidthCoversSceneAtMinimumPixelsPerModule() {
+        // A 90 degree field of view sees a scene twice as wide as the working distance: 200 mm,
+        // which is 400 modules of 0.5 mm, at 2 pixels each.
+        BarcodeResolution barcode = new BarcodeResolution(0.5f, 100.0f, 100);
+        assertEquals(800, barcode.getRequiredWidth(90.0f));
+    }
+
+    @Test
+    public void implausibleViewAngleFallsBackToDefault() {
+        BarcodeResolution barcode = new BarcodeResolution(0.33f, 150.0f, 100);
+        int expected = barcode.getRequiredWidth(BarcodeResolution.DEFAULT_VIEW_ANGLE);
+        assertEquals(expected, barcode.getRequiredWidth(0.0f));
+        assertEquals(expected, barcode.getRequiredWidth(360.0f));
+    }
+
+    @Test
+    public void smallestResolvingSizeIsPreferred() {
+        assertTrue(BarcodeResolution.isBetterSize(1280, 720, 1920, 1080, 1200));
+        assertFalse(BarcodeResolution.isBetterSize(640, 480, 1280, 720, 1200));
+        assertTrue(BarcodeResolution.isBetterSize(1280, 720, 640, 480, 1200));
+    }
+
+    @Test
+    public void largestSizeIsPreferredIfNoneResolves() {
+        assertTrue(BarcodeResolution.isBetterSize(1920, 1080, 1280, 720, 4000));
+        assertFalse(BarcodeResolution.isBetterSize(640, 480, 1280, 720, 4000));
+    }
+
+    @Test
+    public void highestFpsRangeSustainingLatencyIsPreferred() {
+        BarcodeResolution barcode = new BarcodeResolution(0.33f, 150.0f, 100);
+        float minFps = barcode.getMinFps();
+        assertEquals(10.0f, minFps, 0.0f);
+        // (15, 30) may drop to 15 fps, which still keeps up, and is faster than (15, 15).
+        assertTrue(BarcodeResolution.isBetterFpsRange(15, 30, 15, 15, minFps));
+        // (7, 30) may drop below 10 fps in low light.
+        assertTrue(BarcodeResolution.isBetterFpsRange(15, 15, 7, 30, minFps));
+        assertTrue(BarcodeResolution.isBetterFpsRange(24, 30, 15, 30, minFps));
+    }
+
+    @Test
+    public void fastestLowerBoundIsPreferredIfNoneSustainsLatency() {
+        BarcodeResolution barcode = new BarcodeResolution(0.33f, 150.0f, 20);
+        assertTrue(BarcodeResolution.isBetterFpsRange(30, 30, 15, 30, barcode.getMinFps()));
+        assertFalse(BarcodeResolution.isBetterFpsRange(7, 30, 15, 15, barcode.getMinFps()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidModuleWidthIsRejected() {
+        new BarcodeResolution(0.0f, 150.0f, 100);
+    }
+}
@@ -0,0 +1,73 @@
+package com.margin.barcode.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source whose slots all share one blank frame, for tests that count and time frames rather than
+ * look at them.  The frame in a slot has the slot plus one as its id, and the slot as its
+ * timestamp.  Counts the frames given back.
+ */
+class FixedFrameSource implements FrameSource {
+    private final ByteBuffer mData;
+    private final int mWidth;
+    // Guarded by this.
+    private int mRecycled;
+
+    FixedFrameSource(int width, int height) {
+        mData = ByteBuffer.allocate(Nv21.bufferSize(width, height));
+        mWidth = width;
+    }
+
+    synchronized int getRecycledCount() {
+        return mRecycled;
+    }
+
+    /**
+     * Waits until at least the given number of frames has been given back.
+     *
+     * @return false if that did not happen in time
+     */
+    synchronized boolean awaitRecycled(int count, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (mRecycled < count) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer getData(int slot) {
+        return mData;
+    }
+
+    @Override
+    public int getRowStride(int slot) {
+        return mWidth;
+    }
+
+    @Override
+    public boolean hasChroma() {
+        return true;
+    }
+
+    @Override
+    public int getFrameId(int slot) {
+        return slot + 1;
+    }
+
+    @Override
+    public long getTimestampMillis(int slot) {
+        return slot;
+    }
+
+    @Override
+    public synchronized void recycle(int slot) {
+        mRecycled++;
+        notifyAll();
+    }
+}
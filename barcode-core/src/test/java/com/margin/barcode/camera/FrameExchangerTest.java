@@ -0,0 +1,132 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stress test for the pending frame handoff.  Buffers cycle between a free list (the camera),
+ * the exchanger (pending) and the consumer (detection), and every state change is checked, so a
+ * buffer returned twice or never returned fails the test.
+ */
+public class FrameExchangerTest {
+    private static final int BUFFERS = 6;
+    private static final int PRODUCERS = 3;
+    private static final int FRAMES_PER_PRODUCER = 200000;
+
+    private static final int FREE = 0;
+    private static final int PENDING = 1;
+    private static final int PROCESSING = 2;
+
+    private final AtomicIntegerArray mStates = new AtomicIntegerArray(BUFFERS);
+    private final ConcurrentLinkedQueue<Integer> mFree = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mErrors = new AtomicInteger();
+
+    @Test
+    public void buffersAreNeitherLeakedNorReturnedTwice() throws Exception {
+        for (int i = 0; i < BUFFERS; ++i) {
+            mFree.add(i);
+        }
+        final FrameExchanger exchanger = new FrameExchanger();
+        final AtomicLong offered = new AtomicLong();
+        final AtomicLong replaced = new AtomicLong();
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    int slot = exchanger.take();
+                    if (slot == FrameExchanger.EMPTY) {
+                        return;
+                    }
+                    taken.incrementAndGet();
+                    transition(slot, PENDING, PROCESSING);
+                    Thread.yield();
+                    recycle(slot, PROCESSING);
+                }
+            }
+        });
+        consumer.start();
+
+        for (int p = 0; p < PRODUCERS; ++p) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int frames = 0;
+                    while (frames < FRAMES_PER_PRODUCER) {
+                        Integer slot = mFree.poll();
+                        if (slot == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        transition(slot, FREE, PENDING);
+                        offered.incrementAndGet();
+                        int previous = exchanger.offer(slot);
+                        if (previous != FrameExchanger.EMPTY) {
+                            replaced.incrementAndGet();
+                            recycle(previous, PENDING);
+                        }
+                        frames++;
+                    }
+                    producersDone.countDown();
+                }
+            }).start();
+        }
+
+        producersDone.await();
+        exchanger.close();
+        consumer.join();
+        int drained = exchanger.poll();
+        if (drained != FrameExchanger.EMPTY) {
+            recycle(drained, PENDING);
+        }
+
+        assertEquals(0, mErrors.get());
+        assertEquals(offered.get(), taken.get() + replaced.get() +
+                (drained != FrameExchanger.EMPTY ? 1 : 0));
+        assertEquals(BUFFERS, mFree.size());
+        for (int i = 0; i < BUFFERS; ++i) {
+            assertEquals(FREE, mStates.get(i));
+        }
+    }
+
+    @Test
+    public void closeWakesUpWaitingConsumer() throws Exception {
+        final FrameExchanger exchanger = new FrameExchanger();
+        final AtomicInteger result = new AtomicInteger(0);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(exchanger.take());
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        exchanger.close();
+        consumer.join(5000);
+        assertEquals(FrameExchanger.EMPTY, result.get());
+
+        exchanger.open();
+        exchanger.offer(3);
+        assertEquals(3, exchanger.take());
+    }
+
+    private void transition(int slot, int from, int to) {
+        if (!mStates.compareAndSet(slot, from, to)) {
+            mErrors.incrementAndGet();
+        }
+    }
+
+    private void recycle(int slot, int from) {
+        transition(slot, from, FREE);
+        mFree.add(slot);
+    }
+}
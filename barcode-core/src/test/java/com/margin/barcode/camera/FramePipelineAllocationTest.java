@@ -0,0 +1,244 @@
+package com.margin.barcode.camera;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the frame loop allocates nothing once it is warmed up, on either side of the
+ * pipeline: the thread delivering frames and the processing thread.  Per-frame garbage is what
+ * makes the collector pause the preview and detection on devices, so a change that adds any
+ * fails this test.  With two stages, both processing threads are measured: the preprocessing
+ * thread from the source reads of each frame, and the detection thread from the consumer.
+ */
+public class FramePipelineAllocationTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int ROW_STRIDE = 336;
+    private static final int SLOTS = 3;
+
+    private static final int WARM_UP_FRAMES = 5000;
+    private static final int MEASURED_FRAMES = 5000;
+
+    /**
+     * Bytes that may be allocated over all measured frames, for a one-off allocation such as a
+     * deoptimization.  Any per-frame allocation is at least 16 bytes a frame, far above this.
+     */
+    private static final long SLACK_BYTES = 1024;
+
+    /**
+     * Frames that must reach the consumer while measuring, so that a per-frame allocation adds
+     * up to well above the slack.  Most frames are dropped while the source outpaces processing.
+     */
+    private static final int MIN_MEASURED_FRAMES = 200;
+
+    // How long the source waits for a slot to be given back before failing.
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    public void steadyStateAllocatesNothing() throws Exception {
+        checkSteadyStateAllocatesNothing(false);
+    }
+
+    @Test
+    public void twoStageSteadyStateAllocatesNothing() throws Exception {
+        checkSteadyStateAllocatesNothing(true);
+    }
+
+    private static void checkSteadyStateAllocatesNothing(boolean twoStage) throws Exception {
+        final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        Assume.assumeTrue(threads != null);
+
+        MeasuringConsumer consumer = new MeasuringConsumer(threads);
+        FramePipeline pipeline = new FramePipeline(consumer, new SharpnessGate(0.5f),
+                new SceneChangeDetector());
+        pipeline.setCropChroma(true);
+        pipeline.setTwoStage(twoStage);
+        pipeline.setDownscale(2);
+        pipeline.setRegionOfInterest(0.1f, 0.2f, 0.9f, 0.8f);
+        AlternatingSource source = new AlternatingSource(pipeline, threads);
+
+        pipeline.start(source, WIDTH, HEIGHT, 1);
+        source.produce(WARM_UP_FRAMES);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        consumer.mMeter.start();
+        source.mMeter.start();
+        source.produce(MEASURED_FRAMES);
+        long producerBytes = threads.getThreadAllocatedBytes(threadId) - before;
+        pipeline.stop();
+
+        assertEquals(0, consumer.mErrors);
+        assertTrue("Delivering frames allocated " + producerBytes + " bytes",
+                producerBytes < SLACK_BYTES);
+        source.mMeter.check("Preprocessing");
+        consumer.mMeter.check("Detecting on");
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sunThreads.setThreadAllocatedMemoryEnabled(true);
+        return sunThreads;
+    }
+
+    /**
+     * Delivers two different frames in turn, so that neither the scene change check nor the
+     * sharpness gate settle into skipping them, from a fixed set of slots and without allocating
+     * itself.
+     */
+    private static class AlternatingSource implements FrameSource {
+        private final FrameListener mListener;
+        private final ByteBuffer[] mData = new ByteBuffer[SLOTS];
+        private final int[] mFrameIds = new int[SLOTS];
+        // 1 while a slot is with the pipeline.
+        private final AtomicIntegerArray mInFlight = new AtomicIntegerArray(SLOTS);
+        private int mNextFrameId;
+        // Measures the thread preparing the frames, which reads their data first.
+        final AllocationMeter mMeter;
+
+        AlternatingSource(FrameListener listener, com.sun.management.ThreadMXBean threads) {
+            mListener = listener;
+            mMeter = new AllocationMeter(threads);
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                mData[slot] = ByteBuffer.allocate(ROW_STRIDE * (HEIGHT + HEIGHT / 2));
+            }
+        }
+
+        void produce(int frames) {
+            for (int i = 0; i < frames; ++i) {
+                int slot = mNextFrameId % SLOTS;
+                long deadline = System.nanoTime() + TIMEOUT_NANOS;
+                while (mInFlight.get(slot) != 0) {
+                    if (System.nanoTime() - deadline > 0) {
+                        fail("Slot " + slot + " not given back in time");
+                    }
+                    Thread.yield();
+                }
+                fill(mData[slot], mNextFrameId % 2);
+                mFrameIds[slot] = ++mNextFrameId;
+                mInFlight.set(slot, 1);
+                mListener.onFrameAvailable(this, slot, System.nanoTime());
+            }
+        }
+
+        private static void fill(ByteBuffer data, int pattern) {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    int shade = pattern == 0 ? x * 7 + y * 13 : (x / 4 + y / 4) % 2 * 200;
+                    data.put(y * ROW_STRIDE + x, (byte) shade);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer getData(int slot) {
+            mMeter.measure();
+            return mData[slot];
+        }
+
+        @Override
+        public int getRowStride(int slot) {
+            return ROW_STRIDE;
+        }
+
+        @Override
+        public boolean hasChroma() {
+            return true;
+        }
+
+        @Override
+        public int getFrameId(int slot) {
+            return mFrameIds[slot];
+        }
+
+        @Override
+        public long getTimestampMillis(int slot) {
+            return mFrameIds[slot] * 33L;
+        }
+
+        @Override
+        public void recycle(int slot) {
+            mInFlight.set(slot, 0);
+        }
+    }
+
+    /**
+     * Measures the bytes allocated by the processing thread, or processing stage, that detects on
+     * the frames, without allocating itself.  The results are final once the pipeline has stopped.
+     */
+    private static class MeasuringConsumer implements FramePipeline.FrameConsumer {
+        final AllocationMeter mMeter;
+        volatile int mErrors;
+
+        MeasuringConsumer(com.sun.management.ThreadMXBean threads) {
+            mMeter = new AllocationMeter(threads);
+        }
+
+        @Override
+        public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                            int scaleFactor, int frameId, long timestampMillis) {
+            mMeter.measure();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            mErrors++;
+        }
+    }
+
+    /**
+     * Measures the bytes allocated by the thread calling {@link #measure()} once per frame, from
+     * the first frame after {@link #start()} on, without allocating itself.  The results are
+     * final once the pipeline has stopped.
+     */
+    private static class AllocationMeter {
+        private final com.sun.management.ThreadMXBean mThreads;
+        private volatile boolean mStart;
+        // Only accessed from the measured thread.
+        private boolean mMeasuring;
+        private long mStartBytes;
+        private volatile long mAllocatedBytes;
+        private volatile int mMeasuredFrames;
+
+        AllocationMeter(com.sun.management.ThreadMXBean threads) {
+            mThreads = threads;
+        }
+
+        void start() {
+            mStart = true;
+        }
+
+        void measure() {
+            long bytes = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            if (mMeasuring) {
+                mAllocatedBytes = bytes - mStartBytes;
+                mMeasuredFrames++;
+            } else if (mStart) {
+                mStartBytes = bytes;
+                mMeasuring = true;
+            }
+        }
+
+        void check(String stage) {
+            assertTrue(stage + " too few frames: " + mMeasuredFrames,
+                    mMeasuredFrames >= MIN_MEASURED_FRAMES);
+            assertTrue(stage + " " + mMeasuredFrames + " frames allocated " + mAllocatedBytes
+                    + " bytes", mAllocatedBytes < SLACK_BYTES);
+        }
+    }
+}
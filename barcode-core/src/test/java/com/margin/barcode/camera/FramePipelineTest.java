@@ -0,0 +1,343 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the frame pipeline with a synthetic source, without a camera.
+ */
+public class FramePipelineTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int ROW_STRIDE = 72;
+    private static final int SLOTS = 4;
+    // How long a test waits for the pipeline before failing.
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    public void everyFrameIsRecycledOnceAndDeliveredInOrder() throws Exception {
+        checkFramesRecycledOnceAndDeliveredInOrder(false);
+    }
+
+    @Test
+    public void twoStagesRecycleEveryFrameOnceAndDeliverInOrder() throws Exception {
+        checkFramesRecycledOnceAndDeliveredInOrder(true);
+    }
+
+    private static void checkFramesRecycledOnceAndDeliveredInOrder(boolean twoStage)
+            throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        FramePipeline pipeline = new FramePipeline(consumer, null, null);
+        pipeline.setTwoStage(twoStage);
+        // Alternate between the whole frame, which is only packed, and a crop.
+        SyntheticSource source = new SyntheticSource(pipeline);
+
+        pipeline.start(source, WIDTH, HEIGHT, 0);
+        for (int i = 0; i < 10; ++i) {
+            if (i % 2 == 0) {
+                pipeline.clearRegionOfInterest();
+            } else {
+                pipeline.setRegionOfInterest(0.25f, 0.5f, 0.75f, 1.0f);
+            }
+            source.produce(500);
+        }
+        // The last frame stays pending until it is processed.
+        consumer.awaitFrames(1);
+        pipeline.stop();
+        source.recycleUntaken();
+
+        assertEquals(new ArrayList<Throwable>(), consumer.mErrors);
+        assertEquals(0, source.mErrors.get());
+        assertEquals(SLOTS, source.mFree.size());
+        assertTrue(consumer.mFrameIds.size() > 0);
+        for (int i = 1; i < consumer.mFrameIds.size(); ++i) {
+            assertTrue(consumer.mFrameIds.get(i) > consumer.mFrameIds.get(i - 1));
+        }
+    }
+
+    @Test
+    public void regionOfInterestIsCroppedAndPacked() throws Exception {
+        checkRegionOfInterestCroppedAndPacked(false);
+    }
+
+    @Test
+    public void twoStagesCropAndPackRegionOfInterest() throws Exception {
+        checkRegionOfInterestCroppedAndPacked(true);
+    }
+
+    @Test
+    public void twoStagesDetectOffThePreprocessingThread() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        FramePipeline pipeline = new FramePipeline(consumer, null, null);
+        pipeline.setTwoStage(true);
+        SyntheticSource source = new SyntheticSource(pipeline);
+        FrameTracer tracer = new FrameTracer(64);
+        pipeline.setTracer(tracer);
+
+        pipeline.start(source, WIDTH, HEIGHT, 0);
+        source.produce(1);
+        consumer.awaitFrames(1);
+        pipeline.stop();
+
+        StringWriter trace = new StringWriter();
+        tracer.write(trace);
+        String json = trace.toString();
+        assertTrue(json, json.contains("\"preprocess\""));
+        assertTrue(json, json.contains("\"detect\""));
+        assertEquals(1, consumer.mThreadIds.size());
+        assertFalse(json.matches("(?s).*\"preprocess\"[^}]*\"tid\":"
+                + consumer.mThreadIds.get(0) + ",.*"));
+    }
+
+    @Test
+    public void processingThreadsAreReusedAcrossRestarts() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        FramePipeline pipeline = new FramePipeline(consumer, null, null);
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        pipeline.setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "test-processing");
+                threads.add(thread);
+                return thread;
+            }
+        });
+        SyntheticSource source = new SyntheticSource(pipeline);
+
+        for (int run = 0; run < 3; ++run) {
+            // Switching to two stages launches the second thread once.
+            pipeline.setTwoStage(run > 0);
+            pipeline.start(source, WIDTH, HEIGHT, 0);
+            int processed = consumer.mFrameIds.size();
+            source.produce(200);
+            consumer.awaitFrames(processed + 1);
+            pipeline.stop();
+            source.recycleUntaken();
+            assertFalse(pipeline.isRunning());
+        }
+        assertEquals(new ArrayList<Throwable>(), consumer.mErrors);
+        assertEquals(0, source.mErrors.get());
+        assertEquals(2, threads.size());
+        assertEquals(2, consumer.mThreadIds.size());
+
+        pipeline.release();
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void downscaledCopyIsMadeWhilePreprocessing() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        FramePipeline pipeline = new FramePipeline(consumer, null, null);
+        pipeline.setTwoStage(true);
+        pipeline.setDownscale(2);
+        pipeline.setRegionOfInterest(0.25f, 0.5f, 0.75f, 1.0f);
+        SyntheticSource source = new SyntheticSource(pipeline);
+
+        pipeline.start(source, WIDTH, HEIGHT, 0);
+        source.produce(1);
+        consumer.awaitFrames(1);
+        pipeline.stop();
+
+        assertEquals(new ArrayList<Throwable>(), consumer.mErrors);
+        assertEquals(2, consumer.mLastScaleFactor);
+        FrameRegion region = consumer.mLastRegion;
+        int width = region.getWidth() / 2;
+        byte[] scaled = consumer.mLastScaledLuma;
+        assertEquals(width * (region.getHeight() / 2), scaled.length);
+        for (int y = 0; y < region.getHeight() / 2; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int left = region.getLeft() + 2 * x;
+                int top = region.getTop() + 2 * y;
+                int sum = (pixel(left, top) & 0xFF) + (pixel(left + 1, top) & 0xFF)
+                        + (pixel(left, top + 1) & 0xFF) + (pixel(left + 1, top + 1) & 0xFF);
+                assertEquals((byte) (sum >> 2), scaled[y * width + x]);
+            }
+        }
+    }
+
+    private static void checkRegionOfInterestCroppedAndPacked(boolean twoStage)
+            throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        FramePipeline pipeline = new FramePipeline(consumer, null, null);
+        pipeline.setTwoStage(twoStage);
+        pipeline.setRegionOfInterest(0.25f, 0.5f, 0.75f, 1.0f);
+        SyntheticSource source = new SyntheticSource(pipeline);
+
+        pipeline.start(source, WIDTH, HEIGHT, 0);
+        source.produce(1);
+        consumer.awaitFrames(1);
+        pipeline.stop();
+
+        assertEquals(new ArrayList<Throwable>(), consumer.mErrors);
+        FrameRegion region = consumer.mLastRegion;
+        assertEquals(WIDTH / 2, region.getWidth());
+        assertEquals(HEIGHT / 2, region.getHeight());
+        byte[] luma = consumer.mLastLuma;
+        for (int y = 0; y < region.getHeight(); ++y) {
+            for (int x = 0; x < region.getWidth(); ++x) {
+                assertEquals(pixel(region.getLeft() + x, region.getTop() + y),
+                        luma[y * region.getWidth() + x]);
+            }
+        }
+    }
+
+    private static byte pixel(int x, int y) {
+        return (byte) (x * 7 + y * 13);
+    }
+
+    /**
+     * Produces frames with padded rows into a fixed set of slots, like a camera with callback
+     * buffers, and checks that every slot is given back exactly once.
+     */
+    private static class SyntheticSource implements FrameSource {
+        final ConcurrentLinkedQueue<Integer> mFree = new ConcurrentLinkedQueue<>();
+        final AtomicIntegerArray mInFlight = new AtomicIntegerArray(SLOTS);
+        final AtomicInteger mErrors = new AtomicInteger();
+        private final FrameListener mListener;
+        private final ByteBuffer[] mData = new ByteBuffer[SLOTS];
+        private final int[] mFrameIds = new int[SLOTS];
+        private int mNextFrameId;
+
+        SyntheticSource(FrameListener listener) {
+            mListener = listener;
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                byte[] data = new byte[ROW_STRIDE * (HEIGHT + HEIGHT / 2)];
+                for (int y = 0; y < HEIGHT; ++y) {
+                    for (int x = 0; x < WIDTH; ++x) {
+                        data[y * ROW_STRIDE + x] = pixel(x, y);
+                    }
+                }
+                mData[slot] = ByteBuffer.wrap(data);
+                mFree.add(slot);
+            }
+        }
+
+        void produce(int frames) throws InterruptedException {
+            for (int i = 0; i < frames; ++i) {
+                Integer slot;
+                long deadline = System.nanoTime() + TIMEOUT_NANOS;
+                while ((slot = mFree.poll()) == null) {
+                    if (System.nanoTime() - deadline > 0) {
+                        fail("No slot given back in time");
+                    }
+                    Thread.yield();
+                }
+                if (!mInFlight.compareAndSet(slot, 0, 1)) {
+                    mErrors.incrementAndGet();
+                }
+                mFrameIds[slot] = ++mNextFrameId;
+                mListener.onFrameAvailable(this, slot, System.nanoTime());
+            }
+        }
+
+        /**
+         * Gives back the slot left pending in the pipeline after it stopped.
+         */
+        void recycleUntaken() {
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                if (mInFlight.get(slot) == 1) {
+                    recycle(slot);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer getData(int slot) {
+            return mData[slot];
+        }
+
+        @Override
+        public int getRowStride(int slot) {
+            return ROW_STRIDE;
+        }
+
+        @Override
+        public boolean hasChroma() {
+            return true;
+        }
+
+        @Override
+        public int getFrameId(int slot) {
+            return mFrameIds[slot];
+        }
+
+        @Override
+        public long getTimestampMillis(int slot) {
+            return mFrameIds[slot];
+        }
+
+        @Override
+        public void recycle(int slot) {
+            if (!mInFlight.compareAndSet(slot, 1, 0)) {
+                mErrors.incrementAndGet();
+            }
+            mFree.add(slot);
+        }
+    }
+
+    private static class RecordingConsumer implements FramePipeline.FrameConsumer {
+        final List<Integer> mFrameIds = new CopyOnWriteArrayList<>();
+        final List<Throwable> mErrors = new CopyOnWriteArrayList<>();
+        final List<Long> mThreadIds = new CopyOnWriteArrayList<>();
+        volatile FrameRegion mLastRegion;
+        volatile byte[] mLastLuma;
+        volatile byte[] mLastScaledLuma;
+        volatile int mLastScaleFactor;
+
+        /**
+         * Waits until the given number of frames has been detected on in total.
+         */
+        void awaitFrames(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (mFrameIds.size() < count) {
+                if (System.nanoTime() - deadline > 0) {
+                    fail("Only " + mFrameIds.size() + " of " + count + " frames in time");
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        @Override
+        public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                            int scaleFactor, int frameId, long timestampMillis) {
+            byte[] luma = new byte[region.getWidth() * region.getHeight()];
+            data.duplicate().get(luma);
+            mLastLuma = luma;
+            if (scaledData != null) {
+                byte[] scaledLuma = new byte[Nv21.downscaledSize(region.getWidth(), scaleFactor)
+                        * Nv21.downscaledSize(region.getHeight(), scaleFactor)];
+                scaledData.duplicate().get(scaledLuma);
+                mLastScaledLuma = scaledLuma;
+            }
+            mLastScaleFactor = scaleFactor;
+            mLastRegion = region;
+            mFrameIds.add(frameId);
+            if (!mThreadIds.contains(Thread.currentThread().getId())) {
+                mThreadIds.add(Thread.currentThread().getId());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            mErrors.add(t);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.margin.barcode.camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of frames through {@link FrameRecorder} and {@link FrameReplaySource}.
+ */
+public class FrameRecordingTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int ROW_STRIDE = 8;
+    private static final int FRAMES = 5;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replayDeliversEveryRecordedFramePacked() throws Exception {
+        File file = mFolder.newFile("frames.nv21");
+        FrameRecorder recorder = new FrameRecorder(file, Long.MAX_VALUE);
+        for (int i = 0; i < FRAMES; ++i) {
+            assertTrue(recorder.record(createPaddedFrame(i), ROW_STRIDE, WIDTH, HEIGHT, true,
+                    i + 1, 33L * i, 1));
+        }
+        recorder.close();
+
+        final List<String> errors = new ArrayList<>();
+        final List<Integer> frameIds = new ArrayList<>();
+        FrameReplaySource replay = FrameReplaySource.open(file, false,
+                new FrameSource.FrameListener() {
+                    @Override
+                    public void onFrameAvailable(FrameSource source, int slot,
+                                                 long receivedNanos) {
+                        int frameId = source.getFrameId(slot);
+                        frameIds.add(frameId);
+                        if (source.getTimestampMillis(slot) != 33L * (frameId - 1)) {
+                            errors.add("timestamp of frame " + frameId);
+                        }
+                        ByteBuffer data = source.getData(slot);
+                        if (!data.equals(createPackedFrame(frameId - 1))) {
+                            errors.add("data of frame " + frameId);
+                        }
+                        source.recycle(slot);
+                    }
+                });
+        assertEquals(FRAMES, replay.getFrameCount());
+        assertEquals(WIDTH, replay.getWidth());
+        assertEquals(HEIGHT, replay.getHeight());
+        assertEquals(1, replay.getRotation());
+        assertTrue(replay.hasChroma());
+
+        replay.start();
+        replay.await();
+        replay.close();
+
+        assertEquals(new ArrayList<String>(), errors);
+        assertEquals(FRAMES, frameIds.size());
+        for (int i = 0; i < FRAMES; ++i) {
+            assertEquals(i + 1, (int) frameIds.get(i));
+        }
+    }
+
+    @Test
+    public void framesBeyondSizeLimitAreDropped() throws Exception {
+        File file = mFolder.newFile("limited.nv21");
+        int recordSize = FrameRecorder.RECORD_HEADER_SIZE + Nv21.bufferSize(WIDTH, HEIGHT);
+        FrameRecorder recorder = new FrameRecorder(file,
+                FrameRecorder.FILE_HEADER_SIZE + 2 * recordSize);
+        assertTrue(recorder.record(createPaddedFrame(0), ROW_STRIDE, WIDTH, HEIGHT, true, 1, 0, 0));
+        assertTrue(recorder.record(createPaddedFrame(1), ROW_STRIDE, WIDTH, HEIGHT, true, 2, 0, 0));
+        assertFalse(recorder.record(createPaddedFrame(2), ROW_STRIDE, WIDTH, HEIGHT, true, 3, 0, 0));
+        recorder.close();
+
+        assertEquals(FrameRecorder.FILE_HEADER_SIZE + 2 * recordSize, file.length());
+        assertEquals(2, FrameReplaySource.open(file, false, null).getFrameCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedRecordingIsRejected() throws Exception {
+        File file = mFolder.newFile("truncated.nv21");
+        FrameRecorder recorder = new FrameRecorder(file, Long.MAX_VALUE);
+        recorder.record(createPaddedFrame(0), ROW_STRIDE, WIDTH, HEIGHT, true, 1, 0, 0);
+        recorder.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 1);
+        raf.close();
+
+        FrameReplaySource.open(file, false, null);
+    }
+
+    /**
+     * Creates an NV21 frame whose rows are padded to the row stride, with the padding set to a
+     * value that must not show up in the recording.
+     */
+    private static ByteBuffer createPaddedFrame(int index) {
+        int rows = HEIGHT + HEIGHT / 2;
+        byte[] data = new byte[ROW_STRIDE * rows];
+        for (int y = 0; y < rows; ++y) {
+            for (int x = 0; x < ROW_STRIDE; ++x) {
+                data[y * ROW_STRIDE + x] = x < WIDTH ? pixel(index, x, y) : (byte) 0xEE;
+            }
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static ByteBuffer createPackedFrame(int index) {
+        int rows = HEIGHT + HEIGHT / 2;
+        byte[] data = new byte[WIDTH * rows];
+        for (int y = 0; y < rows; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                data[y * WIDTH + x] = pixel(index, x, y);
+            }
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static byte pixel(int index, int x, int y) {
+        return (byte) (index * 31 + y * WIDTH + x);
+    }
+}
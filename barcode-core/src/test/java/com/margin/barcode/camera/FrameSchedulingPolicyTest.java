@@ -0,0 +1,118 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSchedulingPolicyTest {
+    private static final int EMPTY = FrameSchedulingPolicy.EMPTY;
+
+    @Test
+    public void latestWinsReplacesThePendingFrame() {
+        FrameSchedulingPolicy policy = FrameSchedulingPolicy.latestWins();
+        assertEquals(EMPTY, policy.offer(1));
+        assertEquals(1, policy.offer(2));
+        assertEquals(2, policy.offer(3));
+        assertEquals(3, policy.take());
+        assertEquals(EMPTY, policy.poll());
+        assertEquals(2, policy.getDroppedFrames());
+    }
+
+    @Test
+    public void boundedQueueKeepsOrderAndDropsTheOldest() {
+        FrameSchedulingPolicy policy = FrameSchedulingPolicy.boundedQueue(3);
+        assertEquals(3, policy.getCapacity());
+        for (int slot = 0; slot < 3; ++slot) {
+            assertEquals(EMPTY, policy.offer(slot));
+        }
+        assertEquals(0, policy.offer(3));
+        assertEquals(1, policy.offer(4));
+        assertEquals(2, policy.take());
+        assertEquals(3, policy.take());
+        assertEquals(EMPTY, policy.offer(5));
+        assertEquals(4, policy.take());
+        assertEquals(5, policy.take());
+        assertEquals(EMPTY, policy.poll());
+        assertEquals(2, policy.getDroppedFrames());
+        assertEquals("queue-3 dropped=2", policy.toString());
+    }
+
+    @Test
+    public void everyNthDropsTheOtherFramesRightAway() {
+        FrameSchedulingPolicy policy = FrameSchedulingPolicy.everyNth(3);
+        assertEquals(EMPTY, policy.offer(0));
+        assertEquals(1, policy.offer(1));
+        assertEquals(2, policy.offer(2));
+        assertEquals(0, policy.take());
+        assertEquals(EMPTY, policy.offer(3));
+        assertEquals(4, policy.offer(4));
+        assertEquals(3, policy.take());
+        assertEquals(3, policy.getDroppedFrames());
+    }
+
+    @Test
+    public void deadlineExpiresOldFrames() {
+        FrameSchedulingPolicy policy = FrameSchedulingPolicy.deadline(100);
+        long now = System.nanoTime();
+        assertFalse(policy.isExpired(now - TimeUnit.MILLISECONDS.toNanos(100), now));
+        assertTrue(policy.isExpired(now - TimeUnit.MILLISECONDS.toNanos(101), now));
+        assertEquals(EMPTY, policy.offer(0));
+        assertEquals(0, policy.offer(1));
+        assertEquals(2, policy.getDroppedFrames());
+        assertEquals("deadline-100ms dropped=2", policy.toString());
+    }
+
+    @Test
+    public void closedQueueStopsWaitingConsumer() throws Exception {
+        final FrameSchedulingPolicy policy = FrameSchedulingPolicy.boundedQueue(2);
+        final int[] taken = {0};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = policy.take();
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        policy.close();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(EMPTY, taken[0]);
+
+        // Frames offered while closed are drained rather than taken.
+        policy.offer(7);
+        assertEquals(EMPTY, policy.take());
+        assertEquals(7, policy.poll());
+        policy.open();
+        policy.offer(8);
+        assertEquals(8, policy.take());
+    }
+
+    @Test
+    public void pipelineCountsExpiredFramesAsDropped() throws Exception {
+        FrameSchedulingPolicy policy = FrameSchedulingPolicy.deadline(1);
+        FixedFrameSource source = new FixedFrameSource(4, 4);
+        FramePipeline pipeline = new FramePipeline(new FramePipeline.FrameConsumer() {
+            @Override
+            public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                                int scaleFactor, int frameId, long timestampMillis) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+        }, null, null, policy);
+        pipeline.start(source, 4, 4, 1);
+        pipeline.onFrameAvailable(source, 0,
+                System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(source.awaitRecycled(1, 5000));
+        pipeline.stop();
+        assertEquals(1, policy.getDroppedFrames());
+        assertEquals(1, pipeline.getMetrics().snapshot().getDroppedFrames());
+    }
+}
@@ -0,0 +1,73 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTilesTest {
+    @Test
+    public void tilesCoverTheFrameWithOverlap() {
+        FrameTiles tiles = new FrameTiles(3, 2, 0.25f);
+        tiles.layout(1921, 1080);
+        assertEquals(6, tiles.getCount());
+
+        for (int tile = 0; tile < tiles.getCount(); ++tile) {
+            assertEquals(0, tiles.getLeft(tile) % 2);
+            assertEquals(0, tiles.getTop(tile) % 2);
+            assertEquals(0, tiles.getWidth(tile) % 2);
+            assertEquals(0, tiles.getHeight(tile) % 2);
+            assertTrue(tiles.getLeft(tile) + tiles.getWidth(tile) <= 1920);
+            assertTrue(tiles.getTop(tile) + tiles.getHeight(tile) <= 1080);
+        }
+        // Row by row: the first and last tiles touch the opposite corners.
+        assertEquals(0, tiles.getLeft(0));
+        assertEquals(0, tiles.getTop(0));
+        assertEquals(1920, tiles.getLeft(5) + tiles.getWidth(5));
+        assertEquals(1080, tiles.getTop(5) + tiles.getHeight(5));
+
+        // Neighbours share at least the overlap, less rounding to even coordinates.
+        int width = tiles.getWidth(0);
+        for (int column = 1; column < 3; ++column) {
+            int shared = tiles.getLeft(column - 1) + width - tiles.getLeft(column);
+            assertTrue("Columns share " + shared, shared >= width / 4 - 2);
+        }
+        int height = tiles.getHeight(0);
+        int shared = tiles.getTop(0) + height - tiles.getTop(3);
+        assertTrue("Rows share " + shared, shared >= height / 4 - 2);
+    }
+
+    @Test
+    public void singleTileIsTheWholeFrame() {
+        FrameTiles tiles = new FrameTiles(1, 1, 0.5f);
+        tiles.layout(640, 480);
+        assertEquals(1, tiles.getCount());
+        assertEquals(0, tiles.getLeft(0));
+        assertEquals(0, tiles.getTop(0));
+        assertEquals(640, tiles.getWidth(0));
+        assertEquals(480, tiles.getHeight(0));
+    }
+
+    @Test
+    public void tileRegionsMapToTheFrame() {
+        FrameTiles tiles = new FrameTiles(2, 2, 0.2f);
+        tiles.layout(640, 480);
+        FrameRegion region = new FrameRegion();
+        int tile = 3;
+        region.set(640, 480, 1, tiles.getLeft(tile), tiles.getTop(tile), tiles.getWidth(tile),
+                tiles.getHeight(tile));
+
+        // Upright, the frame is 480 wide, and the bottom right sensor tile is on the left.
+        assertEquals(0, region.mapX(0));
+        assertEquals(tiles.getLeft(tile), region.mapY(0));
+    }
+
+    @Test
+    public void samePositionNeedsHalfOfTheSmallerBox() {
+        assertTrue(FrameTiles.isSamePosition(0, 0, 100, 40, 2, 1, 101, 41));
+        assertTrue(FrameTiles.isSamePosition(0, 0, 100, 40, 50, 0, 100, 40));
+        assertFalse(FrameTiles.isSamePosition(0, 0, 100, 40, 60, 0, 160, 40));
+        assertFalse(FrameTiles.isSamePosition(0, 0, 100, 40, 100, 0, 200, 40));
+    }
+}
@@ -0,0 +1,105 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTracerTest {
+    private static final Pattern SPAN = Pattern.compile(
+            "\\{\"name\":\"(\\w+)\",\"cat\":\"pipeline\",\"ph\":\"X\",\"ts\":-?\\d+\\.\\d{3}," +
+                    "\"dur\":\\d+\\.\\d{3},\"pid\":1,\"tid\":\\d+" +
+                    "(,\"args\":\\{\"frame\":(\\d+)\\})?\\}");
+
+    @Test
+    public void ringKeepsTheMostRecentSpans() throws Exception {
+        FrameTracer tracer = new FrameTracer(4);
+        for (int frameId = 1; frameId <= 10; ++frameId) {
+            tracer.record(FrameTracer.SPAN_DETECT, System.nanoTime(), frameId);
+        }
+        tracer.record(FrameTracer.SPAN_OVERLAY_DRAW, System.nanoTime(), FrameTracer.NO_FRAME);
+
+        String trace = write(tracer);
+
+        assertEquals(11, tracer.getRecordedCount());
+        assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(trace.endsWith("]}"));
+        Matcher matcher = SPAN.matcher(trace);
+        for (int frameId = 8; frameId <= 10; ++frameId) {
+            assertTrue(matcher.find());
+            assertEquals("detect", matcher.group(1));
+            assertEquals(String.valueOf(frameId), matcher.group(3));
+        }
+        assertTrue(matcher.find());
+        assertEquals("overlay_draw", matcher.group(1));
+        assertEquals(null, matcher.group(2));
+        assertFalse(matcher.find());
+    }
+
+    @Test
+    public void threadsAreNamed() throws Exception {
+        final FrameTracer tracer = new FrameTracer(16);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracer.record(FrameTracer.SPAN_CAMERA_CALLBACK, System.nanoTime(), 1);
+            }
+        }, "camera \"callbacks\"");
+        thread.start();
+        thread.join();
+
+        String trace = write(tracer);
+
+        assertTrue(trace, trace.contains("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1," +
+                "\"tid\":" + thread.getId() +
+                ",\"args\":{\"name\":\"camera \\\"callbacks\\\"\"}}"));
+        assertTrue(trace, trace.contains("\"tid\":" + thread.getId() + ",\"args\":{\"frame\":1}"));
+    }
+
+    @Test
+    public void pipelineTracesEachFrame() throws Exception {
+        FrameTracer tracer = new FrameTracer(64);
+        FramePipeline pipeline = new FramePipeline(new FramePipeline.FrameConsumer() {
+            @Override
+            public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                                int scaleFactor, int frameId, long timestampMillis) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+        }, null, null);
+        pipeline.setTracer(tracer);
+        FixedFrameSource source = new FixedFrameSource(16, 16);
+
+        pipeline.start(source, 16, 16, 0);
+        // The frame in slot 6 has id 7.
+        pipeline.onFrameAvailable(source, 6, System.nanoTime());
+        assertTrue(source.awaitRecycled(1, 5000));
+        pipeline.stop();
+
+        String trace = write(tracer);
+        Matcher matcher = SPAN.matcher(trace);
+        int spans = 0;
+        while (matcher.find()) {
+            assertEquals("7", matcher.group(3));
+            spans++;
+        }
+        assertEquals(4, spans);
+        for (String span : new String[]{"camera_callback", "preprocess", "detect", "recycle"}) {
+            assertTrue(trace, trace.contains("\"name\":\"" + span + "\""));
+        }
+    }
+
+    private static String write(FrameTracer tracer) throws Exception {
+        StringWriter writer = new StringWriter();
+        tracer.write(writer);
+        return writer.toString();
+    }
+}
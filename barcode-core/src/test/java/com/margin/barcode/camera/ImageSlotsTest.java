@@ -0,0 +1,75 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Stress test for the image slots of the Camera2 backend.  The camera thread refills each slot as
+ * soon as the processing thread recycles it, and the processing thread checks that every frame it
+ * receives still has the data it was filled with.
+ */
+public class ImageSlotsTest {
+    private static final int SLOTS = 2;
+    private static final int FRAMES = 200000;
+
+    private final AtomicInteger mClosed = new AtomicInteger();
+
+    @Test
+    public void recycledSlotCanBeRefilledRightAway() throws Exception {
+        final ImageSlots<Integer> slots = new ImageSlots<Integer>(SLOTS) {
+            @Override
+            void closeImage(Integer image) {
+                mClosed.incrementAndGet();
+            }
+        };
+        final BlockingQueue<Integer> handedOver = new ArrayBlockingQueue<>(SLOTS);
+        final AtomicInteger errors = new AtomicInteger();
+
+        Thread processing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < FRAMES; ++i) {
+                        int slot = handedOver.take();
+                        ByteBuffer data = slots.getData(slot);
+                        if (data == null || data.getInt(0) != slots.getFrameId(slot)) {
+                            errors.incrementAndGet();
+                        }
+                        slots.recycle(slot);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        processing.start();
+
+        int frameId = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (frameId < FRAMES && System.nanoTime() - deadline < 0) {
+            ByteBuffer data = ByteBuffer.allocate(4);
+            data.putInt(0, frameId + 1);
+            int slot = slots.fill(frameId + 1, data, 4, frameId + 1, frameId);
+            if (slot == FrameBufferPool.NO_SLOT) {
+                Thread.yield();
+                continue;
+            }
+            frameId++;
+            handedOver.put(slot);
+        }
+        processing.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(processing.isAlive());
+        assertEquals(FRAMES, frameId);
+        assertEquals(0, errors.get());
+        assertEquals(FRAMES, mClosed.get());
+    }
+}
@@ -0,0 +1,116 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineMetricsTest {
+    @Test
+    public void bucketsCoverEveryValueWithinTheirBounds() {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; ++bucket) {
+            long lowerBound = previousUpperBound + 1;
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lowerBound));
+            assertEquals(bucket, LatencyHistogram.bucketOf(upperBound));
+            assertTrue(upperBound - lowerBound <= lowerBound / 8);
+            previousUpperBound = upperBound;
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketResolution() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        for (int millis = 1; millis <= 100; ++millis) {
+            metrics.record(PipelineMetrics.STAGE_DETECT, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+
+        assertEquals(100, snapshot.getCount(PipelineMetrics.STAGE_DETECT));
+        assertEquals(0, snapshot.getCount(PipelineMetrics.STAGE_UI_DISPATCH));
+        assertEquals(100000, snapshot.getMaxMicros(PipelineMetrics.STAGE_DETECT));
+        assertEquals(50500, snapshot.getMeanMicros(PipelineMetrics.STAGE_DETECT), 1e-6);
+        assertWithin(50000, snapshot.getPercentileMicros(PipelineMetrics.STAGE_DETECT, 0.5));
+        assertWithin(99000, snapshot.getPercentileMicros(PipelineMetrics.STAGE_DETECT, 0.99));
+        assertEquals(100000, snapshot.getPercentileMicros(PipelineMetrics.STAGE_DETECT, 1));
+    }
+
+    @Test
+    public void snapshotAndResetStartsOver() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.record(PipelineMetrics.STAGE_END_TO_END, 5000);
+        metrics.recordDroppedFrame();
+        metrics.recordProcessedFrame();
+        metrics.recordFailedFrame();
+
+        PipelineMetrics.Snapshot first = metrics.snapshotAndReset();
+        PipelineMetrics.Snapshot second = metrics.snapshot();
+
+        assertEquals(1, first.getCount(PipelineMetrics.STAGE_END_TO_END));
+        assertEquals(5, first.getMaxMicros(PipelineMetrics.STAGE_END_TO_END));
+        assertEquals(1, first.getDroppedFrames());
+        assertEquals(1, first.getProcessedFrames());
+        assertEquals(1, first.getFailedFrames());
+        assertEquals(0, second.getCount(PipelineMetrics.STAGE_END_TO_END));
+        assertEquals(0, second.getMaxMicros(PipelineMetrics.STAGE_END_TO_END));
+        assertEquals(0, second.getDroppedFrames());
+        assertEquals(0, second.getProcessedFrames());
+        assertEquals(0, second.getFailedFrames());
+    }
+
+    @Test
+    public void pipelineCountsEveryFrameReceived() throws Exception {
+        FramePipeline pipeline = new FramePipeline(new FramePipeline.FrameConsumer() {
+            @Override
+            public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                                int scaleFactor, int frameId, long timestampMillis) {
+                if (frameId % 10 == 0) {
+                    throw new IllegalStateException("Detection failed");
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+        }, null, null);
+        FixedFrameSource source = new FixedFrameSource(16, 16);
+
+        pipeline.start(source, 16, 16, 0);
+        int frames = 1000;
+        for (int i = 0; i < frames; ++i) {
+            pipeline.onFrameAvailable(source, i, System.nanoTime());
+        }
+        // On a single core the detector may not have run yet; let it take one frame.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getMetrics().snapshot().getProcessedFrames() == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("No frame processed in time");
+            }
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+        PipelineMetrics.Snapshot snapshot = pipeline.getMetrics().snapshot();
+
+        // Each frame was either processed or dropped, except maybe one left pending.
+        assertEquals(source.getRecycledCount(),
+                snapshot.getProcessedFrames() + snapshot.getDroppedFrames());
+        assertTrue(source.getRecycledCount() >= frames - 1);
+        assertTrue(snapshot.getProcessedFrames() > 0);
+        assertEquals(frames, snapshot.getCount(PipelineMetrics.STAGE_CAMERA_TO_PENDING));
+        // Without gates, every frame processed reaches the detector.
+        assertEquals(snapshot.getProcessedFrames(),
+                snapshot.getCount(PipelineMetrics.STAGE_PENDING_TO_DETECT));
+        assertEquals(snapshot.getProcessedFrames() - snapshot.getFailedFrames(),
+                snapshot.getCount(PipelineMetrics.STAGE_DETECT));
+    }
+
+    private static void assertWithin(long expectedMicros, long actualMicros) {
+        assertTrue(actualMicros + " instead of " + expectedMicros,
+                actualMicros >= expectedMicros && actualMicros <= expectedMicros * 9 / 8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PreviewBufferCacheTest {
+    private static final int MB = 1024 * 1024;
+
+    private final PreviewBufferCache mCache = new PreviewBufferCache();
+
+    @Test
+    public void returnedBuffersAreReusedBySize() {
+        byte[] small = mCache.acquire(100);
+        byte[] large = mCache.acquire(200);
+        mCache.release(small);
+        mCache.release(large);
+        assertEquals(300, mCache.getCachedBytes());
+
+        assertSame(large, mCache.acquire(200));
+        assertNotSame(small, mCache.acquire(150));
+        assertSame(small, mCache.acquire(100));
+        assertEquals(0, mCache.getCachedBytes());
+    }
+
+    @Test
+    public void oldestBuffersAreEvictedAboveTheLimit() {
+        assertEquals(16 * MB, mCache.getMaxBytes());
+        byte[] first = new byte[6 * MB];
+        byte[] second = new byte[6 * MB];
+        byte[] third = new byte[6 * MB];
+        mCache.release(first);
+        mCache.release(second);
+        mCache.release(third);
+        assertEquals(12 * MB, mCache.getCachedBytes());
+
+        // Newest first; the first buffer was dropped.
+        assertSame(third, mCache.acquire(6 * MB));
+        assertSame(second, mCache.acquire(6 * MB));
+        assertNotSame(first, mCache.acquire(6 * MB));
+
+        // A buffer larger than the whole cache is not kept.
+        mCache.release(new byte[17 * MB]);
+        assertEquals(0, mCache.getCachedBytes());
+    }
+
+    @Test
+    public void trimmingHalvesTheCacheUnlessMemoryRunsLow() {
+        byte[][] buffers = new byte[4][];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = new byte[4 * MB];
+            mCache.release(buffers[i]);
+        }
+        assertEquals(16 * MB, mCache.getCachedBytes());
+
+        mCache.trimMemory(false);
+        assertEquals(8 * MB, mCache.getCachedBytes());
+        assertSame(buffers[3], mCache.acquire(4 * MB));
+        mCache.release(buffers[3]);
+
+        mCache.trimMemory(true);
+        assertEquals(0, mCache.getCachedBytes());
+    }
+}
@@ -0,0 +1,99 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultDispatcherTest {
+    private final QueueExecutor mExecutor = new QueueExecutor();
+    private final List<String> mDelivered = new ArrayList<>();
+    private final ResultDispatcher<String> mDispatcher = new ResultDispatcher<>(mExecutor,
+            new ResultDispatcher.Listener<String>() {
+                @Override
+                public void onResults(String results, long timestampMillis) {
+                    mDelivered.add(results + "@" + timestampMillis);
+                }
+            });
+
+    @Test
+    public void unchangedAndEmptyResultsAreNotPosted() {
+        mDispatcher.publish(null, 1);
+        assertEquals(0, mExecutor.mTasks.size());
+        mDispatcher.publish("a", 2);
+        mExecutor.runAll();
+        mDispatcher.publish("a", 3);
+        mDispatcher.publish("a", 4);
+        assertEquals(0, mExecutor.mTasks.size());
+        assertEquals("[a@2]", mDelivered.toString());
+
+        // Results seen again after a frame without any are new.
+        mDispatcher.publish(null, 5);
+        mDispatcher.publish("a", 6);
+        mExecutor.runAll();
+        assertEquals("[a@2, a@6]", mDelivered.toString());
+    }
+
+    @Test
+    public void resultsPublishedWhilePostedAreCoalesced() {
+        mDispatcher.publish("a", 1);
+        mDispatcher.publish("b", 2);
+        mDispatcher.publish("c", 3);
+        assertEquals(1, mExecutor.mTasks.size());
+        mExecutor.runAll();
+        assertEquals("[c@3]", mDelivered.toString());
+    }
+
+    @Test
+    public void resultsOfOlderFramesAreDropped() {
+        mDispatcher.publish("a", 10);
+        mExecutor.runAll();
+        mDispatcher.publish("b", 5);
+        mExecutor.runAll();
+        assertEquals("[a@10]", mDelivered.toString());
+    }
+
+    @Test
+    public void resetDeliversTheSameResultsAgain() {
+        mDispatcher.publish("a", 10);
+        mExecutor.runAll();
+        mDispatcher.publish("b", 11);
+        mDispatcher.reset();
+        // The delivery posted before the reset finds nothing.
+        mExecutor.runAll();
+        mDispatcher.publish("a", 1);
+        mExecutor.runAll();
+        assertEquals("[a@10, a@1]", mDelivered.toString());
+    }
+
+    @Test
+    public void deliveredResultsAreMeasured() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.setFrameReceivedNanos(System.nanoTime());
+        mDispatcher.setMetrics(metrics);
+        mDispatcher.publish("a", 1);
+        mDispatcher.publish("a", 2);
+        mExecutor.runAll();
+        PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getCount(PipelineMetrics.STAGE_UI_DISPATCH));
+        assertEquals(1, snapshot.getCount(PipelineMetrics.STAGE_END_TO_END));
+    }
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SceneChangeDetectorTest {
+    private static final int SIZE = 64;
+
+    private final ByteBuffer mScene = createFrame(0);
+
+    @Test
+    public void unchangedFrameIsSkippedAfterDetection() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        // Without a detected frame to compare with, every frame is detected on.
+        assertFalse(isUnchanged(detector, mScene, 0));
+        assertFalse(isUnchanged(detector, mScene, 33));
+        detector.markDetected(33);
+
+        assertTrue(isUnchanged(detector, mScene, 66));
+        // Sensor noise is no change.
+        assertTrue(isUnchanged(detector, createFrame(3), 100));
+        assertEquals(2, detector.getStaticFrames());
+    }
+
+    @Test
+    public void motionResumesDetection() {
+        SceneChangeDetector detector = detectedOn(mScene, 0);
+        assertFalse(isUnchanged(detector, createFrame(4), 33));
+        // A different region is not compared with the detected one.
+        assertFalse(detector.isUnchanged(mScene, SIZE, 0, 0, SIZE / 2, SIZE / 2, 66));
+        assertEquals(0, detector.getStaticFrames());
+    }
+
+    @Test
+    public void unchangedSceneIsDetectedOnAfterTwoSeconds() {
+        SceneChangeDetector detector = detectedOn(mScene, 1000);
+        assertTrue(isUnchanged(detector, mScene, 2999));
+        assertFalse(isUnchanged(detector, mScene, 3000));
+        detector.markDetected(3000);
+        assertTrue(isUnchanged(detector, mScene, 3033));
+    }
+
+    @Test
+    public void resetForgetsTheDetectedFrame() {
+        SceneChangeDetector detector = detectedOn(mScene, 0);
+        detector.reset();
+        assertFalse(isUnchanged(detector, mScene, 33));
+        detector.markDetected(33);
+        assertTrue(isUnchanged(detector, mScene, 66));
+    }
+
+    private static SceneChangeDetector detectedOn(ByteBuffer frame, long timestampMillis) {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        assertFalse(isUnchanged(detector, frame, timestampMillis));
+        detector.markDetected(timestampMillis);
+        return detector;
+    }
+
+    private static boolean isUnchanged(SceneChangeDetector detector, ByteBuffer frame,
+                                       long timestampMillis) {
+        return detector.isUnchanged(frame, SIZE, 0, 0, SIZE, SIZE, timestampMillis);
+    }
+
+    /**
+     * Creates a textured frame, brightened by an offset.
+     */
+    private static ByteBuffer createFrame(int offset) {
+        byte[] luma = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                luma[y * SIZE + x] = (byte) ((x * 3 + y * 2) % 200 + offset);
+            }
+        }
+        return ByteBuffer.wrap(luma);
+    }
+}
@@ -0,0 +1,87 @@
+package com.margin.barcode.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharpnessGateTest {
+    private static final int SIZE = 32;
+    private static final float RATIO = 0.5f;
+
+    // Stripes one pixel wide have a squared gradient of 100^2 at every sample.
+    private static final ByteBuffer SHARP = createFrame(100);
+    private static final ByteBuffer BLURRED = createFrame(0);
+    private static final float SHARPNESS = 100 * 100;
+
+    @Test
+    public void sharpnessIsTheMeanGradientEnergy() {
+        assertEquals(SHARPNESS, SharpnessGate.measure(SHARP, SIZE, 0, 0, SIZE, SIZE), 0);
+        assertEquals(0, SharpnessGate.measure(BLURRED, SIZE, 0, 0, SIZE, SIZE), 0);
+    }
+
+    @Test
+    public void warmUpFramesAreAccepted() {
+        SharpnessGate gate = new SharpnessGate(RATIO);
+        assertTrue(accept(gate, SHARP));
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(accept(gate, BLURRED));
+        }
+        // Past the warm-up, the average still reflects the sharp frame.
+        assertFalse(accept(gate, BLURRED));
+        assertEquals(1, gate.getSkippedFrames());
+    }
+
+    @Test
+    public void blurredFrameBelowTheAverageIsRejected() {
+        SharpnessGate gate = warmedUpGate();
+        assertFalse(accept(gate, BLURRED));
+        assertEquals(0, gate.getLastSharpness(), 0);
+        assertEquals(SHARPNESS * RATIO, gate.getThreshold(), 0.01f);
+        assertEquals(1, gate.getSkippedFrames());
+
+        assertTrue(accept(gate, SHARP));
+        assertEquals(SHARPNESS, gate.getLastSharpness(), 0);
+        assertEquals(1, gate.getSkippedFrames());
+    }
+
+    @Test
+    public void consecutiveSkipsAreCapped() {
+        SharpnessGate gate = warmedUpGate();
+        for (int i = 0; i < 10; ++i) {
+            assertFalse(accept(gate, BLURRED));
+        }
+        assertTrue(accept(gate, BLURRED));
+        assertEquals(10, gate.getSkippedFrames());
+
+        // The cap starts over after an accepted frame.
+        assertFalse(accept(gate, BLURRED));
+        assertEquals(11, gate.getSkippedFrames());
+    }
+
+    private static SharpnessGate warmedUpGate() {
+        SharpnessGate gate = new SharpnessGate(RATIO);
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(accept(gate, SHARP));
+        }
+        assertEquals(0, gate.getSkippedFrames());
+        return gate;
+    }
+
+    private static boolean accept(SharpnessGate gate, ByteBuffer frame) {
+        return gate.accept(frame, SIZE, 0, 0, SIZE, SIZE);
+    }
+
+    private static ByteBuffer createFrame(int contrast) {
+        byte[] luma = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                luma[y * SIZE + x] = (byte) (100 + (x % 2) * contrast);
+            }
+        }
+        return ByteBuffer.wrap(luma);
+    }
+}
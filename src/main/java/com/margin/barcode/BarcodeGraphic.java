@@ -18,6 +18,7 @@ package com.margin.barcode;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
 import com.margin.barcode.camera.GraphicOverlay;
@@ -39,6 +40,9 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
     private Paint mRectPaint;
     private Paint mTextPaint;
     private volatile Barcode mBarcode;
+    // Reused from draw to draw, which only happens on the UI thread.
+    private final Rect mBox = new Rect();
+    private final RectF mRect = new RectF();
 
     BarcodeGraphic(GraphicOverlay overlay) {
         super(overlay);
@@ -88,11 +92,14 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
         }
 
         // Draws the bounding box around the barcode.
-        RectF rect = new RectF(barcode.getBoundingBox());
-        rect.left = translateX(rect.left);
-        rect.top = translateY(rect.top);
-        rect.right = translateX(rect.right);
-        rect.bottom = translateY(rect.bottom);
+        if (!BarcodePipelineDetector.getBoundingBox(barcode, mBox)) {
+            return;
+        }
+        RectF rect = mRect;
+        rect.left = translateX(mBox.left);
+        rect.top = translateY(mBox.top);
+        rect.right = translateX(mBox.right);
+        rect.bottom = translateY(mBox.bottom);
         canvas.drawRect(rect, mRectPaint);
 
         // Draws a label at the bottom of the barcode indicate the barcode value that was detected.
@@ -15,6 +15,7 @@
  */
 package com.margin.barcode;
 
+import com.margin.barcode.camera.FrameTracer;
 import com.margin.barcode.camera.GraphicOverlay;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Tracker;
@@ -48,8 +49,14 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
      */
     @Override
     public void onUpdate(Detector.Detections<Barcode> detectionResults, Barcode item) {
+        FrameTracer tracer = mOverlay.getTracer();
+        long startNanos = tracer != null ? System.nanoTime() : 0;
         mOverlay.add(mGraphic);
         mGraphic.updateItem(item);
+        if (tracer != null) {
+            tracer.record(FrameTracer.SPAN_TRACKER_UPDATE, startNanos,
+                    detectionResults.getFrameMetadata().getId());
+        }
     }
 
     /**
@@ -0,0 +1,76 @@
+package com.margin.barcode;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.margin.barcode.camera.FramePipelineDetector;
+import com.margin.barcode.camera.FrameRegion;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Barcode detector wrapper which maps the corner points (and with them the bounding box) of the
+ * detected barcodes back to the full camera preview frame.  Barcodes found on several tiles are
+ * told apart by their raw value and bounding box.
+ */
+public class BarcodePipelineDetector extends FramePipelineDetector<Barcode> {
+    // Only accessed from the frame processing thread.
+    private final Rect mBox = new Rect();
+
+    public BarcodePipelineDetector(Detector<Barcode> delegate) {
+        super(delegate);
+    }
+
+    @Override
+    protected void mapItem(Barcode barcode, FrameRegion region) {
+        if (barcode.cornerPoints == null) {
+            return;
+        }
+        for (Point point : barcode.cornerPoints) {
+            point.set(region.mapX(point.x), region.mapY(point.y));
+        }
+    }
+
+    @Override
+    protected int getItemSize(Barcode barcode) {
+        if (!getBoundingBox(barcode, mBox)) {
+            return 0;
+        }
+        return Math.min(mBox.width(), mBox.height());
+    }
+
+    @Override
+    protected Object getItemValue(Barcode barcode) {
+        return barcode.rawValue;
+    }
+
+    @Override
+    protected boolean getItemBounds(Barcode barcode, Rect bounds) {
+        return getBoundingBox(barcode, bounds);
+    }
+
+    /**
+     * Sets a rectangle to the bounding box of the corner points of a barcode, like
+     * {@link Barcode#getBoundingBox()} but without allocating one.
+     *
+     * @return false if the barcode has no corner points, in which case the rectangle is unchanged
+     */
+    static boolean getBoundingBox(Barcode barcode, Rect box) {
+        Point[] points = barcode.cornerPoints;
+        if (points == null || points.length == 0) {
+            return false;
+        }
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (Point point : points) {
+            left = Math.min(left, point.x);
+            top = Math.min(top, point.y);
+            right = Math.max(right, point.x);
+            bottom = Math.max(bottom, point.y);
+        }
+        box.set(left, top, right, bottom);
+        return true;
+    }
+}
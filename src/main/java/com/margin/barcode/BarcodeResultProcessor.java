@@ -0,0 +1,50 @@
+package com.margin.barcode;
+
+import android.util.SparseArray;
+
+import com.margin.barcode.camera.ResultDispatcher;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processor which hands the detections of each frame on to another processor (typically the
+ * multi-processor drawing the graphics), then publishes the display values of the barcodes found
+ * to a {@link ResultDispatcher}, which only brings them to the main thread when they change.
+ */
+public class BarcodeResultProcessor implements Detector.Processor<Barcode> {
+    private final Detector.Processor<Barcode> mDelegate;
+    private final ResultDispatcher<List<String>> mDispatcher;
+
+    public BarcodeResultProcessor(Detector.Processor<Barcode> delegate,
+                                  ResultDispatcher<List<String>> dispatcher) {
+        mDelegate = delegate;
+        mDispatcher = dispatcher;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        mDelegate.receiveDetections(detections);
+
+        SparseArray<Barcode> items = detections.getDetectedItems();
+        List<String> values = null;
+        for (int i = 0; i < items.size(); ++i) {
+            String value = items.valueAt(i).displayValue;
+            if (value == null) {
+                continue;
+            }
+            if (values == null) {
+                values = new ArrayList<>(items.size());
+            }
+            values.add(value);
+        }
+        mDispatcher.publish(values, detections.getFrameMetadata().getTimestampMillis());
+    }
+
+    @Override
+    public void release() {
+        mDelegate.release();
+    }
+}
@@ -0,0 +1,881 @@
+package com.margin.barcode.camera;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresPermission;
+import android.util.Log;
+import android.util.Range;
+import android.util.SizeF;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Camera2 backend of {@link CameraSource}.  Preview frames are delivered by an {@link ImageReader}
+ * in YUV_420_888 format, and the Y plane of each image is handed to the frame processing thread
+ * as is: a direct byte buffer owned by the camera, which is never copied unless the frame is
+ * cropped or the camera pads its rows.  Each image stays acquired until the processing thread
+ * recycles its slot, so the reader's image count bounds the frames in flight just like the
+ * preview buffers of the Camera1 backend.
+ * <p/>
+ * Only the luma plane is exposed, which is all barcode detection needs; detectors see a gray
+ * image.
+ */
+@SuppressWarnings("deprecation")
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Camera2FrameSource implements FrameSource, ImageReader.OnImageAvailableListener {
+    private static final String TAG = "Camera2FrameSource";
+
+    /**
+     * Longest time to wait for the camera to open, and for the capture session to be configured.
+     */
+    private static final long OPEN_TIMEOUT_MILLIS = 2500;
+
+    /**
+     * Zoom steps per unit of zoom ratio, see {@link #getMaxZoom()}.
+     */
+    private static final int ZOOM_STEPS_PER_UNIT = 10;
+
+    /**
+     * Returned by the mode conversions for modes the camera does not support.
+     */
+    private static final int UNSUPPORTED = -1;
+
+    private final CameraCharacteristics mCharacteristics;
+    private final Size mPreviewSize;
+    private final Range<Integer> mFpsRange;
+    private final FrameListener mListener;
+    private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ImageReader mReader;
+
+    // Guarded by "this", along with the request settings below.
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+
+    private final ImageSlots<Image> mSlots;
+    // Only accessed from the camera thread.
+    private int mNextFrameId;
+
+    private Camera2FrameSource(CameraCharacteristics characteristics, Size previewSize,
+                               Range<Integer> fpsRange, int maxImages, FrameListener listener) {
+        mCharacteristics = characteristics;
+        mPreviewSize = previewSize;
+        mFpsRange = fpsRange;
+        mListener = listener;
+        mSlots = new ImageSlots<Image>(maxImages) {
+            @Override
+            void closeImage(Image image) {
+                image.close();
+            }
+        };
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mReader = ImageReader.newInstance(previewSize.getWidth(), previewSize.getHeight(),
+                ImageFormat.YUV_420_888, maxImages);
+        mReader.setOnImageAvailableListener(this, mHandler);
+    }
+
+    /**
+     * Returns whether the Camera2 backend can be used on this device.  Cameras at the legacy
+     * hardware level are emulated on top of the Camera1 API by the framework, so they are better
+     * driven by the Camera1 backend directly.
+     */
+    static boolean isSupported(Context context, int facing) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            String cameraId = getIdForRequestedCamera(manager, facing);
+            if (cameraId == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null &&
+                    level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Could not query camera characteristics: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens and configures the camera, without streaming yet.  Blocks until the camera is open.
+     * Settings may be changed before {@link #startStreaming(SurfaceHolder)}.
+     *
+     * @param facing    one of {@link CameraSource#CAMERA_FACING_BACK} or
+     *                  {@link CameraSource#CAMERA_FACING_FRONT}
+     * @param barcode   the requirements of the smallest expected barcode, which replace the
+     *                  requested size and frame rate, or null
+     * @param maxImages the number of frames that may be in flight at once
+     * @throws IOException      if the camera could not be opened or configured
+     * @throws RuntimeException if no camera or no suitable preview size is found
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    static Camera2FrameSource open(Context context, int facing, int requestedWidth,
+                                   int requestedHeight, float requestedFps,
+                                   @Nullable BarcodeResolution barcode, int maxImages,
+                                   FrameListener listener) throws IOException {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        Camera2FrameSource source;
+        String cameraId;
+        try {
+            cameraId = getIdForRequestedCamera(manager, facing);
+            if (cameraId == null) {
+                throw new RuntimeException("Could not find requested camera.");
+            }
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            android.util.Size size = barcode != null ?
+                    selectPreviewSize(characteristics, map, barcode) :
+                    selectPreviewSize(map, requestedWidth, requestedHeight);
+            if (size == null) {
+                throw new RuntimeException("Could not find suitable preview size.");
+            }
+            Range<Integer> fpsRange = barcode != null ?
+                    selectFpsRange(characteristics, map, size, barcode) :
+                    selectFpsRange(characteristics, map, size, requestedFps);
+            source = new Camera2FrameSource(characteristics,
+                    new Size(size.getWidth(), size.getHeight()), fpsRange, maxImages, listener);
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not access camera", e);
+        }
+
+        try {
+            source.openDevice(manager, cameraId);
+        } catch (CameraAccessException e) {
+            source.close();
+            throw new IOException("Could not access camera", e);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        return source;
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private void openDevice(CameraManager manager, String cameraId)
+            throws CameraAccessException, IOException {
+        OpenCallback openCallback = new OpenCallback();
+        manager.openCamera(cameraId, openCallback, mHandler);
+        CameraDevice device = openCallback.await();
+        synchronized (this) {
+            mDevice = device;
+            mRequest = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            if (mFpsRange != null) {
+                mRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+            }
+        }
+    }
+
+    /**
+     * Starts streaming preview frames to the listener, and to the preview surface if one is given.
+     * Blocks until the preview surface has been resized to the preview size and the first request
+     * has been submitted, so this should be called on a background thread: on the main thread,
+     * the preview surface must already have the preview size.
+     *
+     * @throws IOException if the preview surface could not be resized or the capture session
+     *                     could not be configured, or if the camera is closed meanwhile
+     */
+    void startStreaming(@Nullable SurfaceHolder previewHolder) throws IOException {
+        CameraDevice device;
+        synchronized (this) {
+            device = mDevice;
+        }
+        if (device == null) {
+            throw new IOException("Camera is closed");
+        }
+
+        List<Surface> targets = new ArrayList<>(2);
+        targets.add(mReader.getSurface());
+        if (previewHolder != null) {
+            resizePreviewSurface(previewHolder);
+            targets.add(previewHolder.getSurface());
+        }
+        SessionCallback sessionCallback = new SessionCallback();
+        try {
+            device.createCaptureSession(targets, sessionCallback, mHandler);
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not access camera", e);
+        } catch (IllegalStateException e) {
+            throw new IOException("Camera is closed", e);
+        }
+        CameraCaptureSession session = sessionCallback.await();
+
+        synchronized (this) {
+            if (mDevice == null) {
+                // Closed while the session was being configured.
+                session.close();
+                throw new IOException("Camera is closed");
+            }
+            mSession = session;
+            for (Surface target : targets) {
+                mRequest.addTarget(target);
+            }
+            updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Resizes the preview surface to the preview size and waits until the surface reports the new
+     * size.  A capture session configured while the surface still has its old size fails, or
+     * scales the preview, on many devices.  The surface holder of a SurfaceView may only be used
+     * on the main thread, and resizing it lays out the view again, so it is resized there.
+     */
+    private void resizePreviewSurface(final SurfaceHolder holder) throws IOException {
+        final PreviewSurfaceCallback callback = new PreviewSurfaceCallback(holder, mPreviewSize);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            // Waiting here would block the surface callbacks themselves.
+            callback.run();
+            holder.removeCallback(callback);
+            if (!callback.isResized()) {
+                throw new IOException("Preview surface is being resized; start the camera off " +
+                        "the main thread");
+            }
+            return;
+        }
+        mMainHandler.post(callback);
+        try {
+            callback.await();
+        } finally {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    holder.removeCallback(callback);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops streaming, and closes the camera and all images.  The processing thread must no
+     * longer access any frame.
+     */
+    void close() {
+        synchronized (this) {
+            if (mSession != null) {
+                mSession.close();
+                mSession = null;
+            }
+            if (mDevice != null) {
+                mDevice.close();
+                mDevice = null;
+            }
+            mRequest = null;
+        }
+        mReader.close();
+        mThread.quitSafely();
+    }
+
+    Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Returns the clockwise angle in degrees by which frames must be rotated to be upright on the
+     * natural orientation of the device, like {@code Camera.CameraInfo#orientation}.
+     */
+    int getSensorOrientation() {
+        Integer orientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return orientation != null ? orientation : 0;
+    }
+
+    //==============================================================================================
+    // Frames
+    //==============================================================================================
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        long receivedNanos = System.nanoTime();
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // All images are in flight; the processing thread is about to give one back.
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+
+        Image.Plane luma = image.getPlanes()[0];
+        // Timestamp and frame ID are maintained here, the same way as for Camera1 preview
+        // frames, which gives downstream code an idea of when frames were dropped.
+        int slot = mSlots.fill(image, luma.getBuffer(), luma.getRowStride(), mNextFrameId + 1,
+                SystemClock.elapsedRealtime() - mStartTimeMillis);
+        if (slot == FrameBufferPool.NO_SLOT) {
+            image.close();
+            return;
+        }
+        mNextFrameId++;
+        mListener.onFrameAvailable(this, slot, receivedNanos);
+    }
+
+    @Override
+    public ByteBuffer getData(int slot) {
+        return mSlots.getData(slot);
+    }
+
+    @Override
+    public int getRowStride(int slot) {
+        return mSlots.getRowStride(slot);
+    }
+
+    @Override
+    public boolean hasChroma() {
+        return false;
+    }
+
+    @Override
+    public int getFrameId(int slot) {
+        return mSlots.getFrameId(slot);
+    }
+
+    @Override
+    public long getTimestampMillis(int slot) {
+        return mSlots.getTimestampMillis(slot);
+    }
+
+    @Override
+    public void recycle(int slot) {
+        mSlots.recycle(slot);
+    }
+
+    //==============================================================================================
+    // Controls
+    //==============================================================================================
+
+    /**
+     * Returns whether the camera supports a focus mode, given as one of the Camera1 focus mode
+     * strings.  This only reads the static characteristics of the camera, so it is cheap.
+     */
+    boolean isFocusModeSupported(String mode) {
+        return getAfMode(mode) != UNSUPPORTED;
+    }
+
+    /**
+     * Sets a focus mode, given as one of the Camera1 focus mode strings.
+     *
+     * @return whether the camera supports the mode
+     */
+    synchronized boolean setFocusMode(String mode) {
+        int afMode = getAfMode(mode);
+        if (afMode == UNSUPPORTED) {
+            return false;
+        }
+        if (mRequest != null) {
+            mRequest.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+            if (Camera.Parameters.FOCUS_MODE_INFINITY.equals(mode)) {
+                mRequest.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0.0f);
+            }
+            updateRepeatingRequest();
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the camera supports a flash mode, given as one of the Camera1 flash mode
+     * strings.  This only reads the static characteristics of the camera, so it is cheap.
+     */
+    boolean isFlashModeSupported(String mode) {
+        return getAeMode(mode) != UNSUPPORTED;
+    }
+
+    /**
+     * Sets a flash mode, given as one of the Camera1 flash mode strings.
+     *
+     * @return whether the camera supports the mode
+     */
+    synchronized boolean setFlashMode(String mode) {
+        int aeMode = getAeMode(mode);
+        if (aeMode == UNSUPPORTED) {
+            return false;
+        }
+        if (mRequest != null) {
+            mRequest.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+            mRequest.set(CaptureRequest.FLASH_MODE,
+                    Camera.Parameters.FLASH_MODE_TORCH.equals(mode) ?
+                            CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+            updateRepeatingRequest();
+        }
+        return true;
+    }
+
+    private int getAfMode(String mode) {
+        int afMode;
+        switch (mode) {
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+                afMode = CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+                break;
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+                afMode = CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_AUTO:
+                afMode = CameraMetadata.CONTROL_AF_MODE_AUTO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_MACRO:
+                afMode = CameraMetadata.CONTROL_AF_MODE_MACRO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_EDOF:
+                afMode = CameraMetadata.CONTROL_AF_MODE_EDOF;
+                break;
+            case Camera.Parameters.FOCUS_MODE_FIXED:
+            case Camera.Parameters.FOCUS_MODE_INFINITY:
+                afMode = CameraMetadata.CONTROL_AF_MODE_OFF;
+                break;
+            default:
+                return UNSUPPORTED;
+        }
+        return contains(mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+                afMode) ? afMode : UNSUPPORTED;
+    }
+
+    private int getAeMode(String mode) {
+        int aeMode;
+        switch (mode) {
+            case Camera.Parameters.FLASH_MODE_OFF:
+                return CameraMetadata.CONTROL_AE_MODE_ON;
+            case Camera.Parameters.FLASH_MODE_TORCH:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON;
+                break;
+            case Camera.Parameters.FLASH_MODE_ON:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_AUTO:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_RED_EYE:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+                break;
+            default:
+                return UNSUPPORTED;
+        }
+        Boolean hasFlash = mCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        if (hasFlash == null || !hasFlash) {
+            return UNSUPPORTED;
+        }
+        return contains(mCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES),
+                aeMode) ? aeMode : UNSUPPORTED;
+    }
+
+    /**
+     * Returns the largest zoom value.  Zoom values are steps of a tenth of the digital zoom ratio,
+     * 0 being no zoom.
+     */
+    int getMaxZoom() {
+        Float maxRatio = mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        return maxRatio != null ? Math.round((maxRatio - 1) * ZOOM_STEPS_PER_UNIT) : 0;
+    }
+
+    /**
+     * Zooms by cropping the sensor output around its center.
+     */
+    synchronized void setZoom(int zoom) {
+        Rect activeArray = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (activeArray == null || mRequest == null) {
+            return;
+        }
+        float ratio = 1 + (float) zoom / ZOOM_STEPS_PER_UNIT;
+        int cropWidth = (int) (activeArray.width() / ratio);
+        int cropHeight = (int) (activeArray.height() / ratio);
+        int left = (activeArray.width() - cropWidth) / 2;
+        int top = (activeArray.height() - cropHeight) / 2;
+        mRequest.set(CaptureRequest.SCALER_CROP_REGION,
+                new Rect(left, top, left + cropWidth, top + cropHeight));
+        updateRepeatingRequest();
+    }
+
+    /**
+     * Triggers a single auto focus scan, and reports whether it locked focus.  The callback is
+     * called on the camera thread.
+     */
+    synchronized void autoFocus(@Nullable final CameraSource.AutoFocusCallback callback) {
+        if (mSession == null || mRequest == null) {
+            return;
+        }
+        mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+        try {
+            mSession.capture(mRequest.build(), new CameraCaptureSession.CaptureCallback() {
+                private boolean mReported;
+
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session,
+                                               CaptureRequest request, TotalCaptureResult result) {
+                    Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+                    if (mReported || callback == null || state == null) {
+                        return;
+                    }
+                    mReported = true;
+                    callback.onAutoFocus(state == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED);
+                }
+            }, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Could not trigger auto focus: " + e);
+        } finally {
+            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    synchronized void cancelAutoFocus() {
+        if (mSession == null || mRequest == null) {
+            return;
+        }
+        mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+        try {
+            mSession.capture(mRequest.build(), null, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Could not cancel auto focus: " + e);
+        } finally {
+            mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    // Guarded by "this".
+    private void updateRepeatingRequest() {
+        if (mSession == null || mRequest == null) {
+            return;
+        }
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), null, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Could not update capture request: " + e);
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if (values != null) {
+            for (int v : values) {
+                if (v == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //==============================================================================================
+    // Selection
+    //==============================================================================================
+
+    @Nullable
+    private static String getIdForRequestedCamera(CameraManager manager, int facing)
+            throws CameraAccessException {
+        int lensFacing = facing == CameraSource.CAMERA_FACING_FRONT ?
+                CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        for (String cameraId : manager.getCameraIdList()) {
+            Integer value = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (value != null && value == lensFacing) {
+                return cameraId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects the YUV output size closest to the requested one, the same way the Camera1 backend
+     * selects its preview size.
+     */
+    @Nullable
+    private static android.util.Size selectPreviewSize(StreamConfigurationMap map,
+                                                       int desiredWidth, int desiredHeight) {
+        android.util.Size selected = null;
+        int minDiff = Integer.MAX_VALUE;
+        for (android.util.Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+            int diff = Math.abs(size.getWidth() - desiredWidth) +
+                    Math.abs(size.getHeight() - desiredHeight);
+            if (diff < minDiff) {
+                selected = size;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Selects the auto exposure frame rate range closest to the requested frame rate, among the
+     * ranges that the YUV stream can sustain at the selected size.
+     */
+    @Nullable
+    private static Range<Integer> selectFpsRange(CameraCharacteristics characteristics,
+                                                 StreamConfigurationMap map,
+                                                 android.util.Size size, float desiredFps) {
+        Range<Integer>[] ranges =
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return null;
+        }
+        long minFrameDuration = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size);
+        int maxFps = minFrameDuration > 0 ?
+                (int) (TimeUnit.SECONDS.toNanos(1) / minFrameDuration) : Integer.MAX_VALUE;
+
+        Range<Integer> selected = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() > maxFps) {
+                continue;
+            }
+            float diff = Math.abs(desiredFps - range.getLower()) +
+                    Math.abs(desiredFps - range.getUpper());
+            if (diff < minDiff) {
+                selected = range;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Selects the lowest YUV output size that resolves the smallest expected barcode, or the
+     * largest one if none does.
+     */
+    @Nullable
+    private static android.util.Size selectPreviewSize(CameraCharacteristics characteristics,
+                                                       StreamConfigurationMap map,
+                                                       BarcodeResolution barcode) {
+        int requiredWidth = barcode.getRequiredWidth(getHorizontalViewAngle(characteristics));
+        android.util.Size selected = null;
+        for (android.util.Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+            if (selected == null || BarcodeResolution.isBetterSize(size.getWidth(),
+                    size.getHeight(), selected.getWidth(), selected.getHeight(), requiredWidth)) {
+                selected = size;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Selects the highest auto exposure frame rate range that keeps up with the target latency of
+     * the smallest expected barcode, among the ranges that the YUV stream can sustain at the
+     * selected size.
+     */
+    @Nullable
+    private static Range<Integer> selectFpsRange(CameraCharacteristics characteristics,
+                                                 StreamConfigurationMap map,
+                                                 android.util.Size size,
+                                                 BarcodeResolution barcode) {
+        Range<Integer>[] ranges =
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return null;
+        }
+        long minFrameDuration = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size);
+        int maxFps = minFrameDuration > 0 ?
+                (int) (TimeUnit.SECONDS.toNanos(1) / minFrameDuration) : Integer.MAX_VALUE;
+
+        Range<Integer> selected = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() > maxFps) {
+                continue;
+            }
+            if (selected == null || BarcodeResolution.isBetterFpsRange(range.getLower(),
+                    range.getUpper(), selected.getLower(), selected.getUpper(),
+                    barcode.getMinFps())) {
+                selected = range;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the horizontal field of view of the camera in degrees, computed from the width of
+     * its sensor and its shortest focal length, or 0 if unknown.
+     */
+    private static float getHorizontalViewAngle(CameraCharacteristics characteristics) {
+        SizeF sensorSize = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        float[] focalLengths =
+                characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        if (sensorSize == null || focalLengths == null || focalLengths.length == 0 ||
+                !(focalLengths[0] > 0)) {
+            return 0;
+        }
+        float focalLength = focalLengths[0];
+        for (float length : focalLengths) {
+            focalLength = Math.min(focalLength, length);
+        }
+        return (float) Math.toDegrees(2 * Math.atan(sensorSize.getWidth() / (2 * focalLength)));
+    }
+
+    //==============================================================================================
+    // Callbacks
+    //==============================================================================================
+
+    private static class OpenCallback extends CameraDevice.StateCallback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        // Guarded by "this".
+        private CameraDevice mDevice;
+        private boolean mAbandoned;
+        private volatile int mError;
+
+        CameraDevice await() throws IOException {
+            try {
+                awaitLatch(mLatch, "Timed out opening camera");
+            } finally {
+                synchronized (this) {
+                    if (mLatch.getCount() > 0) {
+                        // A camera opened after giving up must still be closed.
+                        mAbandoned = true;
+                    }
+                }
+            }
+            synchronized (this) {
+                if (mDevice == null) {
+                    throw new IOException("Could not open camera, error " + mError);
+                }
+                return mDevice;
+            }
+        }
+
+        @Override
+        public void onOpened(CameraDevice camera) {
+            synchronized (this) {
+                if (mAbandoned) {
+                    camera.close();
+                    return;
+                }
+                mDevice = camera;
+            }
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.w(TAG, "Camera disconnected");
+            camera.close();
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error " + error);
+            mError = error;
+            camera.close();
+            mLatch.countDown();
+        }
+    }
+
+    private static class SessionCallback extends CameraCaptureSession.StateCallback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile CameraCaptureSession mSession;
+
+        CameraCaptureSession await() throws IOException {
+            awaitLatch(mLatch, "Timed out configuring capture session");
+            if (mSession == null) {
+                throw new IOException("Could not configure capture session");
+            }
+            return mSession;
+        }
+
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            mSession = session;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Requests the preview size from a preview surface, once posted to the main thread, and
+     * records when the surface has that size.
+     */
+    private static class PreviewSurfaceCallback implements SurfaceHolder.Callback, Runnable {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private final SurfaceHolder mHolder;
+        private final int mWidth;
+        private final int mHeight;
+
+        PreviewSurfaceCallback(SurfaceHolder holder, Size size) {
+            mHolder = holder;
+            mWidth = size.getWidth();
+            mHeight = size.getHeight();
+        }
+
+        void await() throws IOException {
+            awaitLatch(mLatch, "Timed out resizing preview surface");
+        }
+
+        boolean isResized() {
+            return mLatch.getCount() == 0;
+        }
+
+        @Override
+        public void run() {
+            mHolder.addCallback(this);
+            mHolder.setFixedSize(mWidth, mHeight);
+            // Setting the size the surface has already does not call surfaceChanged() again.
+            Rect frame = mHolder.getSurfaceFrame();
+            if (mHolder.getSurface().isValid() && frame.width() == mWidth &&
+                    frame.height() == mHeight) {
+                mLatch.countDown();
+            }
+        }
+
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            if (width == mWidth && height == mHeight) {
+                mLatch.countDown();
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+        }
+    }
+
+    private static void awaitLatch(CountDownLatch latch, String timeoutMessage) throws IOException {
+        try {
+            if (!latch.await(OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException(timeoutMessage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening camera", e);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.margin.barcode.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Camera1 settings selected for a requested configuration, together with the camera capabilities
+ * that later changes are checked against.  Profiles are persisted in the application's private
+ * shared preferences, so that later starts can skip querying the camera and matching its preview
+ * sizes, picture sizes and frame rates.
+ * <p/>
+ * A profile is stored per camera id.  It is only used on the build it was created on (a system
+ * update may change the camera's capabilities) and for the configuration it was selected for;
+ * otherwise it is selected and stored again.
+ */
+final class CameraProfile {
+    private static final String TAG = "CameraProfile";
+
+    private static final String PREFERENCES_NAME = "com.margin.barcode.camera_profiles";
+    private static final String KEY_PREFIX = "camera_";
+    private static final int VERSION = 2;
+
+    private final String mRequest;
+
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mPictureWidth;
+    private final int mPictureHeight;
+    private final int mMinFps;
+    private final int mMaxFps;
+    private final List<String> mFocusModes;
+    private final List<String> mFlashModes;
+
+    /**
+     * @param request       a description of the requested configuration the profile is selected
+     *                      for, such that different configurations have different descriptions
+     * @param pictureWidth  the width of the picture size, or 0 if no picture size is to be set
+     * @param minFps        the lower bound of the preview frame rate range, scaled by 1000
+     * @param maxFps        the upper bound of the preview frame rate range, scaled by 1000
+     * @param focusModes    the supported focus modes, or null if none
+     * @param flashModes    the supported flash modes, or null if none
+     */
+    CameraProfile(String request, int previewWidth, int previewHeight, int pictureWidth,
+                  int pictureHeight, int minFps, int maxFps, @Nullable List<String> focusModes,
+                  @Nullable List<String> flashModes) {
+        mRequest = request;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mPictureWidth = pictureWidth;
+        mPictureHeight = pictureHeight;
+        mMinFps = minFps;
+        mMaxFps = maxFps;
+        mFocusModes = unmodifiableCopy(focusModes);
+        mFlashModes = unmodifiableCopy(flashModes);
+    }
+
+    /**
+     * Loads the stored profile of a camera.
+     *
+     * @return the profile, or null if there is none, or if it was stored on another build or for
+     * another configuration
+     */
+    @Nullable
+    static CameraProfile load(Context context, int cameraId, String request) {
+        String value = getPreferences(context).getString(KEY_PREFIX + cameraId, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(value);
+            if (json.getInt("version") != VERSION ||
+                    !Build.FINGERPRINT.equals(json.getString("fingerprint"))) {
+                return null;
+            }
+            CameraProfile profile = new CameraProfile(
+                    json.getString("request"),
+                    json.getInt("previewWidth"), json.getInt("previewHeight"),
+                    json.getInt("pictureWidth"), json.getInt("pictureHeight"),
+                    json.getInt("minFps"), json.getInt("maxFps"),
+                    toList(json.getJSONArray("focusModes")),
+                    toList(json.getJSONArray("flashModes")));
+            return profile.matches(request) ? profile : null;
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring invalid camera profile: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores this profile for a camera, replacing the previous one.  The write happens in the
+     * background.
+     */
+    void save(Context context, int cameraId) {
+        try {
+            JSONObject json = new JSONObject()
+                    .put("version", VERSION)
+                    .put("fingerprint", Build.FINGERPRINT)
+                    .put("request", mRequest)
+                    .put("previewWidth", mPreviewWidth)
+                    .put("previewHeight", mPreviewHeight)
+                    .put("pictureWidth", mPictureWidth)
+                    .put("pictureHeight", mPictureHeight)
+                    .put("minFps", mMinFps)
+                    .put("maxFps", mMaxFps)
+                    .put("focusModes", new JSONArray(mFocusModes))
+                    .put("flashModes", new JSONArray(mFlashModes));
+            getPreferences(context).edit().putString(KEY_PREFIX + cameraId, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Could not store camera profile: " + e);
+        }
+    }
+
+    /**
+     * Removes the stored profile of a camera, for example because the camera rejected it.
+     */
+    static void remove(Context context, int cameraId) {
+        getPreferences(context).edit().remove(KEY_PREFIX + cameraId).apply();
+    }
+
+    /**
+     * Returns whether this profile was selected for the given configuration.
+     */
+    boolean matches(String request) {
+        return mRequest.equals(request);
+    }
+
+    int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    /**
+     * Returns whether a picture size is to be set along with the preview size.
+     */
+    boolean hasPictureSize() {
+        return mPictureWidth > 0;
+    }
+
+    int getPictureWidth() {
+        return mPictureWidth;
+    }
+
+    int getPictureHeight() {
+        return mPictureHeight;
+    }
+
+    int getMinFps() {
+        return mMinFps;
+    }
+
+    int getMaxFps() {
+        return mMaxFps;
+    }
+
+    List<String> getFocusModes() {
+        return mFocusModes;
+    }
+
+    List<String> getFlashModes() {
+        return mFlashModes;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static List<String> unmodifiableCopy(@Nullable List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    private static List<String> toList(JSONArray array) throws JSONException {
+        List<String> values = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+            values.add(array.getString(i));
+        }
+        return values;
+    }
+}
@@ -18,13 +18,20 @@ package com.margin.barcode.camera;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.ImageFormat;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
+import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.StringDef;
@@ -38,15 +45,16 @@ import com.google.android.gms.common.images.Size;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.Thread.State;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -77,6 +85,16 @@ public class CameraSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT = CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Backend driving the camera through the {@link android.hardware.Camera} API.
+     */
+    public static final int BACKEND_CAMERA1 = 0;
+    /**
+     * Backend driving the camera through the {@link android.hardware.camera2} API, see
+     * {@link Builder#setBackend(int)}.
+     */
+    public static final int BACKEND_CAMERA2 = 1;
+
     private static final String TAG = "OpenCameraSource";
 
     /**
@@ -90,41 +108,145 @@ public class CameraSource {
      * ratio is less than this tolerance, they are considered to be the same aspect ratio.
      */
     private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    /**
+     * Default number of preview buffers handed to the camera.  See
+     * {@link Builder#setPreviewBufferCount(int)}.
+     */
+    private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 4;
+
+    /**
+     * Pending zoom value meaning that the zoom does not change.
+     */
+    private static final int NO_ZOOM = -1;
+
+    /**
+     * Whether the shared preview buffer cache has been hooked up to the application's memory
+     * callbacks.  Guarded by the class.
+     */
+    private static boolean sBufferCacheTrimRegistered;
     private final Object mCameraLock = new Object();
     private Context mContext;
     // Guarded by mCameraLock
     private Camera mCamera;
+    // Guarded by mCameraLock.  Set instead of mCamera while the Camera2 backend is running.
+    private Camera2FrameSource mCamera2;
+    // Guarded by mCameraLock.  Set instead of a camera while a recording is replayed.
+    private FrameReplaySource mReplay;
+    private int mBackend = BACKEND_CAMERA1;
+    // Recording replayed instead of opening a camera, see Builder#setReplayFile(File, boolean).
+    private File mReplayFile;
+    private boolean mReplayRealTime;
+    // Guarded by mCameraLock.  Whether the preview runs, as opposed to the camera being open only
+    // (see prewarm()).
+    private boolean mPreviewing;
+    // Incremented by stop() with mCameraLock held, to cancel asynchronous starts.  Read without
+    // the lock, so that the main thread does not wait for a camera being opened.
+    private final AtomicInteger mStartGeneration = new AtomicInteger();
+    /**
+     * Thread on which the camera is opened and configured by {@link #startAsync} and
+     * {@link #prewarm()}, and on which control changes are applied.  Guarded by
+     * mCameraThreadLock.
+     */
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    private final Object mCameraThreadLock = new Object();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Guards the cached camera settings below.  Zoom, focus and flash changes are validated and
+     * recorded against this cache on the calling thread, without blocking on the camera, and
+     * applied on the camera thread.  Changes made before that happens are merged into a single
+     * update.  May be acquired while holding mCameraLock, but not the other way round.
+     */
+    private final Object mControlLock = new Object();
+    // Guarded by mControlLock.  The Camera1 parameters, as last applied.
+    private Camera.Parameters mParameters;
+    // Guarded by mControlLock.  The Camera2 camera, whose capabilities are static.
+    private Camera2FrameSource mControlCamera2;
+    // Guarded by mControlLock.  The zoom value as of the latest change.
+    private int mZoom;
+    // Guarded by mControlLock.  Changes not applied yet, or NO_ZOOM and null.
+    private int mPendingZoom = NO_ZOOM;
+    private String mPendingFocusMode;
+    private String mPendingFlashMode;
+    private boolean mControlUpdatePosted;
+    private final Runnable mApplyControls = new Runnable() {
+        @Override
+        public void run() {
+            applyControls();
+        }
+    };
     private int mFacing = CAMERA_FACING_BACK;
     /**
      * Rotation of the device, and thus the associated preview images captured from the device.
      * See {@link Frame.Metadata#getRotation()}.
      */
     private int mRotation;
-    private Size mPreviewSize;
+    private volatile Size mPreviewSize;
     // These values may be requested by the caller.  Due to hardware limitations, we may need to
     // select close, but not exactly the same values for these.
     private float mRequestedFps = 30.0f;
     private int mRequestedPreviewWidth = 1024;
     private int mRequestedPreviewHeight = 768;
-    private String mFocusMode = null;
-    private String mFlashMode = null;
+    /**
+     * Requirements of the smallest expected barcode, which replace the requested size and frame
+     * rate if set.  See {@link Builder#setTargetBarcode(float, float, int)}.
+     */
+    private BarcodeResolution mBarcodeResolution;
+    private volatile String mFocusMode = null;
+    private volatile String mFlashMode = null;
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
+    /**
+     * Normalized region of the upright preview frame that is passed to the detector, or null for
+     * the whole frame.  See {@link #setRegionOfInterest(float, float, float, float)}.
+     */
+    private volatile RectF mRegionOfInterest;
+    private boolean mCropChroma = false;
+    /**
+     * Skips blurred frames before detection, or null if all frames are detected on.  See
+     * {@link Builder#setSharpnessGate(float)}.
+     */
+    private SharpnessGate mSharpnessGate;
+    /**
+     * Skips detection on frames of an unchanged scene, or null if all frames are detected on.  See
+     * {@link Builder#setSkipStaticScenes(boolean)}.
+     */
+    private SceneChangeDetector mSceneChangeDetector;
+    /**
+     * Decides which frames are processed when they arrive faster than detection.  See
+     * {@link Builder#setSchedulingPolicy(FrameSchedulingPolicy)}.
+     */
+    private FrameSchedulingPolicy mSchedulingPolicy = FrameSchedulingPolicy.latestWins();
+    private boolean mTwoStageProcessing = false;
+    // Launch the frame processing threads, if supplied.  At most one of them is set.
+    private Executor mProcessingExecutor;
+    private ThreadFactory mProcessingThreadFactory;
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
     // these aren't used outside of the method that creates them, they still must have hard
     // references maintained to them.
     private SurfaceView mDummySurfaceView;
     private SurfaceTexture mDummySurfaceTexture;
     /**
-     * Dedicated thread and associated runnable for calling into the detector with frames, as the
-     * frames become available from the camera.
+     * Dedicated thread for calling into the detector with frames, as the frames become available
+     * from the camera.
+     */
+    private FramePipeline mFramePipeline;
+    private DetectorConsumer mDetectorConsumer;
+    /**
+     * Pool of preview buffers used to convert between a byte array, received from the camera, and
+     * its associated byte buffer.  We use byte buffers internally because this is a more efficient
+     * way to call into native code later (avoids a potential copy).
+     */
+    private volatile FrameBufferPool mBufferPool;
+    /**
+     * Frames of the open camera, or of the replayed recording.  Guarded by mCameraLock.
      */
-    private Thread mProcessingThread;
-    private FrameProcessingRunnable mFrameProcessor;
+    private FrameSource mFrameSource;
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * Records the frames seen by the frame pipeline, see {@link #startRecording(File, long)}.
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+    private volatile FrameRecorder mRecorder;
     private OnFrameReceivedListener mOnFrameReceivedListener;
 
     /**
@@ -150,6 +272,23 @@ public class CameraSource {
         return -1;
     }
 
+    /**
+     * Releases the cached preview buffers of all camera sources when the application is asked to
+     * trim memory.  This is registered once per process, on the application context.
+     */
+    private static void registerBufferCacheTrimCallbacks(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        synchronized (CameraSource.class) {
+            if (sBufferCacheTrimRegistered) {
+                return;
+            }
+            sBufferCacheTrimRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new BufferCacheTrimCallbacks());
+    }
+
     //==============================================================================================
     // Builder
     //==============================================================================================
@@ -162,13 +301,14 @@ public class CameraSource {
      * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
      * image.
      *
-     * @param camera        the camera to select a preview size from
+     * @param parameters    the parameters of the camera to select a preview size from
      * @param desiredWidth  the desired width of the camera preview frames
      * @param desiredHeight the desired height of the camera preview frames
      * @return the selected preview and picture size pair
      */
-    private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
+    private static SizePair selectSizePair(Camera.Parameters parameters, int desiredWidth,
+                                           int desiredHeight) {
+        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(parameters);
 
         // The method for selecting the best size is to minimize the sum of the differences between
         // the desired values and the actual values for width and height.  This is certainly not the
@@ -189,6 +329,29 @@ public class CameraSource {
         return selectedPair;
     }
 
+    /**
+     * Selects the lowest preview size, and its picture size, that resolves the smallest expected
+     * barcode.  If no preview size does, the largest one is selected.
+     *
+     * @param parameters the parameters of the camera to select a preview size from
+     * @param barcode    the requirements of the smallest expected barcode
+     * @return the selected preview and picture size pair
+     */
+    private static SizePair selectSizePair(Camera.Parameters parameters,
+                                           BarcodeResolution barcode) {
+        int requiredWidth = barcode.getRequiredWidth(parameters.getHorizontalViewAngle());
+        SizePair selectedPair = null;
+        for (SizePair sizePair : generateValidPreviewSizeList(parameters)) {
+            Size size = sizePair.previewSize();
+            if (selectedPair == null || BarcodeResolution.isBetterSize(size.getWidth(),
+                    size.getHeight(), selectedPair.previewSize().getWidth(),
+                    selectedPair.previewSize().getHeight(), requiredWidth)) {
+                selectedPair = sizePair;
+            }
+        }
+        return selectedPair;
+    }
+
     //==============================================================================================
     // Bridge Functionality for the Camera1 API
     //==============================================================================================
@@ -202,8 +365,7 @@ public class CameraSource {
      * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
      * preview images may be distorted on some devices.
      */
-    private static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
+    private static List<SizePair> generateValidPreviewSizeList(Camera.Parameters parameters) {
         List<android.hardware.Camera.Size> supportedPreviewSizes =
                 parameters.getSupportedPreviewSizes();
         List<android.hardware.Camera.Size> supportedPictureSizes =
@@ -244,7 +406,16 @@ public class CameraSource {
     public void release() {
         synchronized (mCameraLock) {
             stop();
-            mFrameProcessor.release();
+            stopRecording();
+            mFramePipeline.release();
+            mDetectorConsumer.release();
+            synchronized (mCameraThreadLock) {
+                if (mCameraThread != null) {
+                    mCameraThread.quit();
+                    mCameraThread = null;
+                    mCameraHandler = null;
+                }
+            }
         }
     }
 
@@ -260,13 +431,189 @@ public class CameraSource {
      */
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start() throws IOException {
+        int generation;
+        Camera2FrameSource camera2;
         synchronized (mCameraLock) {
-            if (mCamera != null) {
-                return this;
+            generation = mStartGeneration.get();
+            camera2 = startLocked(null);
+        }
+        startCamera2Streaming(generation, camera2, null);
+        return this;
+    }
+
+    /**
+     * Opens the camera and starts sending preview frames to the underlying detector.  The supplied
+     * surface holder is used for the preview so frames can be displayed to the user.
+     * <p/>
+     * This blocks until the camera is open, which takes several hundred milliseconds on many
+     * devices unless the camera was opened ahead with {@link #prewarm()}.  Prefer
+     * {@link #startAsync(SurfaceHolder, OnStartedListener)} on the main thread.  With the Camera2
+     * backend, the preview surface is resized to the preview size first, which the main thread
+     * cannot wait for.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames
+     * @throws IOException if the supplied surface holder could not be used as the preview display
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
+        int generation;
+        Camera2FrameSource camera2;
+        synchronized (mCameraLock) {
+            generation = mStartGeneration.get();
+            camera2 = startLocked(surfaceHolder);
+        }
+        startCamera2Streaming(generation, camera2, surfaceHolder);
+        return this;
+    }
+
+    /**
+     * Opens the camera on the camera thread and starts sending preview frames to the underlying
+     * detector, like {@link #start(SurfaceHolder)}, without blocking the calling thread.  The
+     * listener is called on the main thread once the preview runs, or if it failed to start.  It
+     * is not called if {@link #stop()} is called first.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void startAsync(final SurfaceHolder surfaceHolder,
+                           @Nullable final OnStartedListener listener) {
+        final int generation = mStartGeneration.get();
+        getCameraHandler().post(new Runnable() {
+            @SuppressLint("MissingPermission")
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    if (!openCameraAsync(generation)) {
+                        return;
+                    }
+                    Camera2FrameSource camera2;
+                    synchronized (mCameraLock) {
+                        if (generation != mStartGeneration.get()) {
+                            return;
+                        }
+                        camera2 = startLocked(surfaceHolder);
+                    }
+                    startCamera2Streaming(generation, camera2, surfaceHolder);
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                }
+                if (listener != null) {
+                    postStartResult(generation, listener, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens and configures the camera on the camera thread, so that a following start only needs
+     * to attach the preview surface.  Call this as early as possible, for example while the views
+     * of the scanner are being inflated and before its preview surface exists.
+     * <p/>
+     * The camera stays open until the camera source is started and stopped, or stopped right away.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void prewarm() {
+        final int generation = mStartGeneration.get();
+        getCameraHandler().post(new Runnable() {
+            @SuppressLint("MissingPermission")
+            @Override
+            public void run() {
+                try {
+                    openCameraAsync(generation);
+                } catch (IOException | RuntimeException e) {
+                    // The following start tries again and reports the error.
+                    Log.w(TAG, "Could not prewarm camera: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens and configures the camera on the camera thread, unless it is open already, without
+     * holding mCameraLock meanwhile, so that stop() and the main thread do not wait for it.  The
+     * camera is published under the lock, or closed again if the start was cancelled meanwhile.
+     *
+     * @return false if the start was cancelled
+     */
+    private boolean openCameraAsync(int generation) throws IOException {
+        synchronized (mCameraLock) {
+            if (generation != mStartGeneration.get()) {
+                return false;
+            }
+            if (isCameraOpenLocked()) {
+                return true;
+            }
+        }
+        OpenedCamera opened = openCamera();
+        synchronized (mCameraLock) {
+            if (generation == mStartGeneration.get() && !isCameraOpenLocked()) {
+                publishCameraLocked(opened);
+                return true;
             }
+        }
+        opened.close();
+        return false;
+    }
 
-            mCamera = createCamera();
+    private void postStartResult(final int generation, final OnStartedListener listener,
+                                 @Nullable final Exception error) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mStartGeneration.get()) {
+                    return;
+                }
+                if (error == null) {
+                    listener.onCameraSourceStarted(CameraSource.this);
+                } else {
+                    listener.onCameraSourceStartFailed(CameraSource.this, error);
+                }
+            }
+        });
+    }
 
+    private Handler getCameraHandler() {
+        synchronized (mCameraThreadLock) {
+            if (mCameraHandler == null) {
+                mCameraThread = new HandlerThread(TAG);
+                mCameraThread.start();
+                mCameraHandler = new Handler(mCameraThread.getLooper());
+            }
+            return mCameraHandler;
+        }
+    }
+
+    /**
+     * Opens the camera unless it is open already, then starts the preview and the processing
+     * thread.  Must be called with mCameraLock held.
+     * <p/>
+     * The Camera2 backend waits for the preview surface and the capture session to be ready
+     * before it streams, so it is started by {@link #startCamera2Streaming} once the lock is
+     * released instead, like a camera is opened by {@link #openCameraAsync(int)}.
+     *
+     * @return the Camera2 camera to start streaming, or null if the preview runs already
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @Nullable
+    private Camera2FrameSource startLocked(@Nullable SurfaceHolder surfaceHolder)
+            throws IOException {
+        if (mPreviewing) {
+            return null;
+        }
+        openCameraLocked();
+
+        // The downscaled copy for the detector's first pass is made while preprocessing.
+        mFramePipeline.setDownscale(mDetectorConsumer.getDownscaleFactor());
+        mFramePipeline.start(mFrameSource, mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                mRotation);
+        if (mReplay != null) {
+            mReplay.start();
+        } else if (mCamera2 != null) {
+            mPreviewing = true;
+            return mCamera2;
+        } else if (surfaceHolder != null) {
+            mCamera.setPreviewDisplay(surfaceHolder);
+            mCamera.startPreview();
+        } else {
             // SurfaceTexture was introduced in Honeycomb (11), so if we are running and
             // old version of Android. fall back to use SurfaceView.
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -277,37 +624,154 @@ public class CameraSource {
                 mCamera.setPreviewDisplay(mDummySurfaceView.getHolder());
             }
             mCamera.startPreview();
+        }
+        mPreviewing = true;
+        return null;
+    }
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+    /**
+     * Starts streaming the Camera2 camera returned by {@link #startLocked}, if any.  Must be called
+     * without mCameraLock held, so that stop() does not wait for the capture session; a camera
+     * closed by stop() meanwhile fails to stream.  If streaming fails otherwise, the camera stays
+     * open but the preview is stopped, so that the start can be retried.
+     */
+    private void startCamera2Streaming(int generation, @Nullable Camera2FrameSource camera2,
+                                       @Nullable SurfaceHolder surfaceHolder) throws IOException {
+        if (camera2 == null) {
+            return;
+        }
+        try {
+            camera2.startStreaming(surfaceHolder);
+        } catch (IOException | RuntimeException e) {
+            synchronized (mCameraLock) {
+                if (generation == mStartGeneration.get() && mCamera2 == camera2) {
+                    mPreviewing = false;
+                    mFramePipeline.stop();
+                }
+            }
+            throw e;
         }
-        return this;
     }
 
     /**
-     * Opens the camera and starts sending preview frames to the underlying detector.  The supplied
-     * surface holder is used for the preview so frames can be displayed to the user.
-     *
-     * @param surfaceHolder the surface holder to use for the preview frames
-     * @throws IOException if the supplied surface holder could not be used as the preview display
+     * Opens and configures the camera with the selected backend, unless it is open already.  Must
+     * be called with mCameraLock held.  When called on the camera thread, the Camera1 callbacks
+     * are delivered on that thread too.
      */
-    @RequiresPermission(Manifest.permission.CAMERA)
-    public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                return this;
+    private void openCameraLocked() throws IOException {
+        if (!isCameraOpenLocked()) {
+            publishCameraLocked(openCamera());
+        }
+    }
+
+    /**
+     * Returns whether a camera or replayed recording is open.  Must be called with mCameraLock
+     * held.
+     */
+    private boolean isCameraOpenLocked() {
+        return mCamera != null || mCamera2 != null || mReplay != null;
+    }
+
+    /**
+     * Opens and configures the camera with the selected backend.  Does not touch the open camera
+     * fields, so that mCameraLock need not be held; the camera is only used by this camera source
+     * once it is published with {@link #publishCameraLocked(OpenedCamera)}.  A camera that fails
+     * to be configured is closed again.
+     */
+    @SuppressLint("MissingPermission")
+    private OpenedCamera openCamera() throws IOException {
+        OpenedCamera opened = new OpenedCamera();
+        try {
+            if (mReplayFile != null) {
+                openReplay(opened);
+            } else if (useCamera2()) {
+                openCamera2(opened);
+            } else {
+                createCamera(opened);
             }
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+        return opened;
+    }
 
-            mCamera = createCamera();
-            mCamera.setPreviewDisplay(surfaceHolder);
-            mCamera.startPreview();
+    /**
+     * Makes an opened camera the camera of this camera source.  Must be called with mCameraLock
+     * held, while no camera is open.
+     */
+    private void publishCameraLocked(OpenedCamera opened) {
+        mCamera = opened.mCamera;
+        mCamera2 = opened.mCamera2;
+        mReplay = opened.mReplay;
+        mFrameSource = opened.mFrameSource;
+        mBufferPool = opened.mBufferPool;
+        mPreviewSize = opened.mPreviewSize;
+        mRotation = opened.mRotation;
+        synchronized (mControlLock) {
+            if (opened.mParameters != null) {
+                mParameters = opened.mParameters;
+                mZoom = opened.mParameters.getZoom();
+            } else {
+                mControlCamera2 = opened.mCamera2;
+                mZoom = 0;
+            }
+        }
+    }
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+    /**
+     * Returns whether the Camera2 backend is selected and usable on this device.
+     */
+    private boolean useCamera2() {
+        if (mBackend != BACKEND_CAMERA2) {
+            return false;
         }
-        return this;
+        if (!Camera2FrameSource.isSupported(mContext, mFacing)) {
+            Log.i(TAG, "Camera2 backend is not supported on this device, using Camera1.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens the camera through the Camera2 API and applies the user settings.
+     */
+    @SuppressLint("MissingPermission")
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void openCamera2(OpenedCamera opened) throws IOException {
+        Camera2FrameSource camera = Camera2FrameSource.open(mContext, mFacing,
+                mRequestedPreviewWidth, mRequestedPreviewHeight, mRequestedFps,
+                mBarcodeResolution, mPreviewBufferCount, mFramePipeline);
+        opened.mCamera2 = camera;
+        opened.mFrameSource = camera;
+        opened.mPreviewSize = camera.getPreviewSize();
+        opened.mRotation = getFrameRotation(mFacing == CAMERA_FACING_FRONT,
+                camera.getSensorOrientation()) / 90;
+
+        if (mFocusMode != null && !camera.setFocusMode(mFocusMode)) {
+            Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
+            mFocusMode = null;
+        }
+        if (mFlashMode != null && !camera.setFlashMode(mFlashMode)) {
+            Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
+            mFlashMode = null;
+        }
+    }
+
+    /**
+     * Opens the recording to replay in place of the camera.  Zoom, focus and flash are not
+     * supported while replaying.
+     */
+    private void openReplay(OpenedCamera opened) throws IOException {
+        FrameReplaySource replay = FrameReplaySource.open(mReplayFile, mReplayRealTime,
+                mFramePipeline);
+        opened.mReplay = replay;
+        opened.mFrameSource = replay;
+        if (replay.getFrameCount() == 0) {
+            throw new IOException("Recording has no frames: " + mReplayFile);
+        }
+        opened.mPreviewSize = new Size(replay.getWidth(), replay.getHeight());
+        opened.mRotation = replay.getRotation();
     }
 
     //==============================================================================================
@@ -318,28 +782,17 @@ public class CameraSource {
      * Closes the camera and stops sending frames to the underlying frame detector.
      * <p/>
      * This camera source may be restarted again by calling {@link #start()} or
-     * {@link #start(SurfaceHolder)}.
+     * {@link #start(SurfaceHolder)}.  A camera opened by {@link #prewarm()} is closed as well.
      * <p/>
      * Call {@link #release()} instead to completely shut down this camera source and release the
      * resources of the underlying detector.
      */
     public void stop() {
         synchronized (mCameraLock) {
-            mFrameProcessor.setActive(false);
-            if (mProcessingThread != null) {
-                try {
-                    // Wait for the thread to complete to ensure that we can't have multiple threads
-                    // executing at the same time (i.e., which would happen if we called start too
-                    // quickly after stop).
-                    mProcessingThread.join();
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Frame processing thread interrupted on release.");
-                }
-                mProcessingThread = null;
-            }
-
-            // clear the buffer to prevent oom exceptions
-            mBytesToByteBuffer.clear();
+            // Cancels starts still queued on the camera thread, or opening the camera there.
+            mStartGeneration.incrementAndGet();
+            mPreviewing = false;
+            mFramePipeline.stop();
 
             if (mCamera != null) {
                 mCamera.stopPreview();
@@ -362,6 +815,68 @@ public class CameraSource {
                 mCamera.release();
                 mCamera = null;
             }
+            if (mCamera2 != null) {
+                mCamera2.close();
+                mCamera2 = null;
+            }
+            if (mReplay != null) {
+                mReplay.close();
+                mReplay = null;
+            }
+            mFrameSource = null;
+            synchronized (mControlLock) {
+                mParameters = null;
+                mControlCamera2 = null;
+                mZoom = 0;
+                mPendingZoom = NO_ZOOM;
+                mPendingFocusMode = null;
+                mPendingFlashMode = null;
+            }
+            // hand the buffers back to the shared cache, which drops them on memory pressure
+            if (mBufferPool != null) {
+                mBufferPool.release();
+                mBufferPool = null;
+            }
+        }
+    }
+
+    /**
+     * Starts recording the frames seen by frame processing, with their id, timestamp and
+     * rotation, to a file that can be replayed with {@link Builder#setReplayFile(File, boolean)}.
+     * Whole preview frames are recorded before the region of interest is applied, and before
+     * frames are skipped as unchanged or blurred.  A recording that is in progress is stopped
+     * first.
+     * <p/>
+     * Recording adds a copy of each frame to frame processing, and fills storage quickly (about
+     * 2.5 MB per 1600x1024 frame), so it is meant for capturing field problems, not for regular
+     * use.  The recording should only span a single preview size, i.e. not be kept running while
+     * the camera is restarted with different settings.
+     *
+     * @param maxBytes size limit of the file, after which further frames are not recorded
+     * @throws IOException if the file could not be created
+     */
+    public void startRecording(File file, long maxBytes) throws IOException {
+        FrameRecorder recorder = new FrameRecorder(file, maxBytes);
+        stopRecording();
+        mRecorder = recorder;
+        mFramePipeline.setRecorder(recorder);
+    }
+
+    /**
+     * Stops recording frames, and completes the recording file.
+     *
+     * @see #startRecording(File, long)
+     */
+    public void stopRecording() {
+        FrameRecorder recorder = mRecorder;
+        mRecorder = null;
+        mFramePipeline.setRecorder(null);
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to complete frame recording: " + e);
+            }
         }
     }
 
@@ -380,51 +895,196 @@ public class CameraSource {
         return mFacing;
     }
 
-    public int doZoom(float scale) {
+    /**
+     * Returns the backend driving the camera; one of {@link #BACKEND_CAMERA1} or
+     * {@link #BACKEND_CAMERA2}.  While the camera source is stopped, this is the selected backend,
+     * which may still fall back to Camera1 when the camera is started.
+     */
+    @Backend
+    public int getBackend() {
         synchronized (mCameraLock) {
-            if (mCamera == null) {
+            return mCamera2 != null || (mCamera == null && mBackend == BACKEND_CAMERA2) ?
+                    BACKEND_CAMERA2 : BACKEND_CAMERA1;
+        }
+    }
+
+    /**
+     * Zooms in or out by a pinch scale factor.  The change is applied on the camera thread, merged
+     * with any other change made in the meantime, so this never blocks on the camera.
+     *
+     * @return the new zoom value
+     */
+    public int doZoom(float scale) {
+        synchronized (mControlLock) {
+            int maxZoom;
+            if (mParameters != null) {
+                maxZoom = mParameters.isZoomSupported() ? mParameters.getMaxZoom() : 0;
+            } else if (mControlCamera2 != null) {
+                maxZoom = mControlCamera2.getMaxZoom();
+            } else {
                 return 0;
             }
-            int currentZoom = 0;
-            int maxZoom;
-            Camera.Parameters parameters = mCamera.getParameters();
-            if (!parameters.isZoomSupported()) {
+            if (maxZoom == 0) {
                 Log.w(TAG, "Zoom is not supported on this device");
-                return currentZoom;
+                return 0;
             }
-            maxZoom = parameters.getMaxZoom();
 
-            currentZoom = parameters.getZoom() + 1;
-            float newZoom;
-            if (scale > 1) {
-                newZoom = currentZoom + scale * (maxZoom / 10);
-            } else {
-                newZoom = currentZoom * scale;
-            }
-            currentZoom = Math.round(newZoom) - 1;
-            if (currentZoom < 0) {
-                currentZoom = 0;
-            } else if (currentZoom > maxZoom) {
-                currentZoom = maxZoom;
-            }
-            parameters.setZoom(currentZoom);
-            mCamera.setParameters(parameters);
-            return currentZoom;
+            mZoom = scaleZoom(mZoom, maxZoom, scale);
+            mPendingZoom = mZoom;
+            postControlUpdateLocked();
+            return mZoom;
         }
     }
 
+    /**
+     * Applies a pinch scale factor to a zoom value between 0 and {@code maxZoom}.
+     */
+    private static int scaleZoom(int zoom, int maxZoom, float scale) {
+        int currentZoom = zoom + 1;
+        float newZoom;
+        if (scale > 1) {
+            newZoom = currentZoom + scale * (maxZoom / 10);
+        } else {
+            newZoom = currentZoom * scale;
+        }
+        currentZoom = Math.round(newZoom) - 1;
+        if (currentZoom < 0) {
+            currentZoom = 0;
+        } else if (currentZoom > maxZoom) {
+            currentZoom = maxZoom;
+        }
+        return currentZoom;
+    }
+
+    /**
+     * Restricts detection to a region of the preview frame.  Only that region is handed to the
+     * detector, which takes less time than detecting on the whole frame.  This may be called while
+     * the camera source is running; the change applies from the next frame on.
+     * <p/>
+     * The region is given in normalized (0 to 1) coordinates of the upright preview, as displayed
+     * to the user.  To get detection results in the coordinates of the whole frame, the detector
+     * must be a {@link FramePipelineDetector}.
+     *
+     * @see #clearRegionOfInterest()
+     */
+    public void setRegionOfInterest(float left, float top, float right, float bottom) {
+        mRegionOfInterest = createRegionOfInterest(left, top, right, bottom);
+        mFramePipeline.setRegionOfInterest(left, top, right, bottom);
+    }
+
+    /**
+     * Hands the whole preview frame to the detector again.
+     *
+     * @see #setRegionOfInterest(float, float, float, float)
+     */
+    public void clearRegionOfInterest() {
+        mRegionOfInterest = null;
+        mFramePipeline.clearRegionOfInterest();
+    }
+
+    /**
+     * Returns a copy of the normalized region of interest, or null if the whole preview frame is
+     * handed to the detector.
+     */
+    @Nullable
+    public RectF getRegionOfInterest() {
+        RectF region = mRegionOfInterest;
+        return region != null ? new RectF(region) : null;
+    }
+
+    /**
+     * Returns the sharpness (mean gradient energy of the luma plane) of the most recently
+     * processed frame, or 0 if the sharpness gate is not enabled.
+     *
+     * @see Builder#setSharpnessGate(float)
+     */
+    public float getLastFrameSharpness() {
+        return mSharpnessGate != null ? mSharpnessGate.getLastSharpness() : 0;
+    }
+
+    /**
+     * Returns the sharpness threshold the most recently processed frame was compared against, or
+     * 0 if the sharpness gate is not enabled.
+     *
+     * @see Builder#setSharpnessGate(float)
+     */
+    public float getSharpnessThreshold() {
+        return mSharpnessGate != null ? mSharpnessGate.getThreshold() : 0;
+    }
+
+    /**
+     * Returns the number of frames skipped by the sharpness gate since this camera source was
+     * built.
+     *
+     * @see Builder#setSharpnessGate(float)
+     */
+    public long getBlurredFrameCount() {
+        return mSharpnessGate != null ? mSharpnessGate.getSkippedFrames() : 0;
+    }
+
+    /**
+     * Returns the number of frames on which detection was skipped because the scene was unchanged,
+     * since this camera source was built.
+     *
+     * @see Builder#setSkipStaticScenes(boolean)
+     */
+    public long getStaticFrameCount() {
+        return mSceneChangeDetector != null ? mSceneChangeDetector.getStaticFrames() : 0;
+    }
+
+    /**
+     * Returns the latency histograms and frame counters of this camera source, from the camera
+     * delivering a frame to the detector being done with it.  The UI stages are up to the caller
+     * dispatching the detection results to record.  The metrics are kept across restarts, until
+     * they are reset.
+     */
+    public PipelineMetrics getMetrics() {
+        return mFramePipeline.getMetrics();
+    }
+
+    /**
+     * Returns the policy that decides which frames are processed, which also counts the frames it
+     * dropped.
+     *
+     * @see Builder#setSchedulingPolicy(FrameSchedulingPolicy)
+     */
+    public FrameSchedulingPolicy getSchedulingPolicy() {
+        return mSchedulingPolicy;
+    }
+
+    /**
+     * Sets the tracer that the camera callback, buffer recycling, preprocessing and detection of
+     * each frame are recorded to, or null to stop tracing.  The change applies from the next frame
+     * on.
+     */
+    public void setTracer(@Nullable FrameTracer tracer) {
+        mFramePipeline.setTracer(tracer);
+    }
+
+    private static RectF createRegionOfInterest(float left, float top, float right, float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid region of interest: [" + left + ", " +
+                    top + ", " + right + ", " + bottom + "]");
+        }
+        return new RectF(left, top, right, bottom);
+    }
+
     /**
      * Initiates taking a picture, which happens asynchronously.  The camera source should have been
      * activated previously with {@link #start()} or {@link #start(SurfaceHolder)}.  The camera
      * preview is suspended while the picture is being taken, but will resume once picture taking is
      * done.
+     * <p/>
+     * Pictures are not supported by the Camera2 backend; the callbacks are not called then.
      *
      * @param shutter the callback for image capture moment, or null
      * @param jpeg    the callback for JPEG image data, or null
      */
     public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mCamera2 != null) {
+                Log.w(TAG, "Taking pictures is not supported by the Camera2 backend");
+            } else if (mCamera != null) {
                 PictureStartCallback startCallback = new PictureStartCallback();
                 startCallback.mDelegate = shutter;
                 PictureDoneCallback doneCallback = new PictureDoneCallback();
@@ -462,18 +1122,24 @@ public class CameraSource {
      * @see #getFocusMode()
      */
     public boolean setFocusMode(@FocusMode String mode) {
-        synchronized (mCameraLock) {
-            if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFocusModes().contains(mode)) {
-                    parameters.setFocusMode(mode);
-                    mCamera.setParameters(parameters);
-                    mFocusMode = mode;
-                    return true;
-                }
+        synchronized (mControlLock) {
+            if (mode == null) {
+                return false;
+            }
+            boolean supported;
+            if (mParameters != null) {
+                supported = contains(mParameters.getSupportedFocusModes(), mode);
+            } else {
+                supported = mControlCamera2 != null && mControlCamera2.isFocusModeSupported(mode);
+            }
+            if (!supported) {
+                return false;
             }
 
-            return false;
+            mFocusMode = mode;
+            mPendingFocusMode = mode;
+            postControlUpdateLocked();
+            return true;
         }
     }
 
@@ -502,18 +1168,101 @@ public class CameraSource {
      * @see #getFlashMode()
      */
     public boolean setFlashMode(@FlashMode String mode) {
+        synchronized (mControlLock) {
+            if (mode == null) {
+                return false;
+            }
+            boolean supported;
+            if (mParameters != null) {
+                supported = contains(mParameters.getSupportedFlashModes(), mode);
+            } else {
+                supported = mControlCamera2 != null && mControlCamera2.isFlashModeSupported(mode);
+            }
+            if (!supported) {
+                return false;
+            }
+
+            mFlashMode = mode;
+            mPendingFlashMode = mode;
+            postControlUpdateLocked();
+            return true;
+        }
+    }
+
+    private static boolean contains(@Nullable List<String> modes, String mode) {
+        return modes != null && modes.contains(mode);
+    }
+
+    /**
+     * Schedules applying the pending control changes on the camera thread, unless that is
+     * scheduled already.  Must be called with mControlLock held.
+     */
+    private void postControlUpdateLocked() {
+        if (!mControlUpdatePosted) {
+            mControlUpdatePosted = true;
+            getCameraHandler().post(mApplyControls);
+        }
+    }
+
+    /**
+     * Applies the pending control changes to the camera, in a single {@code setParameters} call
+     * for Camera1.  Runs on the camera thread.
+     */
+    private void applyControls() {
+        int zoom;
+        String focusMode;
+        String flashMode;
+        Camera.Parameters parameters;
+        Camera2FrameSource camera2;
+        synchronized (mControlLock) {
+            mControlUpdatePosted = false;
+            zoom = mPendingZoom;
+            focusMode = mPendingFocusMode;
+            flashMode = mPendingFlashMode;
+            mPendingZoom = NO_ZOOM;
+            mPendingFocusMode = null;
+            mPendingFlashMode = null;
+            camera2 = mControlCamera2;
+
+            // Only this thread modifies the cached parameters once the camera is open.
+            parameters = mParameters;
+            if (parameters != null) {
+                if (zoom != NO_ZOOM) {
+                    parameters.setZoom(zoom);
+                }
+                if (focusMode != null) {
+                    parameters.setFocusMode(focusMode);
+                }
+                if (flashMode != null) {
+                    parameters.setFlashMode(flashMode);
+                }
+            }
+        }
+
         synchronized (mCameraLock) {
-            if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFlashModes().contains(mode)) {
-                    parameters.setFlashMode(mode);
+            try {
+                if (camera2 != null && camera2 == mCamera2) {
+                    if (zoom != NO_ZOOM) {
+                        camera2.setZoom(zoom);
+                    }
+                    if (focusMode != null) {
+                        camera2.setFocusMode(focusMode);
+                    }
+                    if (flashMode != null) {
+                        camera2.setFlashMode(flashMode);
+                    }
+                } else if (parameters != null && mCamera != null) {
+                    synchronized (mControlLock) {
+                        if (parameters != mParameters) {
+                            // The camera was closed and reopened in the meantime.
+                            return;
+                        }
+                    }
                     mCamera.setParameters(parameters);
-                    mFlashMode = mode;
-                    return true;
                 }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not apply camera settings", e);
             }
-
-            return false;
         }
     }
 
@@ -537,7 +1286,9 @@ public class CameraSource {
      */
     public void autoFocus(@Nullable AutoFocusCallback cb) {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mCamera2 != null) {
+                mCamera2.autoFocus(cb);
+            } else if (mCamera != null) {
                 CameraAutoFocusCallback autoFocusCallback = null;
                 if (cb != null) {
                     autoFocusCallback = new CameraAutoFocusCallback();
@@ -558,7 +1309,9 @@ public class CameraSource {
      */
     public void cancelAutoFocus() {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mCamera2 != null) {
+                mCamera2.cancelAutoFocus();
+            } else if (mCamera != null) {
                 mCamera.cancelAutoFocus();
             }
         }
@@ -568,7 +1321,8 @@ public class CameraSource {
      * Sets camera auto-focus move callback.
      *
      * @param cb the callback to run
-     * @return {@code true} if the operation is supported (i.e. from Jelly Bean), {@code false} otherwise
+     * @return {@code true} if the operation is supported (i.e. from Jelly Bean, and not by the
+     * Camera2 backend), {@code false} otherwise
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public boolean setAutoFocusMoveCallback(@Nullable AutoFocusMoveCallback cb) {
@@ -577,6 +1331,9 @@ public class CameraSource {
         }
 
         synchronized (mCameraLock) {
+            if (mCamera2 != null) {
+                return false;
+            }
             if (mCamera != null) {
                 CameraAutoFocusMoveCallback autoFocusMoveCallback = null;
                 if (cb != null) {
@@ -596,42 +1353,117 @@ public class CameraSource {
      * @throws RuntimeException if the method fails
      */
     @SuppressLint("InlinedApi")
-    private Camera createCamera() {
+    private void createCamera(OpenedCamera opened) {
         int requestedCameraId = getIdForRequestedCamera(mFacing);
         if (requestedCameraId == -1) {
             throw new RuntimeException("Could not find requested camera.");
         }
         Camera camera = Camera.open(requestedCameraId);
+        opened.mCamera = camera;
+
+        // Selecting the sizes and the frame rate takes several queries of the camera, which are
+        // slow on some devices, so the selection is kept in a profile for the next start.
+        Camera.Parameters parameters = camera.getParameters();
+        CameraProfile profile = CameraProfile.load(mContext, requestedCameraId, getProfileRequest());
+        if (profile != null) {
+            try {
+                applyProfile(opened, parameters, profile, requestedCameraId);
+            } catch (RuntimeException e) {
+                // The camera may no longer accept what was selected when the profile was stored.
+                Log.w(TAG, "Camera rejected stored profile, selecting settings again: " + e);
+                CameraProfile.remove(mContext, requestedCameraId);
+                parameters = camera.getParameters();
+                profile = null;
+            }
+        }
+        if (profile == null) {
+            profile = selectProfile(parameters);
+            applyProfile(opened, parameters, profile, requestedCameraId);
+            profile.save(mContext, requestedCameraId);
+        }
+        opened.mParameters = parameters;
+
+        // At least three frame buffers are needed for working with the camera (four by default):
+        //
+        //   one for the frame that is currently being executed upon in doing detection
+        //   one for the next pending frame to process immediately upon completing detection
+        //   the rest for the frames that the camera uses to populate future preview images
+        FrameBufferPool bufferPool = new FrameBufferPool(mPreviewBufferCount,
+                getPreviewBufferSize(opened.mPreviewSize), PreviewBufferCache.getInstance());
+        opened.mBufferPool = bufferPool;
+        Camera1FrameSource source = new Camera1FrameSource(camera, bufferPool,
+                opened.mPreviewSize.getWidth(), mFramePipeline);
+        camera.setPreviewCallbackWithBuffer(source);
+        for (int i = 0; i < bufferPool.size(); ++i) {
+            camera.addCallbackBuffer(bufferPool.array(i));
+        }
+        opened.mFrameSource = source;
+    }
+
+    /**
+     * Describes the requested settings that a camera profile is selected for.
+     */
+    private String getProfileRequest() {
+        if (mBarcodeResolution != null) {
+            return mBarcodeResolution.toString();
+        }
+        return mRequestedPreviewWidth + "x" + mRequestedPreviewHeight + "@" + mRequestedFps;
+    }
 
-        SizePair sizePair = selectSizePair(camera, mRequestedPreviewWidth, mRequestedPreviewHeight);
+    /**
+     * Selects the preview size, picture size and frame rate range for the requested settings.
+     *
+     * @throws RuntimeException if there is no suitable size or frame rate range
+     */
+    private CameraProfile selectProfile(Camera.Parameters parameters) {
+        SizePair sizePair;
+        int[] previewFpsRange;
+        if (mBarcodeResolution != null) {
+            sizePair = selectSizePair(parameters, mBarcodeResolution);
+            previewFpsRange = selectPreviewFpsRange(parameters, mBarcodeResolution);
+        } else {
+            sizePair = selectSizePair(parameters, mRequestedPreviewWidth, mRequestedPreviewHeight);
+            previewFpsRange = selectPreviewFpsRange(parameters, mRequestedFps);
+        }
         if (sizePair == null) {
             throw new RuntimeException("Could not find suitable preview size.");
         }
-        Size pictureSize = sizePair.pictureSize();
-        mPreviewSize = sizePair.previewSize();
-
-        int[] previewFpsRange = selectPreviewFpsRange(camera, mRequestedFps);
         if (previewFpsRange == null) {
             throw new RuntimeException("Could not find suitable preview frames per second range.");
         }
+        Size previewSize = sizePair.previewSize();
+        Size pictureSize = sizePair.pictureSize();
 
-        Camera.Parameters parameters = camera.getParameters();
+        return new CameraProfile(getProfileRequest(), previewSize.getWidth(), previewSize.getHeight(),
+                pictureSize != null ? pictureSize.getWidth() : 0,
+                pictureSize != null ? pictureSize.getHeight() : 0,
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX],
+                parameters.getSupportedFocusModes(), parameters.getSupportedFlashModes());
+    }
 
-        if (pictureSize != null) {
-            parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+    /**
+     * Sets the settings of a profile, the rotation and the user's focus and flash modes in the
+     * parameters, and applies them to the camera.
+     *
+     * @throws RuntimeException if the camera rejects the parameters
+     */
+    private void applyProfile(OpenedCamera opened, Camera.Parameters parameters,
+                              CameraProfile profile, int cameraId) {
+        Camera camera = opened.mCamera;
+        if (profile.hasPictureSize()) {
+            parameters.setPictureSize(profile.getPictureWidth(), profile.getPictureHeight());
         }
 
-        parameters.setPreviewSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-        parameters.setPreviewFpsRange(
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        opened.mPreviewSize = new Size(profile.getPreviewWidth(), profile.getPreviewHeight());
+        parameters.setPreviewSize(profile.getPreviewWidth(), profile.getPreviewHeight());
+        parameters.setPreviewFpsRange(profile.getMinFps(), profile.getMaxFps());
         parameters.setPreviewFormat(ImageFormat.NV21);
 
-        setRotation(camera, parameters, requestedCameraId);
+        opened.mRotation = setRotation(camera, parameters, cameraId);
 
         if (mFocusMode != null) {
-            if (parameters.getSupportedFocusModes().contains(
-                    mFocusMode)) {
+            if (profile.getFocusModes().contains(mFocusMode)) {
                 parameters.setFocusMode(mFocusMode);
             } else {
                 Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
@@ -642,8 +1474,7 @@ public class CameraSource {
         mFocusMode = parameters.getFocusMode();
 
         if (mFlashMode != null) {
-            if (parameters.getSupportedFlashModes().contains(
-                    mFlashMode)) {
+            if (profile.getFlashModes().contains(mFlashMode)) {
                 parameters.setFlashMode(mFlashMode);
             } else {
                 Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
@@ -654,30 +1485,19 @@ public class CameraSource {
         mFlashMode = parameters.getFlashMode();
 
         camera.setParameters(parameters);
-
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-
-        return camera;
     }
 
     /**
      * Selects the most suitable preview frames per second range, given the desired frames per
      * second.
      *
-     * @param camera            the camera to select a frames per second range from
+     * @param parameters        the parameters of the camera to select a frames per second range
+     *                          from
      * @param desiredPreviewFps the desired frames per second for the camera preview frames
      * @return the selected preview frames per second range
      */
-    private int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
+    private static int[] selectPreviewFpsRange(Camera.Parameters parameters,
+                                               float desiredPreviewFps) {
         // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
         // rates.
         int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
@@ -689,7 +1509,7 @@ public class CameraSource {
         // range (15, 30).
         int[] selectedFpsRange = null;
         int minDiff = Integer.MAX_VALUE;
-        List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
+        List<int[]> previewFpsRangeList = parameters.getSupportedPreviewFpsRange();
         for (int[] range : previewFpsRangeList) {
             int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
             int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
@@ -702,14 +1522,62 @@ public class CameraSource {
         return selectedFpsRange;
     }
 
+    /**
+     * Selects the highest preview frames per second range that keeps up with the target latency
+     * of the smallest expected barcode.
+     *
+     * @param parameters the parameters of the camera to select a frames per second range from
+     * @param barcode    the requirements of the smallest expected barcode
+     * @return the selected preview frames per second range
+     */
+    private static int[] selectPreviewFpsRange(Camera.Parameters parameters,
+                                               BarcodeResolution barcode) {
+        // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
+        // rates.
+        float minFpsScaled = barcode.getMinFps() * 1000.0f;
+        int[] selectedFpsRange = null;
+        for (int[] range : parameters.getSupportedPreviewFpsRange()) {
+            if (selectedFpsRange == null || BarcodeResolution.isBetterFpsRange(
+                    range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX],
+                    selectedFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    selectedFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX], minFpsScaled)) {
+                selectedFpsRange = range;
+            }
+        }
+        return selectedFpsRange;
+    }
+
     /**
      * Calculates the correct rotation for the given camera id and sets the rotation in the
      * parameters.  It also sets the camera's display orientation and rotation.
      *
      * @param parameters the camera parameters for which to set the rotation
      * @param cameraId   the camera id to set rotation based on
+     * @return the rotation of the frames, see {@link Frame.Metadata#getRotation()}
+     */
+    private int setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+        CameraInfo cameraInfo = new CameraInfo();
+        Camera.getCameraInfo(cameraId, cameraInfo);
+
+        boolean front = cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        int angle = getFrameRotation(front, cameraInfo.orientation);
+        int displayAngle = front ? 360 - angle : angle; // compensate for it being mirrored
+
+        camera.setDisplayOrientation(displayAngle);
+        parameters.setRotation(angle);
+        // This corresponds to the rotation constants in {@link Frame}.
+        return angle / 90;
+    }
+
+    /**
+     * Returns the clockwise angle in degrees by which frames of a camera must be rotated to be
+     * upright on the current display rotation.
+     *
+     * @param sensorOrientation the orientation of the camera sensor, see
+     *                          {@link CameraInfo#orientation}
      */
-    private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+    private int getFrameRotation(boolean front, int sensorOrientation) {
         WindowManager windowManager =
                 (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         int degrees = 0;
@@ -731,53 +1599,28 @@ public class CameraSource {
                 Log.e(TAG, "Bad rotation value: " + rotation);
         }
 
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
-
-        int angle;
-        int displayAngle;
-        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            angle = (cameraInfo.orientation + degrees) % 360;
-            displayAngle = (360 - angle); // compensate for it being mirrored
+        if (front) {
+            return (sensorOrientation + degrees) % 360;
         } else {  // back-facing
-            angle = (cameraInfo.orientation - degrees + 360) % 360;
-            displayAngle = angle;
+            return (sensorOrientation - degrees + 360) % 360;
         }
-
-        // This corresponds to the rotation constants in {@link Frame}.
-        mRotation = angle / 90;
-
-        camera.setDisplayOrientation(displayAngle);
-        parameters.setRotation(angle);
     }
 
     /**
-     * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
+     * Computes the size of one buffer for the camera preview callback.  The size of the buffer is
+     * based off of the camera preview size and the format of the camera image.
      *
-     * @return a new preview buffer of the appropriate size for the current camera settings
+     * @return the preview buffer size in bytes for the current camera settings
      */
-    private byte[] createPreviewBuffer(Size previewSize) {
+    private static int getPreviewBufferSize(Size previewSize) {
         int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
         long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
 
         //
         // NOTICE: This code only works when using play services v. 8.1 or higher.
         //
 
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does, then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException("Failed to create valid buffer for camera source.");
-        }
-
-        mBytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
+        return (int) Math.ceil(sizeInBits / 8.0d) + 1;
     }
 
     //==============================================================================================
@@ -808,6 +1651,11 @@ public class CameraSource {
     private @interface FlashMode {
     }
 
+    @IntDef({BACKEND_CAMERA1, BACKEND_CAMERA2})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Backend {
+    }
+
     /**
      * Callback interface used to signal the moment of receiving frame with detector.
      */
@@ -819,6 +1667,22 @@ public class CameraSource {
         void onFrameReceived();
     }
 
+    /**
+     * Callback interface used to report the outcome of
+     * {@link #startAsync(SurfaceHolder, OnStartedListener)}, on the main thread.
+     */
+    public interface OnStartedListener {
+        /**
+         * Called once the camera preview runs.  The preview size is known from here on.
+         */
+        void onCameraSourceStarted(CameraSource cameraSource);
+
+        /**
+         * Called if the camera could not be opened or the preview could not be started.
+         */
+        void onCameraSourceStartFailed(CameraSource cameraSource, Exception e);
+    }
+
     /**
      * Callback interface used to signal the moment of actual image capture.
      */
@@ -899,6 +1763,7 @@ public class CameraSource {
 
             mDetector = detector;
             mCameraSource.mContext = context;
+            registerBufferCacheTrimCallbacks(context);
         }
 
         /**
@@ -942,6 +1807,197 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Selects the preview size and frame rate from the smallest barcode that is expected to
+         * be scanned, instead of {@link #setRequestedPreviewSize(int, int)} and
+         * {@link #setRequestedFps(float)}.  The lowest preview size whose pixels still resolve the
+         * barcode's modules at the working distance is selected, and the highest frame rate whose
+         * frame interval stays within the target latency.  On fast cameras this gains frame rate,
+         * and slow devices do not spend detection time on pixels that are not needed.
+         *
+         * @param moduleWidthMm       width in millimeters of the narrowest bar or cell of the
+         *                            smallest expected barcode, e.g. 0.33 for a full size EAN-13
+         * @param workingDistanceMm   largest distance in millimeters between the camera and the
+         *                            barcode
+         * @param targetLatencyMillis longest acceptable time between two frames, also in low light
+         */
+        public Builder setTargetBarcode(float moduleWidthMm, float workingDistanceMm,
+                                        int targetLatencyMillis) {
+            mCameraSource.mBarcodeResolution = new BarcodeResolution(moduleWidthMm,
+                    workingDistanceMm, targetLatencyMillis);
+            return this;
+        }
+
+        /**
+         * Sets the number of preview buffers handed to the camera.  Two buffers are always held by
+         * frame processing (the frame being detected and the pending one), the rest are available
+         * to the camera for upcoming preview images.  Slow devices may need more buffers so that
+         * the camera never waits for one to be returned.  A scheduling policy that keeps more than
+         * one frame pending, or two-stage processing, raises the count to fit.  Default: 4,
+         * minimum: 3.
+         */
+        public Builder setPreviewBufferCount(int count) {
+            if (count < FrameBufferPool.MIN_DEPTH) {
+                throw new IllegalArgumentException("Invalid preview buffer count: " + count);
+            }
+            mCameraSource.mPreviewBufferCount = count;
+            return this;
+        }
+
+        /**
+         * Restricts detection to a region of the preview frame, given in normalized (0 to 1)
+         * coordinates of the upright preview.  Default: the whole frame.
+         *
+         * @see CameraSource#setRegionOfInterest(float, float, float, float)
+         */
+        public Builder setRegionOfInterest(float left, float top, float right, float bottom) {
+            mCameraSource.mRegionOfInterest = createRegionOfInterest(left, top, right, bottom);
+            return this;
+        }
+
+        /**
+         * Sets whether the chroma (color) plane is copied along with the luma plane when cropping
+         * frames to the region of interest.  Barcode detection only needs luma, so by default the
+         * chroma of the cropped frame is left gray.  Default: false.
+         */
+        public Builder setCropChroma(boolean cropChroma) {
+            mCameraSource.mCropChroma = cropChroma;
+            return this;
+        }
+
+        /**
+         * Enables skipping blurred frames before detection.  The sharpness of each frame (within
+         * the region of interest) is measured on its luma plane, and frames whose sharpness is
+         * below {@code ratio} times the running average of recent frames are not handed to the
+         * detector.  This saves the detector's time while the lens is hunting for focus or the
+         * device is moving.  A value of 0 disables the gate.  Default: 0.
+         *
+         * @see CameraSource#getLastFrameSharpness()
+         * @see CameraSource#getBlurredFrameCount()
+         */
+        public Builder setSharpnessGate(float ratio) {
+            if (ratio < 0 || ratio >= 1) {
+                throw new IllegalArgumentException("Invalid sharpness ratio: " + ratio);
+            }
+            mCameraSource.mSharpnessGate = ratio > 0 ? new SharpnessGate(ratio) : null;
+            return this;
+        }
+
+        /**
+         * Enables skipping detection while the scene is unchanged.  A sparse sample of each
+         * frame's luma plane is compared with the last frame that detection ran on; if they are
+         * nearly identical, detection is skipped and the previous results stay in place.
+         * Detection resumes as soon as motion is seen, and at least every two seconds.  This saves
+         * CPU and battery on fixed-mount devices.  Default: false.
+         *
+         * @see CameraSource#getStaticFrameCount()
+         */
+        public Builder setSkipStaticScenes(boolean skip) {
+            mCameraSource.mSceneChangeDetector = skip ? new SceneChangeDetector() : null;
+            return this;
+        }
+
+        /**
+         * Sets the policy that decides which frames are processed when the camera delivers them
+         * faster than the detector handles them:
+         * <ul>
+         * <li>{@link FrameSchedulingPolicy#latestWins()} processes the most recent frame only, for
+         * the lowest latency.</li>
+         * <li>{@link FrameSchedulingPolicy#boundedQueue(int)} processes frames in order, keeping
+         * up to N pending, for analyzing bursts of frames.</li>
+         * <li>{@link FrameSchedulingPolicy#everyNth(int)} only considers every Nth frame, to save
+         * power.</li>
+         * <li>{@link FrameSchedulingPolicy#deadline(long)} drops frames that are too old by the
+         * time detection would start on them.</li>
+         * </ul>
+         * A policy must not be shared between camera sources.  Default: latest wins.
+         *
+         * @see CameraSource#getSchedulingPolicy()
+         */
+        public Builder setSchedulingPolicy(FrameSchedulingPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("No scheduling policy supplied.");
+            }
+            mCameraSource.mSchedulingPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Enables processing frames in two stages on two threads: the next frame is recorded,
+         * cropped and checked for sharpness and scene changes while the detector runs on the
+         * current one.  This raises the detection frame rate on multi-core devices when
+         * preprocessing takes a noticeable share of the frame time, at the cost of a second
+         * thread and crop buffer.  Default: false.
+         */
+        public Builder setTwoStageProcessing(boolean twoStage) {
+            mCameraSource.mTwoStageProcessing = twoStage;
+            return this;
+        }
+
+        /**
+         * Sets the executor that the frame processing threads are launched on, so that they fit
+         * the app's own scheduling.  Each of them runs until the camera source is released,
+         * parked while it is stopped, so the executor must give each task a thread of its own:
+         * one, or two with {@link #setTwoStageProcessing(boolean)}.  Default: a thread per task.
+         *
+         * @see #setThreadFactory(ThreadFactory)
+         */
+        public Builder setExecutor(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("No executor supplied.");
+            }
+            mCameraSource.mProcessingExecutor = executor;
+            mCameraSource.mProcessingThreadFactory = null;
+            return this;
+        }
+
+        /**
+         * Sets the factory that the frame processing threads are created with, to set their
+         * names, priority or thread group.  The threads are created on the first start and kept
+         * until the camera source is released.  Default: daemon threads of normal priority.
+         *
+         * @see #setExecutor(Executor)
+         */
+        public Builder setThreadFactory(ThreadFactory threadFactory) {
+            if (threadFactory == null) {
+                throw new IllegalArgumentException("No thread factory supplied.");
+            }
+            mCameraSource.mProcessingThreadFactory = threadFactory;
+            mCameraSource.mProcessingExecutor = null;
+            return this;
+        }
+
+        /**
+         * Selects the camera API used to drive the camera (either {@link #BACKEND_CAMERA1} or
+         * {@link #BACKEND_CAMERA2}).  The Camera2 backend hands the luma plane of each preview
+         * image to the detector without copying it, and can use the higher frame rates of newer
+         * cameras.  It falls back to Camera1 before Lollipop and on cameras that only have legacy
+         * Camera2 support.  It does not support {@link CameraSource#takePicture} or auto focus
+         * move callbacks.  Default: Camera1.
+         */
+        public Builder setBackend(@Backend int backend) {
+            if (backend != BACKEND_CAMERA1 && backend != BACKEND_CAMERA2) {
+                throw new IllegalArgumentException("Invalid backend: " + backend);
+            }
+            mCameraSource.mBackend = backend;
+            return this;
+        }
+
+        /**
+         * Replays frames recorded with {@link CameraSource#startRecording(File, long)} instead of
+         * opening the camera, so that a field problem can be reproduced with the same detector
+         * pipeline.  The preview surface stays empty.
+         *
+         * @param realTime whether to deliver frames at their recorded times, dropping frames
+         *                 detection does not keep up with, or else every frame as soon as the
+         *                 previous one is processed
+         */
+        public Builder setReplayFile(File file, boolean realTime) {
+            mCameraSource.mReplayFile = file;
+            mCameraSource.mReplayRealTime = realTime;
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -958,8 +2014,27 @@ public class CameraSource {
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
-            return mCameraSource;
+            CameraSource source = mCameraSource;
+            source.mDetectorConsumer = source.new DetectorConsumer(mDetector);
+            source.mFramePipeline = new FramePipeline(source.mDetectorConsumer,
+                    source.mSharpnessGate, source.mSceneChangeDetector, source.mSchedulingPolicy);
+            source.mFramePipeline.setCropChroma(source.mCropChroma);
+            source.mFramePipeline.setTwoStage(source.mTwoStageProcessing);
+            if (source.mProcessingExecutor != null) {
+                source.mFramePipeline.setExecutor(source.mProcessingExecutor);
+            } else if (source.mProcessingThreadFactory != null) {
+                source.mFramePipeline.setThreadFactory(source.mProcessingThreadFactory);
+            }
+            RectF region = source.mRegionOfInterest;
+            if (region != null) {
+                source.mFramePipeline.setRegionOfInterest(region.left, region.top, region.right,
+                        region.bottom);
+            }
+            // The frames pending and those being processed are held by the pipeline; leave the
+            // camera at least two more to fill.
+            source.mPreviewBufferCount = Math.max(source.mPreviewBufferCount,
+                    source.mFramePipeline.getHeldFrameCount() + 2);
+            return source;
         }
     }
 
@@ -991,6 +2066,63 @@ public class CameraSource {
         }
     }
 
+    /**
+     * A camera or replayed recording opened by {@link #openCamera()}, and the settings selected
+     * for it, until it is published to the camera source.
+     */
+    private static class OpenedCamera {
+        private Camera mCamera;
+        private Camera2FrameSource mCamera2;
+        private FrameReplaySource mReplay;
+        private FrameSource mFrameSource;
+        private FrameBufferPool mBufferPool;
+        // The Camera1 parameters, as applied.
+        private Camera.Parameters mParameters;
+        private Size mPreviewSize;
+        private int mRotation;
+
+        /**
+         * Closes a camera that is not published, because it failed to be configured or its start
+         * was cancelled.
+         */
+        void close() {
+            if (mCamera != null) {
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCamera.release();
+            }
+            if (mCamera2 != null) {
+                mCamera2.close();
+            }
+            if (mReplay != null) {
+                mReplay.close();
+            }
+            if (mBufferPool != null) {
+                mBufferPool.release();
+            }
+        }
+    }
+
+    /**
+     * Drops the buffers held by the shared {@link PreviewBufferCache} on memory pressure.  Buffers
+     * in use by running camera sources are not affected.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class BufferCacheTrimCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            PreviewBufferCache.getInstance().trimMemory(level >= TRIM_MEMORY_RUNNING_LOW);
+        }
+
+        @Override
+        public void onLowMemory() {
+            PreviewBufferCache.getInstance().trimMemory(true);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
     /**
      * Wraps the camera1 shutter callback so that the deprecated API isn't exposed.
      */
@@ -1059,162 +2191,135 @@ public class CameraSource {
     //==============================================================================================
 
     /**
-     * Called when the camera has a new preview frame.
+     * Preview buffers of the Camera1 backend, which go back to the camera as callback buffers.
+     * Receives the preview frames from the camera and hands them to the frame pipeline.
      */
-    private class CameraPreviewCallback implements Camera.PreviewCallback {
+    private static class Camera1FrameSource implements FrameSource, Camera.PreviewCallback {
+        private final Camera mCamera;
+        private final FrameBufferPool mPool;
+        private final int mRowStride;
+        private final FrameListener mListener;
+        private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+        // Only accessed from the thread delivering camera frames.
+        private int mNextFrameId;
+
+        Camera1FrameSource(Camera camera, FrameBufferPool pool, int rowStride,
+                           FrameListener listener) {
+            mCamera = camera;
+            mPool = pool;
+            mRowStride = rowStride;
+            mListener = listener;
+        }
+
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            mFrameProcessor.setNextFrame(data, camera);
+            long receivedNanos = System.nanoTime();
+            int slot = mPool.indexOf(data);
+            if (slot == FrameBufferPool.NO_SLOT) {
+                Log.d(TAG,
+                        "Skipping frame.  Could not find ByteBuffer associated with the image " +
+                                "data from the camera.");
+                return;
+            }
+
+            // Timestamp and frame ID are maintained here, which will give downstream code some
+            // idea of the timing of frames received and when frames were dropped along the way.
+            mPool.setFrameInfo(slot, ++mNextFrameId,
+                    SystemClock.elapsedRealtime() - mStartTimeMillis);
+            mListener.onFrameAvailable(this, slot, receivedNanos);
+        }
+
+        @Override
+        public ByteBuffer getData(int slot) {
+            return mPool.buffer(slot);
+        }
+
+        @Override
+        public int getRowStride(int slot) {
+            return mRowStride;
+        }
+
+        @Override
+        public boolean hasChroma() {
+            return true;
+        }
+
+        @Override
+        public int getFrameId(int slot) {
+            return mPool.getFrameId(slot);
+        }
+
+        @Override
+        public long getTimestampMillis(int slot) {
+            return mPool.getTimestampMillis(slot);
+        }
+
+        @Override
+        public void recycle(int slot) {
+            mCamera.addCallbackBuffer(mPool.array(slot));
         }
     }
 
     /**
-     * This runnable controls access to the underlying receiver, calling it to process frames when
-     * available from the camera.  This is designed to run detection on frames as fast as possible
-     * (i.e., without unnecessary context switching or waiting on the next frame).
-     * <p/>
-     * While detection is running on a frame, new frames may be received from the camera.  As these
-     * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
-     * associated processing are done for the previous frame, detection on the mostly recently
-     * received frame will immediately start on the same thread.
-     */
-    private class FrameProcessingRunnable implements Runnable {
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
+     * Hands the frames prepared by the frame pipeline to the detector, on the processing thread.
+     */
+    private class DetectorConsumer implements FramePipeline.FrameConsumer {
         private Detector<?> mDetector;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
-        private boolean mActive = true;
+        private FramePipelineDetector<?> mPipelineDetector;
+        // The builder sets the fields of the frame it holds and build() returns that same frame,
+        // so reusing the builder keeps the frame loop free of allocations.  Only accessed from
+        // the processing thread.
+        private final Frame.Builder mFrameBuilder = new Frame.Builder();
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
-
-        FrameProcessingRunnable(Detector<?> detector) {
+        DetectorConsumer(Detector<?> detector) {
             mDetector = detector;
+            if (detector instanceof FramePipelineDetector) {
+                mPipelineDetector = (FramePipelineDetector<?>) detector;
+            }
+        }
+
+        /**
+         * Returns the factor by which the frame pipeline is to downscale frames for the detector.
+         */
+        int getDownscaleFactor() {
+            return mPipelineDetector != null ? mPipelineDetector.getDownscaleFactor() : 1;
         }
 
         /**
-         * Releases the underlying receiver.  This is only safe to do after the associated thread
-         * has completed, which is managed in camera source's release method above.
+         * Releases the underlying detector.  This is only safe to do after the frame pipeline has
+         * stopped, which is managed in camera source's release method above.
          */
         @SuppressLint("Assert")
         void release() {
-            assert (mProcessingThread.getState() == State.TERMINATED);
+            assert !mFramePipeline.isRunning();
             mDetector.release();
             mDetector = null;
+            mPipelineDetector = null;
         }
 
-        /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
-         */
-        void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
+        @Override
+        public void onFrame(ByteBuffer data, FrameRegion region, ByteBuffer scaledData,
+                            int scaleFactor, int frameId, long timestampMillis) {
+            Frame outputFrame = mFrameBuilder
+                    .setImageData(data, region.getWidth(), region.getHeight(), ImageFormat.NV21)
+                    .setId(frameId)
+                    .setTimestampMillis(timestampMillis)
+                    .setRotation(region.getRotation())
+                    .build();
+
+            if (mPipelineDetector != null) {
+                mPipelineDetector.setFrameRegion(region);
+                mPipelineDetector.setScaledFrame(scaledData, scaleFactor);
             }
-        }
-
-        /**
-         * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
-         */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
-
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(TAG,
-                            "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                                    "data from the camera.");
-                    return;
-                }
-
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
-
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+            mDetector.receiveFrame(outputFrame);
+            if (mOnFrameReceivedListener != null) {
+                mOnFrameReceivedListener.onFrameReceived();
             }
         }
 
-        /**
-         * As long as the processing thread is active, this executes detection on frames
-         * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
-         * <p/>
-         * If detection takes longer than the time in between new frames from the camera, this will
-         * mean that this loop will run without ever waiting on a frame, avoiding any context
-         * switching or frame acquisition time latency.
-         * <p/>
-         * If you find that this is using more CPU than you'd like, you should probably decrease the
-         * FPS setting above to allow for some idle time in between frames.
-         */
         @Override
-        public void run() {
-            Frame outputFrame;
-            ByteBuffer data;
-
-            while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
-
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
-
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                    mPreviewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(mRotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
-                }
-
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
-
-                try {
-                    mDetector.receiveFrame(outputFrame);
-                    if (mOnFrameReceivedListener != null) {
-                        mOnFrameReceivedListener.onFrameReceived();
-                    }
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
-                } finally {
-                    mCamera.addCallbackBuffer(data.array());
-                }
-            }
+        public void onError(Throwable t) {
+            Log.e(TAG, "Exception thrown from receiver.", t);
         }
     }
 }
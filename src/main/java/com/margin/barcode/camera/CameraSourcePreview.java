@@ -33,11 +33,20 @@ import java.io.IOException;
 public class CameraSourcePreview extends ViewGroup {
     private static final String TAG = "CameraSourcePreview";
 
+    /**
+     * Notified on the main thread when the camera source could not be started, for example
+     * because the camera could not be opened.
+     */
+    public interface OnStartFailedListener {
+        void onCameraSourceStartFailed(Exception e);
+    }
+
     private Context mContext;
     private SurfaceView mSurfaceView;
     private boolean mStartRequested;
     private boolean mSurfaceAvailable;
     private CameraSource mCameraSource;
+    private OnStartFailedListener mOnStartFailedListener;
 
     private GraphicOverlay mOverlay;
 
@@ -73,6 +82,14 @@ public class CameraSourcePreview extends ViewGroup {
         start(cameraSource);
     }
 
+    /**
+     * Sets the listener told when the camera source fails to start.  Starts are asynchronous, so
+     * failures to open the camera are not thrown by {@link #start(CameraSource)}.
+     */
+    public void setOnStartFailedListener(OnStartFailedListener listener) {
+        mOnStartFailedListener = listener;
+    }
+
     public void setCameraPreviewOnTop(boolean isOnTop) {
         mSurfaceView.setZOrderOnTop(isOnTop);
     }
@@ -90,23 +107,14 @@ public class CameraSourcePreview extends ViewGroup {
         }
     }
 
+    /**
+     * Starts the camera source once the surface exists.  The camera is opened on the camera
+     * source's own thread, so layout and the first draw of the surrounding views are not held up.
+     */
     @RequiresPermission(Manifest.permission.CAMERA)
     private void startIfReady() throws IOException, SecurityException {
         if (mStartRequested && mSurfaceAvailable) {
-            mCameraSource.start(mSurfaceView.getHolder());
-            if (mOverlay != null) {
-                Size size = mCameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
-                } else {
-                    mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
-                }
-                mOverlay.clear();
-            }
+            mCameraSource.startAsync(mSurfaceView.getHolder(), new CameraStartedListener());
             mStartRequested = false;
         }
     }
@@ -153,8 +161,16 @@ public class CameraSourcePreview extends ViewGroup {
             startIfReady();
         } catch (SecurityException se) {
             Log.e(TAG, "Do not have permission to start the camera", se);
+            onStartFailed(se);
         } catch (IOException e) {
             Log.e(TAG, "Could not start camera source.", e);
+            onStartFailed(e);
+        }
+    }
+
+    private void onStartFailed(Exception e) {
+        if (mOnStartFailedListener != null) {
+            mOnStartFailedListener.onCameraSourceStartFailed(e);
         }
     }
 
@@ -179,8 +195,10 @@ public class CameraSourcePreview extends ViewGroup {
                 startIfReady();
             } catch (SecurityException se) {
                 Log.e(TAG, "Do not have permission to start the camera", se);
+                onStartFailed(se);
             } catch (IOException e) {
                 Log.e(TAG, "Could not start camera source.", e);
+                onStartFailed(e);
             }
         }
 
@@ -193,4 +211,37 @@ public class CameraSourcePreview extends ViewGroup {
         public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         }
     }
+
+    private class CameraStartedListener implements CameraSource.OnStartedListener {
+        @Override
+        public void onCameraSourceStarted(CameraSource cameraSource) {
+            if (cameraSource != mCameraSource) {
+                return;
+            }
+            if (mOverlay != null) {
+                Size size = cameraSource.getPreviewSize();
+                int min = Math.min(size.getWidth(), size.getHeight());
+                int max = Math.max(size.getWidth(), size.getHeight());
+                if (isPortraitMode()) {
+                    // Swap width and height sizes when in portrait, since it will be rotated by
+                    // 90 degrees
+                    mOverlay.setCameraInfo(min, max, cameraSource.getCameraFacing());
+                } else {
+                    mOverlay.setCameraInfo(max, min, cameraSource.getCameraFacing());
+                }
+                mOverlay.clear();
+            }
+            // The layout depends on the preview size, which is only known now.
+            requestLayout();
+        }
+
+        @Override
+        public void onCameraSourceStartFailed(CameraSource cameraSource, Exception e) {
+            if (cameraSource != mCameraSource) {
+                return;
+            }
+            Log.e(TAG, "Could not start camera source.", e);
+            onStartFailed(e);
+        }
+    }
 }
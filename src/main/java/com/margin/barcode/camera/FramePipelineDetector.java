@@ -0,0 +1,492 @@
+package com.margin.barcode.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Detector wrapper used by {@link CameraSource} when it preprocesses frames before detection (for
+ * example by cropping them to a region of interest).  Detection is delegated to the wrapped
+ * detector, and the results are mapped back to the coordinates of the full preview frame before
+ * they reach the processor, so that graphics are still drawn in the right place.
+ * <p/>
+ * The wrapper can also run detection in two passes: first on a downscaled grayscale copy of the
+ * frame, which is much cheaper, and only if that finds nothing (or only items that are too small
+ * to be trusted) again on the full resolution frame.  See {@link #setDownscale(int, int)}.  The
+ * camera source has the copy made by its frame pipeline while preprocessing, so that with two
+ * stages it is off the detection thread; frames passed in otherwise are downscaled here.
+ * <p/>
+ * The full resolution frame can also be searched in overlapping tiles, by several detectors in
+ * parallel.  See {@link #setTiling(int, int, float, List)}.
+ * <p/>
+ * Set the processor on this wrapper, not on the wrapped detector.
+ */
+public abstract class FramePipelineDetector<T> extends Detector<T> {
+    private final Detector<T> mDelegate;
+    private final FrameRegion mFullFrameRegion = new FrameRegion();
+    // Only accessed from the frame processing thread.
+    private FrameRegion mRegion;
+
+    private volatile int mDownscaleFactor = 1;
+    private volatile int mMinItemSize = 0;
+
+    // Downscaled copy of the next frame made by the frame pipeline, and its factor.  Only
+    // accessed from the frame processing thread.
+    private ByteBuffer mPreparedScaledData;
+    private int mPreparedScaleFactor;
+    // Downscaled copy of a frame that came without one, reused from frame to frame.  Only
+    // accessed from the frame processing thread.
+    private byte[] mScaledArray;
+    private ByteBuffer mScaledBuffer;
+    private int mScaledWidth;
+    private int mScaledHeight;
+    // Reused like the frame builder of the camera source, so that downscaling allocates nothing.
+    private final Frame.Builder mScaledFrameBuilder = new Frame.Builder();
+
+    /**
+     * Searches the full resolution frame in tiles, or null to search it whole.  See
+     * {@link #setTiling(int, int, float, List)}.
+     */
+    private volatile TiledDetection mTiledDetection;
+    // Reused when merging the results of tiles.  Only accessed from the frame processing thread.
+    private final Rect mItemBox = new Rect();
+    private final Rect mMergedBox = new Rect();
+
+    protected FramePipelineDetector(Detector<T> delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Enables detection on a downscaled copy of each frame first.  The full resolution frame is
+     * only searched if the downscaled one yields no items, or an item whose smallest side is below
+     * {@code minItemSize} full resolution pixels.  Call this before the camera source starts, so
+     * that its frame pipeline makes the downscaled copies; until the next start, a changed factor
+     * is applied by downscaling on the detection thread.
+     *
+     * @param factor      the downscale factor: 1 (disabled), 2 or 4
+     * @param minItemSize the smallest item, in full resolution pixels, trusted from the downscaled
+     *                    pass
+     */
+    public void setDownscale(int factor, int minItemSize) {
+        if (factor != 1 && factor != 2 && factor != 4) {
+            throw new IllegalArgumentException("Invalid downscale factor: " + factor);
+        }
+        if (minItemSize < 0) {
+            throw new IllegalArgumentException("Invalid minimum item size: " + minItemSize);
+        }
+        mMinItemSize = minItemSize;
+        mDownscaleFactor = factor;
+    }
+
+    int getDownscaleFactor() {
+        return mDownscaleFactor;
+    }
+
+    /**
+     * Enables searching the full resolution frame in a grid of overlapping tiles, in parallel.
+     * The tiles are shared out between the wrapped detector, which runs on the frame processing
+     * thread, and the extra detectors, which run on a worker thread each.  No detector is called
+     * from two threads at once, so the extra detectors should be separate instances configured
+     * like the wrapped one.  Items found on several tiles are merged by value and position, and
+     * their coordinates are mapped back to the full preview frame.
+     * <p/>
+     * This pays off when one detector call on a large frame takes most of the frame time while
+     * other cores are idle.  The overlap must cover the largest item, or items cut by a tile
+     * border are missed.  Call this before the camera source starts; the extra detectors are
+     * released along with this detector.
+     *
+     * @param overlap        the share of a tile's width or height that its neighbour covers as
+     *                       well, from 0 to less than 1
+     * @param extraDetectors detectors for the worker threads, possibly none
+     */
+    public void setTiling(int columns, int rows, float overlap,
+                          List<? extends Detector<T>> extraDetectors) {
+        TiledDetection previous = mTiledDetection;
+        mTiledDetection = new TiledDetection(new FrameTiles(columns, rows, overlap),
+                extraDetectors);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Sets the region of the preview frame that the next frame passed to the detector was taken
+     * from.  Called by the camera source right before each frame is received.
+     */
+    void setFrameRegion(FrameRegion region) {
+        mRegion = region;
+    }
+
+    /**
+     * Sets the downscaled copy of the next frame passed to the detector, made by the frame
+     * pipeline, or null.  Called by the camera source right before each frame is received.
+     */
+    void setScaledFrame(ByteBuffer scaledData, int factor) {
+        mPreparedScaledData = scaledData;
+        mPreparedScaleFactor = factor;
+    }
+
+    @Override
+    public SparseArray<T> detect(Frame frame) {
+        FrameRegion region = mRegion;
+        if (region == null) {
+            Frame.Metadata metadata = frame.getMetadata();
+            region = mFullFrameRegion;
+            region.setFullFrame(metadata.getWidth(), metadata.getHeight(),
+                    metadata.getRotation());
+        }
+
+        int factor = mDownscaleFactor;
+        ByteBuffer scaledData = mPreparedScaledData;
+        mPreparedScaledData = null;
+        if (factor > 1) {
+            // The pipeline's copy is used unless the factor changed since the frame was prepared.
+            Frame scaledFrame = scaledData != null && mPreparedScaleFactor == factor
+                    ? buildScaledFrame(frame, scaledData, factor)
+                    : downscale(frame, factor);
+            SparseArray<T> results = mDelegate.detect(scaledFrame);
+            if (results.size() > 0 && areLargeEnough(results, factor)) {
+                region.setScale(factor);
+                mapItems(results, region);
+                return results;
+            }
+        }
+
+        region.setScale(1);
+        TiledDetection tiledDetection = mTiledDetection;
+        SparseArray<T> results = tiledDetection != null
+                ? mergeTiles(tiledDetection.detect(frame))
+                : mDelegate.detect(frame);
+        mapItems(results, region);
+        return results;
+    }
+
+    /**
+     * Maps the coordinates of a detected item from the given region to the full preview frame.
+     * Use {@link FrameRegion#mapX(int)} and {@link FrameRegion#mapY(int)}.
+     */
+    protected abstract void mapItem(T item, FrameRegion region);
+
+    /**
+     * Returns the length of the smallest side of a detected item, in the coordinates of the frame
+     * it was detected on.
+     */
+    protected abstract int getItemSize(T item);
+
+    /**
+     * Returns the decoded value of a detected item, which items found on several tiles are
+     * compared by.
+     */
+    protected abstract Object getItemValue(T item);
+
+    /**
+     * Sets a rectangle to the bounding box of a detected item.
+     *
+     * @return false if the item has no position, in which case the rectangle is unchanged
+     */
+    protected abstract boolean getItemBounds(T item, Rect bounds);
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public boolean setFocus(int id) {
+        return mDelegate.setFocus(id);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+        TiledDetection tiledDetection = mTiledDetection;
+        if (tiledDetection != null) {
+            tiledDetection.release();
+        }
+    }
+
+    private void mapItems(SparseArray<T> results, FrameRegion region) {
+        if (region.isIdentity()) {
+            return;
+        }
+        for (int i = 0; i < results.size(); ++i) {
+            mapItem(results.valueAt(i), region);
+        }
+    }
+
+    /**
+     * Merges the results of the tiles, in tile order, leaving out items found on an earlier tile
+     * already.  The keys of the detectors are kept, except where items of different tiles share
+     * one.
+     */
+    private SparseArray<T> mergeTiles(List<SparseArray<T>> tileResults) {
+        SparseArray<T> merged = new SparseArray<>();
+        for (int tile = 0; tile < tileResults.size(); ++tile) {
+            SparseArray<T> results = tileResults.get(tile);
+            for (int i = 0; i < results.size(); ++i) {
+                T item = results.valueAt(i);
+                if (containsItem(merged, item)) {
+                    continue;
+                }
+                int key = results.keyAt(i);
+                while (merged.indexOfKey(key) >= 0) {
+                    key++;
+                }
+                merged.put(key, item);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns whether the results contain an item of the same value at the same position.  Items
+     * without a position only match by value.
+     */
+    private boolean containsItem(SparseArray<T> results, T item) {
+        Object value = getItemValue(item);
+        boolean hasBounds = getItemBounds(item, mItemBox);
+        for (int i = 0; i < results.size(); ++i) {
+            T other = results.valueAt(i);
+            if (value == null ? getItemValue(other) != null : !value.equals(getItemValue(other))) {
+                continue;
+            }
+            if (!hasBounds || !getItemBounds(other, mMergedBox)
+                    || FrameTiles.isSamePosition(mItemBox.left, mItemBox.top, mItemBox.right,
+                    mItemBox.bottom, mMergedBox.left, mMergedBox.top, mMergedBox.right,
+                    mMergedBox.bottom)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean areLargeEnough(SparseArray<T> results, int factor) {
+        for (int i = 0; i < results.size(); ++i) {
+            if (getItemSize(results.valueAt(i)) * factor < mMinItemSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a grayscale copy of the frame, reduced by the given factor in both directions.
+     */
+    private Frame downscale(Frame frame, int factor) {
+        Frame.Metadata metadata = frame.getMetadata();
+        int width = Nv21.downscaledSize(metadata.getWidth(), factor);
+        int height = Nv21.downscaledSize(metadata.getHeight(), factor);
+        if (width != mScaledWidth || height != mScaledHeight) {
+            int size = Nv21.bufferSize(width, height);
+            if (mScaledArray == null || mScaledArray.length < size) {
+                mScaledArray = new byte[size];
+                mScaledBuffer = ByteBuffer.wrap(mScaledArray);
+            }
+            Nv21.fillNeutralChroma(mScaledArray, width, height);
+            mScaledWidth = width;
+            mScaledHeight = height;
+        }
+        Nv21.downscaleLuma(frame.getGrayscaleImageData(), metadata.getWidth(), factor,
+                mScaledArray, width, height);
+        return buildScaledFrame(frame, mScaledBuffer, factor);
+    }
+
+    /**
+     * Wraps the downscaled copy of a frame in a frame with the same metadata.
+     */
+    private Frame buildScaledFrame(Frame frame, ByteBuffer scaledData, int factor) {
+        Frame.Metadata metadata = frame.getMetadata();
+        return mScaledFrameBuilder
+                .setImageData(scaledData, Nv21.downscaledSize(metadata.getWidth(), factor),
+                        Nv21.downscaledSize(metadata.getHeight(), factor), ImageFormat.NV21)
+                .setId(metadata.getId())
+                .setTimestampMillis(metadata.getTimestampMillis())
+                .setRotation(metadata.getRotation())
+                .build();
+    }
+
+    /**
+     * Detection on the tiles of a frame.  The tiles are cropped on the frame processing thread,
+     * then detected on by the wrapped detector there and by the extra detectors on their worker
+     * threads at the same time, each taking every n-th tile.  The crop buffers and frames of the
+     * tiles are reused from frame to frame.
+     */
+    private final class TiledDetection {
+        private final FrameTiles mTiles;
+        private final List<Detector<T>> mDetectors = new ArrayList<>();
+        private final ExecutorService mExecutor;
+        private final List<TileWorker> mWorkers = new ArrayList<>();
+
+        // One of each per tile, allocated when the first frame is laid out.
+        private final FrameRegion[] mTileRegions;
+        private final Frame[] mTileFrames;
+        private final Frame.Builder[] mTileFrameBuilders;
+        private final byte[][] mTileArrays;
+        private final ByteBuffer[] mTileBuffers;
+        // Written by the worker of each tile, read once all workers are done.
+        private final List<SparseArray<T>> mTileResults = new ArrayList<>();
+
+        // Guarded by this.
+        private int mPendingWorkers;
+        private Throwable mError;
+
+        TiledDetection(FrameTiles tiles, List<? extends Detector<T>> extraDetectors) {
+            mTiles = tiles;
+            mDetectors.add(mDelegate);
+            mDetectors.addAll(extraDetectors);
+            mExecutor = extraDetectors.isEmpty() ? null
+                    : Executors.newFixedThreadPool(extraDetectors.size());
+            for (int i = 0; i < mDetectors.size(); ++i) {
+                mWorkers.add(new TileWorker(i));
+            }
+
+            int count = tiles.getCount();
+            mTileRegions = new FrameRegion[count];
+            mTileFrames = new Frame[count];
+            mTileFrameBuilders = new Frame.Builder[count];
+            mTileArrays = new byte[count][];
+            mTileBuffers = new ByteBuffer[count];
+            for (int tile = 0; tile < count; ++tile) {
+                mTileRegions[tile] = new FrameRegion();
+                mTileFrameBuilders[tile] = new Frame.Builder();
+                mTileResults.add(null);
+            }
+        }
+
+        /**
+         * Detects on the tiles of a frame.
+         *
+         * @return the results of each tile, mapped to the coordinates of the frame
+         */
+        List<SparseArray<T>> detect(Frame frame) {
+            cropTiles(frame);
+            synchronized (this) {
+                mPendingWorkers = mWorkers.size();
+                mError = null;
+            }
+            for (int i = 1; i < mWorkers.size(); ++i) {
+                mExecutor.execute(mWorkers.get(i));
+            }
+            mWorkers.get(0).run();
+
+            Throwable error;
+            boolean interrupted = false;
+            synchronized (this) {
+                // The workers use the tile buffers until they are done, so wait for them even
+                // when interrupted.
+                while (mPendingWorkers > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                error = mError;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new RuntimeException(error);
+            }
+            return mTileResults;
+        }
+
+        void release() {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+            }
+            for (int i = 1; i < mDetectors.size(); ++i) {
+                mDetectors.get(i).release();
+            }
+        }
+
+        private void cropTiles(Frame frame) {
+            Frame.Metadata metadata = frame.getMetadata();
+            int width = metadata.getWidth();
+            int height = metadata.getHeight();
+            mTiles.layout(width, height);
+            ByteBuffer data = frame.getGrayscaleImageData();
+            for (int tile = 0; tile < mTiles.getCount(); ++tile) {
+                int left = mTiles.getLeft(tile);
+                int top = mTiles.getTop(tile);
+                int tileWidth = mTiles.getWidth(tile);
+                int tileHeight = mTiles.getHeight(tile);
+                FrameRegion region = mTileRegions[tile];
+                if (region.getWidth() != tileWidth || region.getHeight() != tileHeight) {
+                    int size = Nv21.bufferSize(tileWidth, tileHeight);
+                    if (mTileArrays[tile] == null || mTileArrays[tile].length < size) {
+                        mTileArrays[tile] = new byte[size];
+                        mTileBuffers[tile] = ByteBuffer.wrap(mTileArrays[tile]);
+                    }
+                    Nv21.fillNeutralChroma(mTileArrays[tile], tileWidth, tileHeight);
+                }
+                region.set(width, height, metadata.getRotation(), left, top, tileWidth,
+                        tileHeight);
+                Nv21.crop(data, width, height, left, top, tileWidth, tileHeight,
+                        mTileArrays[tile], false);
+                mTileFrames[tile] = mTileFrameBuilders[tile]
+                        .setImageData(mTileBuffers[tile], tileWidth, tileHeight,
+                                ImageFormat.NV21)
+                        .setId(metadata.getId())
+                        .setTimestampMillis(metadata.getTimestampMillis())
+                        .setRotation(metadata.getRotation())
+                        .build();
+            }
+        }
+
+        private synchronized void workerDone(Throwable error) {
+            if (error != null && mError == null) {
+                mError = error;
+            }
+            if (--mPendingWorkers == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Detects on every n-th tile with one of the detectors.
+         */
+        private final class TileWorker implements Runnable {
+            private final int mIndex;
+
+            TileWorker(int index) {
+                mIndex = index;
+            }
+
+            @Override
+            public void run() {
+                Throwable error = null;
+                try {
+                    Detector<T> detector = mDetectors.get(mIndex);
+                    for (int tile = mIndex; tile < mTiles.getCount(); tile += mWorkers.size()) {
+                        SparseArray<T> results = detector.detect(mTileFrames[tile]);
+                        FrameRegion region = mTileRegions[tile];
+                        for (int i = 0; i < results.size(); ++i) {
+                            mapItem(results.valueAt(i), region);
+                        }
+                        mTileResults.set(tile, results);
+                    }
+                } catch (Throwable t) {
+                    error = t;
+                } finally {
+                    workerDone(error);
+                }
+            }
+        }
+    }
+}
@@ -22,8 +22,8 @@ import android.view.View;
 
 import com.google.android.gms.vision.CameraSource;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -50,8 +50,10 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     private int mPreviewHeight;
     private float mHeightScaleFactor = 1.0f;
     private int mFacing = CameraSource.CAMERA_FACING_BACK;
-    private Set<T> mGraphics = new HashSet<>();
+    // A list rather than a set, so that drawing can walk it without allocating an iterator.
+    private final List<T> mGraphics = new ArrayList<>();
     private T mFirstGraphic;
+    private volatile FrameTracer mTracer;
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -73,7 +75,9 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      */
     public void add(T graphic) {
         synchronized (mLock) {
-            mGraphics.add(graphic);
+            if (!mGraphics.contains(graphic)) {
+                mGraphics.add(graphic);
+            }
             if (mFirstGraphic == null) {
                 mFirstGraphic = graphic;
             }
@@ -106,6 +110,21 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
         }
     }
 
+    /**
+     * Sets the tracer that drawing the overlay and updating its graphics is recorded to, or null.
+     */
+    public void setTracer(FrameTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Returns the tracer set with {@link #setTracer(FrameTracer)}, for the trackers updating the
+     * graphics of this overlay, or null.
+     */
+    public FrameTracer getTracer() {
+        return mTracer;
+    }
+
     /**
      * Sets the camera attributes for size and facing direction, which informs how to transform
      * image coordinates later.
@@ -126,16 +145,21 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        FrameTracer tracer = mTracer;
+        long startNanos = tracer != null ? System.nanoTime() : 0;
         synchronized (mLock) {
             if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
                 mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
                 mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
             }
 
-            for (Graphic graphic : mGraphics) {
-                graphic.draw(canvas);
+            for (int i = 0; i < mGraphics.size(); ++i) {
+                mGraphics.get(i).draw(canvas);
             }
         }
+        if (tracer != null) {
+            tracer.record(FrameTracer.SPAN_OVERLAY_DRAW, startNanos, FrameTracer.NO_FRAME);
+        }
     }
 
     /**
@@ -30,28 +30,34 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import com.margin.barcode.BarcodeGraphic;
+import com.margin.barcode.BarcodePipelineDetector;
+import com.margin.barcode.BarcodeResultProcessor;
 import com.margin.barcode.BarcodeTrackerFactory;
 import com.margin.barcode.R;
 import com.margin.barcode.camera.CameraSource;
 import com.margin.barcode.camera.CameraSourcePreview;
+import com.margin.barcode.camera.FrameTracer;
 import com.margin.barcode.camera.GraphicOverlay;
+import com.margin.barcode.camera.PipelineMetrics;
+import com.margin.barcode.camera.ResultDispatcher;
 import com.margin.barcode.listeners.OnBarcodeReaderError;
 import com.margin.barcode.listeners.OnBarcodeReceivedListener;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.vision.MultiProcessor;
-import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Created on Mar 25, 2016.
  *
  * @author Marta.Ginosyan
  */
-public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeReaderError,
-        CameraSource.OnFrameReceivedListener {
+public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeReaderError {
 
     private static final String TAG = CameraBarcodeFragment.class.getSimpleName();
     private static final String IS_DIALOG = "is_dialog";
@@ -59,8 +65,21 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
     private static final int RC_HANDLE_GMS = 9001;
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
+    // barcodes found on the half resolution frame are only trusted from this size (in preview
+    // pixels) on; smaller ones are searched again on the full resolution frame.
+    private static final int MIN_DOWNSCALED_BARCODE_SIZE = 96;
+    // frames less sharp than this share of the recent average are skipped before detection.
+    private static final float MIN_RELATIVE_SHARPNESS = 0.5f;
+    // the smallest barcodes scanned: small retail labels (0.25 mm bars, about 75% of a full size
+    // EAN-13), from up to 15 cm away, with at most 100 ms between frames.
+    private static final float MIN_MODULE_WIDTH_MM = 0.25f;
+    private static final float MAX_WORKING_DISTANCE_MM = 150.0f;
+    private static final int TARGET_FRAME_LATENCY_MILLIS = 100;
     private OnBarcodeReceivedListener mOnBarcodeReceivedListener;
     private CameraSource mCameraSource;
+    private PipelineMetrics mMetrics;
+    // Set while tracing, see startTracing(int).  Only accessed from the main thread.
+    private FrameTracer mTracer;
     private CameraSourcePreview mPreview;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
 
@@ -69,28 +88,21 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
 
     private Handler mHandler = new Handler();
 
-    private Runnable mOnFrameReceivedAction = new Runnable() {
-        @Override
-        public void run() {
-            if (mOnBarcodeReceivedListener != null) {
-                BarcodeGraphic graphic = mGraphicOverlay.getFirstGraphic();
-                Barcode barcode;
-                if (graphic != null) {
-                    barcode = graphic.getBarcode();
-                    if (barcode != null) {
-                        try {
-                            mOnBarcodeReceivedListener.onBarcodeReceived(barcode.displayValue);
-                        } catch (NumberFormatException e) {
-                            e.printStackTrace();
-                            onError(e);
-                        }
-                    } else {
-                        onError(new Exception("barcode data is null"));
-                    }
+    // Brings the decoded values of a frame to the main thread when they change, in a single
+    // message however many barcodes the frame has.
+    private final ResultDispatcher<List<String>> mResultDispatcher = new ResultDispatcher<>(
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mHandler.post(command);
                 }
-            }
-        }
-    };
+            },
+            new ResultDispatcher.Listener<List<String>>() {
+                @Override
+                public void onResults(List<String> values, long timestampMillis) {
+                    onBarcodesReceived(values);
+                }
+            });
 
     private boolean mIsDialog;
 
@@ -137,7 +149,14 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
         view.setOnTouchListener(new BarcodeTouchListener());
         mPreview = (CameraSourcePreview) view.findViewById(R.id.preview);
         mPreview.setCameraPreviewOnTop(mIsDialog);
+        mPreview.setOnStartFailedListener(new CameraSourcePreview.OnStartFailedListener() {
+            @Override
+            public void onCameraSourceStartFailed(Exception e) {
+                onCameraStartFailed(e);
+            }
+        });
         mGraphicOverlay = (GraphicOverlay<BarcodeGraphic>) view.findViewById(R.id.graphicOverlay);
+        mGraphicOverlay.setTracer(mTracer);
 
         Snackbar.make(getActivity().findViewById(android.R.id.content), "Pinch/Stretch to zoom",
                 Snackbar.LENGTH_LONG).show();
@@ -182,6 +201,52 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
         mOnBarcodeReceivedListener = onBarcodeReceivedListener;
     }
 
+    /**
+     * Returns the latency histograms and frame counters of the scanning pipeline, from the camera
+     * delivering a frame to the decoded barcode reaching the listener, or null until the camera
+     * source is created.  Take a {@link PipelineMetrics#snapshotAndReset() snapshot} to log them.
+     */
+    @Nullable
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Starts recording a timeline of the scanning pipeline, from the camera callbacks to the
+     * listener, keeping the given number of most recent spans.  Must be called on the main thread.
+     *
+     * @see #stopTracing(File)
+     */
+    public void startTracing(int capacity) {
+        mTracer = new FrameTracer(capacity);
+        applyTracer();
+    }
+
+    /**
+     * Stops tracing and writes the recorded timeline to a file in the Chrome trace JSON format,
+     * which chrome://tracing and the Perfetto UI open.  Must be called on the main thread.
+     *
+     * @throws IllegalStateException if not tracing
+     */
+    public void stopTracing(File file) throws IOException {
+        FrameTracer tracer = mTracer;
+        if (tracer == null) {
+            throw new IllegalStateException("Not tracing");
+        }
+        mTracer = null;
+        applyTracer();
+        tracer.writeTo(file);
+    }
+
+    private void applyTracer() {
+        if (mCameraSource != null) {
+            mCameraSource.setTracer(mTracer);
+        }
+        if (mGraphicOverlay != null) {
+            mGraphicOverlay.setTracer(mTracer);
+        }
+    }
+
     /**
      * Handles the requesting of the camera permission.  This includes showing a "Snackbar" message
      * of why the permission is needed then sending the request.
@@ -217,9 +282,25 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
         Toast.makeText(getContext(), e.toString(), Toast.LENGTH_SHORT).show();
     }
 
-    @Override
-    public void onFrameReceived() {
-        mHandler.post(mOnFrameReceivedAction);
+    /**
+     * Hands the values decoded on a frame to the listener, on the main thread.  Only called when
+     * they differ from those of the frame before.
+     */
+    private void onBarcodesReceived(List<String> values) {
+        long startNanos = System.nanoTime();
+        if (mOnBarcodeReceivedListener != null) {
+            for (String value : values) {
+                try {
+                    mOnBarcodeReceivedListener.onBarcodeReceived(value);
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                    onError(e);
+                }
+            }
+        }
+        if (mTracer != null) {
+            mTracer.record(FrameTracer.SPAN_LISTENER_DISPATCH, startNanos, FrameTracer.NO_FRAME);
+        }
     }
 
     /**
@@ -228,20 +309,29 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
      * distances.
      * <p/>
      * Suppressing InlinedApi since there is a check that the minimum version is met before using
-     * the constant.
+     * the constant, and MissingPermission since this is only called once the camera permission
+     * is granted.
      */
-    @SuppressLint("InlinedApi")
+    @SuppressLint({"InlinedApi", "MissingPermission"})
     private void createCameraSource(boolean autoFocus, boolean useFlash) {
         Context context = getContext().getApplicationContext();
 
         // A barcode detector is created to track barcodes.  An associated multi-processor instance
         // is set to receive the barcode detection results, track the barcodes, and maintain
         // graphics for each barcode on screen.  The factory is used by the multi-processor to
-        // create a separate tracker instance for each barcode.
+        // create a separate tracker instance for each barcode.  The detector is wrapped so that
+        // results on cropped frames are mapped back to the whole preview frame.
         BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context).build();
+        BarcodePipelineDetector pipelineDetector = new BarcodePipelineDetector(barcodeDetector);
+        // Large (close) barcodes are read from a half resolution frame, which is much faster.
+        // Only when that finds nothing is the full resolution frame searched, which small
+        // barcodes at long distances need.
+        pipelineDetector.setDownscale(2, MIN_DOWNSCALED_BARCODE_SIZE);
         BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay);
-        barcodeDetector.setProcessor(
-                new MultiProcessor.Builder<>(barcodeFactory).build());
+        // The decoded values are taken from the detections of each frame, and only reach the
+        // main thread when they change.
+        pipelineDetector.setProcessor(new BarcodeResultProcessor(
+                new MultiProcessor.Builder<>(barcodeFactory).build(), mResultDispatcher));
 
         if (!barcodeDetector.isOperational()) {
             // Note: The first time that an app using the barcode or face API is installed on a
@@ -266,15 +356,16 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
             }
         }
 
-        // Creates and starts the camera.  Note that this uses a higher resolution in comparison
-        // to other detection examples to enable the barcode detector to detect small barcodes
-        // at long distances.
+        // Creates and starts the camera.  The preview size and frame rate are derived from the
+        // smallest barcode to be detected, so that the camera provides just enough pixels to
+        // resolve it at the working distance, at the highest frame rate it can.
         CameraSource.Builder builder = new CameraSource.Builder(getContext()
                 .getApplicationContext(),
-                barcodeDetector)
+                pipelineDetector)
                 .setFacing(CameraSource.CAMERA_FACING_BACK)
-                .setRequestedPreviewSize(1600, 1024)
-                .setRequestedFps(15.0f);
+                .setTargetBarcode(MIN_MODULE_WIDTH_MM, MAX_WORKING_DISTANCE_MM,
+                        TARGET_FRAME_LATENCY_MILLIS)
+                .setSharpnessGate(MIN_RELATIVE_SHARPNESS);
 
         // make sure that auto focus is an available option
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
@@ -285,7 +376,13 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
         mCameraSource = builder
                 .setFlashMode(useFlash ? Camera.Parameters.FLASH_MODE_TORCH : null)
                 .build();
-        mCameraSource.setOnFrameReceivedListener(this);
+        mMetrics = mCameraSource.getMetrics();
+        mResultDispatcher.setMetrics(mMetrics);
+        mCameraSource.setTracer(mTracer);
+
+        // Open the camera while the rest of the dialog is laid out, so that only the preview
+        // surface is left to attach once it exists.
+        mCameraSource.prewarm();
     }
 
     /**
@@ -381,16 +478,28 @@ public class CameraBarcodeFragment extends DialogFragment implements OnBarcodeRe
         }
 
         if (mCameraSource != null) {
+            // Report the barcodes in view again after a restart.
+            mResultDispatcher.reset();
             try {
                 mPreview.start(mCameraSource, mGraphicOverlay);
             } catch (IOException e) {
-                Log.e(TAG, "Unable to start camera source.", e);
-                mCameraSource.release();
-                mCameraSource = null;
+                onCameraStartFailed(e);
             }
         }
     }
 
+    /**
+     * Releases the camera source when it could not be started, which mostly happens on the camera
+     * thread after startCameraSource() returned, and reports the error.
+     */
+    private void onCameraStartFailed(Exception e) {
+        Log.e(TAG, "Unable to start camera source.", e);
+        // Releases the camera source, which the preview holds as well.
+        mPreview.release();
+        mCameraSource = null;
+        onError(e);
+    }
+
     private class BarcodeTouchListener implements View.OnTouchListener {
 
         @Override